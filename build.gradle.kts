@@ -15,6 +15,38 @@ qupathExtension {
 dependencies {
     implementation(libs.qupath.fxtras)
     implementation(libs.qupath.gui.fx)
+
+    testImplementation(libs.junit)
+    testRuntimeOnly(libs.junit.platform)
+}
+
+tasks.test {
+    useJUnitPlatform()
+}
+
+/*
+ * List the scripts in an index, so that the menu can be built without reading them at startup
+ */
+val generateScriptIndex by tasks.registering {
+    val scriptsDir = layout.projectDirectory.dir("src/main/resources/biop-scripts")
+    val outputDir = layout.buildDirectory.dir("generated/biop-scripts-index")
+    inputs.dir(scriptsDir)
+    outputs.dir(outputDir)
+    doLast {
+        val root = scriptsDir.asFile
+        val index = root.walkTopDown()
+            .filter { it.isFile && it.name.endsWith(".groovy") }
+            .map { it.relativeTo(root).invariantSeparatorsPath }
+            .sorted()
+            .joinToString(separator = "\n", postfix = "\n")
+        val indexFile = outputDir.get().file("biop-scripts/index.txt").asFile
+        indexFile.parentFile.mkdirs()
+        indexFile.writeText(index)
+    }
+}
+
+sourceSets.main {
+    resources.srcDir(generateScriptIndex)
 }
 
 tasks.withType<Javadoc> {
@@ -0,0 +1,22 @@
+import qupath.ext.biop.utils.ColumnarResults
+import qupath.ext.biop.utils.Results
+
+// Run this for all images of the project, it appends the detections of each image to results/results.bcol
+def columns = ["Name", "Class", "Parent", "Area " + Results.um + "^2", "Nucleus: Area " + Results.um + "^2"]
+Results.sendResultsToColumnarFile(new ArrayList(columns), new ArrayList(getDetectionObjects()))
+
+// Later, load a single column for the whole project without parsing the rest of the file
+def resultsFile = new File(buildFilePath(PROJECT_BASE_DIR, 'results', 'results.bcol'))
+def reader = new ColumnarResults.Reader(resultsFile)
+try {
+    println "Columns: ${reader.getColumns()}"
+    // Note that the micrometer symbol is replaced by 'um' in the column names
+    double[] areas = reader.readDoubles("Area um^2")
+    String[] classes = reader.readStrings("Class")
+    reader.getRowGroups().each { group ->
+        def groupAreas = areas[group.getFirstRow()..<(group.getFirstRow() + group.getRowCount())]
+        println "${group.getName()}: ${group.getRowCount()} objects, mean area ${groupAreas.sum() / Math.max(1, groupAreas.size())}"
+    }
+} finally {
+    reader.close()
+}
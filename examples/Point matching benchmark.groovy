@@ -0,0 +1,53 @@
+import qupath.ext.biop.ml.PointDetectionMatcher
+import qupath.lib.objects.PathObjects
+import qupath.lib.regions.ImagePlane
+import qupath.lib.roi.ROIs
+
+/**
+ * Compares the brute-force point-in-detection search with the indexed one used by ObjectClassifierValidation
+ * on synthetic hierarchies of 10k, 100k and 1M cells and checks that both give the same number of matches.
+ * Does not need an open image.
+ */
+
+def sizes = [10_000, 100_000, 1_000_000]
+def nPoints = 2_000
+// Brute force takes very long on the largest hierarchy, so only a subset of the points is tested there
+def maxBruteForceTests = 200_000_000L
+
+def random = new Random(42)
+def plane = ImagePlane.getDefaultPlane()
+
+sizes.each { nCells ->
+    // Lay the cells on a jittered grid, similar to what a cell detection produces
+    def side = Math.ceil(Math.sqrt(nCells)) as int
+    def spacing = 20.0
+    def detections = (0..<nCells).collect { i ->
+        def x = (i % side) * spacing + random.nextDouble() * 4
+        def y = (i.intdiv(side)) * spacing + random.nextDouble() * 4
+        def d = 12 + random.nextDouble() * 10
+        PathObjects.createDetectionObject(ROIs.createEllipseROI(x, y, d, d, plane))
+    }
+    def points = (0..<nPoints).collect {
+        [random.nextDouble() * side * spacing, random.nextDouble() * side * spacing]
+    }
+
+    def start = System.nanoTime()
+    def matcher = new PointDetectionMatcher(detections)
+    def buildTime = (System.nanoTime() - start) / 1e6
+    start = System.nanoTime()
+    def indexed = 0
+    points.each { p -> matcher.findMatches(p[0], p[1], { indexed++ }) }
+    def indexedTime = (System.nanoTime() - start) / 1e6
+
+    def nBruteForce = Math.min(nPoints, Math.max(1, maxBruteForceTests.intdiv(nCells)) as int)
+    start = System.nanoTime()
+    def bruteForce = 0
+    points.take(nBruteForce).each { p -> PointDetectionMatcher.findMatchesBruteForce(detections, p[0], p[1], { bruteForce++ }) }
+    def bruteForceTime = (System.nanoTime() - start) / 1e6 * nPoints / nBruteForce
+
+    def indexedSubset = 0
+    points.take(nBruteForce).each { p -> matcher.findMatches(p[0], p[1], { indexedSubset++ }) }
+
+    println String.format("%,9d cells, %,d points: index built in %.1f ms, indexed queries %.1f ms (%d matches), brute force ~%.1f ms (extrapolated from %d points). Same matches: %s",
+            nCells, nPoints, buildTime, indexedTime, indexed, bruteForceTime, nBruteForce, indexedSubset == bruteForce)
+}
@@ -10,13 +10,18 @@ import qupath.lib.gui.extensions.GitHubProject;
 import qupath.lib.gui.extensions.QuPathExtension;
 import qupath.lib.gui.tools.MenuTools;
 
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -57,49 +62,100 @@ public class BIOPExtension implements QuPathExtension, GitHubProject {
 
     /**
      * Install all scripts that the BIOP places in the Resources/scripts folder
+     * The menu is built from an index of the scripts generated at build time, and each script is only read when its
+     * menu item is clicked.
      * @author Olivier Burri
      */
     public static class BIOPScripts {
 
+        private static final String SCRIPTS_FOLDER = "/biop-scripts/";
+        private static final String INDEX = SCRIPTS_FOLDER + "index.txt";
+
+        // Scripts that were already opened once
+        private static final Map<String, String> scriptCache = new ConcurrentHashMap<>();
+
         private static void install(QuPathGUI qupath) {
+            List<String> scripts = getAllGroovyScripts();
+
+            scripts.forEach(script -> {
+                int lastSlash = script.lastIndexOf('/');
+                String fileName = script.substring(lastSlash + 1);
+                // Make underscores into spaces
+                String name = fileName.substring(0, fileName.lastIndexOf('.')).replaceAll("_", " ");
+                // Use the file's path as a menu path
+                String menu = "Extensions>BIOP>scripts";
+                if (lastSlash > 0)
+                    menu += ">" + script.substring(0, lastSlash).replaceAll("/+", ">");
+                MenuTools.addMenuItems(qupath.getMenu(menu, true),
+                        new Action(name, e -> {
+                            String scriptContent = readScript(script);
+                            if (scriptContent != null)
+                                openScript(qupath, scriptContent);
+                        }));
+            });
+        }
 
-            try {
-                List<Path> scripts = getAllGroovyScripts();
-
-                scripts.forEach(script -> {
-                    String fileName = script.getFileName().toString();
-                    // Make underscores into spaces
-                    String name = fileName.substring(0, fileName.lastIndexOf('.')).replaceAll("_", " ");
-                    // Use the file's path as a menu path. Need to remove 'scripts' from the path
-                    String menu = "Extensions>BIOP>scripts>" + script.getParent().toString().replace("/biop-scripts/", "").replaceAll("[/\\\\]+", ">");
-                    String scriptContent = "null";
-                    try {
-                        scriptContent = Files.readString(script, StandardCharsets.UTF_8);
-                    } catch (IOException e) {
-                        logger.error( e.getLocalizedMessage() );
-                    }
-                    if (!scriptContent.equals("null")) {
-                        String finalScriptContent = scriptContent;
-                        MenuTools.addMenuItems(qupath.getMenu(menu, true),
-                                new Action( name, e -> openScript(qupath, finalScriptContent)));
+        /**
+         * @param script the path of the script relative to the scripts folder, as in the index
+         * @return the content of the script, or null if it cannot be read
+         */
+        private static String readScript(String script) {
+            String content = scriptCache.get(script);
+            if (content != null)
+                return content;
+            try (InputStream stream = BIOPExtension.class.getResourceAsStream(SCRIPTS_FOLDER + script)) {
+                if (stream == null) {
+                    logger.error("Script {} not found", script);
+                    return null;
+                }
+                content = new String(stream.readAllBytes(), StandardCharsets.UTF_8);
+                scriptCache.put(script, content);
+                return content;
+            } catch (IOException e) {
+                logger.error(e.getLocalizedMessage());
+                return null;
+            }
+        }
+
+        /**
+         * @return the paths of all the scripts relative to the scripts folder, with '/' as separator, sorted
+         */
+        private static List<String> getAllGroovyScripts() {
+            try (InputStream stream = BIOPExtension.class.getResourceAsStream(INDEX)) {
+                if (stream != null) {
+                    try (BufferedReader reader = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8))) {
+                        return reader.lines().map(String::trim).filter(l -> l.endsWith(".groovy")).sorted().collect(Collectors.toList());
                     }
-                });
+                }
+            } catch (IOException e) {
+                logger.warn("Could not read the scripts index: {}", e.getLocalizedMessage());
+            }
+            // Without index, for example when running from the sources, list the scripts folder
+            logger.debug("No scripts index found, listing {}", SCRIPTS_FOLDER);
+            try {
+                return listGroovyScripts();
             } catch (IOException | URISyntaxException e) {
                 throw new RuntimeException(e);
             }
         }
 
-        private static List<Path> getAllGroovyScripts() throws IOException, URISyntaxException {
+        private static List<String> listGroovyScripts() throws IOException, URISyntaxException {
             URI uri = BIOPExtension.class.getResource("/biop-scripts").toURI();
-            Path myPath;
             if (uri.getScheme().equals("jar")) {
-                FileSystem fileSystem = FileSystems.newFileSystem(uri, Collections.<String, Object>emptyMap());
-                myPath = fileSystem.getPath("/biop-scripts");
-            } else {
-                myPath = Paths.get(uri);
+                try (FileSystem fileSystem = FileSystems.newFileSystem(uri, Collections.<String, Object>emptyMap())) {
+                    return listGroovyScripts(fileSystem.getPath("/biop-scripts"));
+                }
+            }
+            return listGroovyScripts(Paths.get(uri));
+        }
+
+        private static List<String> listGroovyScripts(Path root) throws IOException {
+            try (Stream<Path> walk = Files.walk(root, 10)) {
+                return walk.filter(p -> p.toString().endsWith(".groovy"))
+                        .map(p -> root.relativize(p).toString().replace('\\', '/'))
+                        .sorted()
+                        .collect(Collectors.toList());
             }
-            Stream<Path> walk = Files.walk(myPath, 10);
-            return walk.filter(p -> p.toString().endsWith("groovy")).sorted().collect(Collectors.toList());
         }
     }
 
@@ -4,7 +4,6 @@ import javafx.application.Platform;
 import javafx.beans.property.BooleanProperty;
 import javafx.beans.property.DoubleProperty;
 import javafx.beans.property.StringProperty;
-import javafx.collections.ObservableList;
 import javafx.geometry.Insets;
 import javafx.scene.Scene;
 import javafx.scene.control.*;
@@ -13,26 +12,21 @@ import javafx.scene.layout.VBox;
 import javafx.stage.Stage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import qupath.ext.biop.utils.DisplayRangeEstimator;
+import qupath.ext.biop.utils.ThumbnailRenderer;
 import qupath.fx.dialogs.Dialogs;
-import qupath.lib.display.ChannelDisplayInfo;
+import qupath.lib.common.GeneralTools;
 import qupath.lib.display.ImageDisplay;
 import qupath.lib.gui.QuPathGUI;
-import qupath.lib.gui.scripting.QPEx;
-import qupath.lib.gui.viewer.OverlayOptions;
 import qupath.lib.gui.viewer.QuPathViewer;
-import qupath.lib.gui.viewer.QuPathViewerPlus;
-import qupath.lib.gui.viewer.ViewerPlusDisplayOptions;
 import qupath.lib.images.ImageData;
-import qupath.lib.images.servers.ImageChannel;
-import qupath.lib.images.servers.ImageServer;
+import qupath.lib.projects.Project;
 import qupath.lib.projects.ProjectImageEntry;
 
 import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.stream.Collectors;
 
 public class ApplyDisplaySettingsCommand implements Runnable {
 
@@ -44,6 +38,7 @@ public class ApplyDisplaySettingsCommand implements Runnable {
     private StringProperty imageNameProperty;
 
     private BooleanProperty doThumbnails;
+    private BooleanProperty doAutoRange;
     private BooleanProperty isRunningProperty = new javafx.beans.property.SimpleBooleanProperty(false);
     private BooleanProperty cancelProperty = new javafx.beans.property.SimpleBooleanProperty(false);
 
@@ -72,8 +67,10 @@ public class ApplyDisplaySettingsCommand implements Runnable {
         Label labImageName = new Label("");
         imageNameProperty = labImageName.textProperty();
         labImageName.setStyle("-fx-font-weight: bold");
-        CheckBox cbThumbnail = new CheckBox("Update thumbnails (Slow)");
+        CheckBox cbThumbnail = new CheckBox("Update thumbnails");
         doThumbnails = cbThumbnail.selectedProperty();
+        CheckBox cbAutoRange = new CheckBox("Estimate display ranges for each image");
+        doAutoRange = cbAutoRange.selectedProperty();
 
         HBox processing = new HBox();
         processing.setSpacing(5);
@@ -105,6 +102,7 @@ public class ApplyDisplaySettingsCommand implements Runnable {
 
         pane.getChildren().add(labInfo);
         pane.getChildren().add(cbThumbnail);
+        pane.getChildren().add(cbAutoRange);
         pane.getChildren().add(processing);
         pane.getChildren().add(pbProgress);
         pane.getChildren().add(applyBtn);
@@ -134,12 +132,6 @@ public class ApplyDisplaySettingsCommand implements Runnable {
 
         ImageData<BufferedImage> currentImageData = qupath.getImageData();
 
-        ImageServer<BufferedImage> currentServer = currentImageData.getServer();
-
-        List<ImageChannel> channels = currentImageData.getServer().getMetadata().getChannels();
-
-        List<String> channel_names = channels.stream().map(ImageChannel::getName).collect(Collectors.toList());
-
         // Try to get an existing display if the image is currently open
         QuPathViewer viewer = qupath.getAllViewers().stream()
                 .filter(v -> v.getImageData() == currentImageData)
@@ -158,113 +150,48 @@ public class ApplyDisplaySettingsCommand implements Runnable {
         }
 
         // Build all the information we need to apply the settings
-        var available = display.availableChannels();
-        List<Float> channel_min = available.stream().map(ChannelDisplayInfo::getMinDisplay).collect(Collectors.toList());
-        List<Float> channel_max = available.stream().map(ChannelDisplayInfo::getMaxDisplay).collect(Collectors.toList());
-        List<Integer> channel_colors = available.stream().map(ChannelDisplayInfo::getColor).collect(Collectors.toList());
+        DisplaySettingsBatch batch = new DisplaySettingsBatch(currentImageData, display);
+
+        // Each image gets its own display ranges, from the 0.1 and 99.9 percentiles of its pixels
+        if (doAutoRange.get()) {
+            batch.setDisplayRangeEstimator(new DisplayRangeEstimator());
+        }
 
-        // Also make sure that this command selects the channels that are currently displayed for all entries, so
-        // we need those as well
-        ObservableList<ChannelDisplayInfo> selectedChannels = display.selectedChannels();
+        // Thumbnails are rendered off-screen from the settings we just applied, no viewer needed
+        if (doThumbnails.get()) {
+            batch.setThumbnailUpdater(new ThumbnailRenderer()::updateThumbnail);
+        }
 
         // Get all images from Project
-        List<ProjectImageEntry<BufferedImage>> imageList = qupath.getProject().getImageList();
+        Project<BufferedImage> project = qupath.getProject();
+        List<ProjectImageEntry<BufferedImage>> imageList = project.getImageList();
 
-        // Counters for giving a summary of the processing
-        AtomicInteger nTotal = new AtomicInteger(0);
-        AtomicInteger nProcessed = new AtomicInteger(0);
-        AtomicInteger nIgnored = new AtomicInteger(0);
-        int totalImages = imageList.size();
+        // Changes are saved regularly, so that little is lost if QuPath is closed or crashes
+        batch.setProjectSync(project, 50);
 
         executor.submit(() -> {
 
-            imageList.stream().parallel().forEach(entry -> {
-
-                // If the cancel button was pressed, stop processing
-                if (cancelProperty.get())
-                    return;
-                try {
-
-
-                    ImageData<BufferedImage> imageData = entry.readImageData();
-
-                    // To know the number of channels, we need to build the server
-                    ImageServer<BufferedImage> server = entry.getServerBuilder().build();
-
-                    // Check if the image type and number of channels match
-                    if (currentImageData.getImageType().equals(imageData.getImageType()) &&
-                        currentServer.getMetadata().getSizeC() == server.getMetadata().getSizeC()) {
-
-                        nProcessed.getAndIncrement();
-
-                        // Required for the channel color to be updated in case we do not change the names!
-                        imageData.removeProperty(ImageDisplay.class.getName());
-
-                        // Set the names
-                        QPEx.setChannelNames(imageData, channel_names.toArray(new String[0]));
-
-                        // Set the colors
-                        QPEx.setChannelColors(imageData, channel_colors.toArray(new Integer[0]));
-
-                        // Setting the Display range works only per channel unlike the other two above
-                        for (int i = 0; i < channel_min.size(); i++) {
-                            QPEx.setChannelDisplayRange(imageData, channel_names.get(i), channel_min.get(i), channel_max.get(i));
-                        }
-
-                        // Set the selected channels as active or not active
-                        ImageDisplay tempDisplay = ImageDisplay.create(imageData);
-
-                        // Start by setting them all to unselected
-                        for (ChannelDisplayInfo channel : tempDisplay.availableChannels()) {
-                            tempDisplay.setChannelSelected(channel, false);
-                        }
-                        // Then set the ones that should be selected
-                        for (ChannelDisplayInfo channel : tempDisplay.availableChannels()) {
-                            for (ChannelDisplayInfo selected : selectedChannels) {
-                                if (selected.getName().equals(channel.getName())) {
-                                    tempDisplay.setChannelSelected(channel, true);
-                                }
-                            }
-                        }
-
-                        // Update the thumbnail. As this is related to the viewer display settings we might need to create a new viewer?
-                        if (doThumbnails.get()) {
-                            QuPathViewerPlus tempViewer = new QuPathViewerPlus(qupath.getImageRegionStore(),
-                                    new OverlayOptions(), new ViewerPlusDisplayOptions());
-                            tempViewer.setImageData(imageData);
-                            BufferedImage thumbnail = tempViewer.getRGBThumbnail();
-                            entry.setThumbnail(thumbnail);
-                            tempViewer.closeViewer();
-                        }
-
-                        // Save our hard labor
-                        entry.saveImageData(imageData);
-                        logger.debug("Image {} updated.", entry.getImageName());
-
-                    } else {
-                        // This image does not match the current image type or number of channels
-                        nIgnored.getAndIncrement();
-                    }
-                    nTotal.getAndIncrement();
-                } catch (Exception e) {
-                    logger.error(e.getMessage(), e);
-                } finally {
+            // The journal lets us skip images that already have these settings, for example after a cancel
+            DisplaySettingsBatch.Summary summary;
+            try (DisplaySettingsJournal journal = new DisplaySettingsJournal(DisplaySettingsJournal.getDefaultFile(project))) {
+                batch.setJournal(journal);
+                summary = batch.apply(imageList, cancelProperty::get, (done, total, entry) -> {
                     // at each run update the progress bar
                     Platform.runLater(() -> {
-                        progressProperty.set(nTotal.get() / (double) totalImages);
+                        progressProperty.set(done / (double) total);
                         imageNameProperty.set(entry.getImageName());
                     });
-                }
-
-            });
-            try {
-                qupath.getProject().syncChanges();
+                });
             } catch (IOException e) {
-                logger.error(e.getMessage(), e);
+                logger.error("Could not use the display settings journal: {}", e.getMessage(), e);
+                isRunningProperty.set(false);
+                return;
             }
 
-            Dialogs.showInfoNotification("Applied settings to "+nProcessed.get() +" images",
-                    nIgnored.get()+" images were ignored due to either wrong image type or channel number");
+            Dialogs.showInfoNotification("Applied settings to "+summary.getProcessed() +" images",
+                    summary.getIgnored()+" images were ignored due to either wrong image type or channel number\n" +
+                    (summary.getSkipped() + summary.getUnchanged())+" images already had these settings\n" +
+                    GeneralTools.formatNumber(summary.getBytesWritten() / (1024.0 * 1024.0), 1)+" MB written");
             isRunningProperty.set(false);
 
         });
@@ -0,0 +1,446 @@
+package qupath.ext.biop.commands;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.ext.biop.utils.DisplayRangeEstimator;
+import qupath.ext.biop.utils.EntryBatch;
+import qupath.lib.common.ThreadTools;
+import qupath.lib.display.ChannelDisplayInfo;
+import qupath.lib.display.ImageDisplay;
+import qupath.lib.gui.scripting.QPEx;
+import qupath.lib.images.ImageData;
+import qupath.lib.images.servers.ImageChannel;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.images.servers.ImageServerMetadata;
+import qupath.lib.io.GsonTools;
+import qupath.lib.projects.Project;
+import qupath.lib.projects.ProjectImageEntry;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
+
+/**
+ * Applies the channel names, colors, display ranges and selection of a reference image to many project entries.
+ * <p>
+ * Entries are processed on a dedicated pool, sized for I/O rather than for computation. Before any entry is read,
+ * its channel count is checked from the metadata cached in the project, so that entries that cannot match are skipped
+ * without deserializing them. Each matching entry is read once and its server is reused for all checks.
+ * <p>
+ * The display ranges can also be estimated for each entry with a {@link DisplayRangeEstimator}, for images acquired
+ * with different exposures.
+ * <p>
+ * Entries that already have exactly these settings are not saved again, as saving rewrites the whole data file,
+ * including the object hierarchy. The number of bytes written is reported for each saved entry.
+ * <p>
+ * With a {@link DisplaySettingsJournal}, entries that already received the same settings are skipped and every saved
+ * entry is recorded, so that an interrupted run can be resumed. Project changes can also be synchronized in batches
+ * while the entries are processed, rather than only at the end.
+ */
+public class DisplaySettingsBatch {
+
+    final static Logger logger = LoggerFactory.getLogger(DisplaySettingsBatch.class);
+
+    private final ImageData.ImageType imageType;
+    private final int nChannels;
+    private final boolean isRGB;
+    private final List<String> channelNames;
+    private final List<Integer> channelColors;
+    private final List<Float> channelMin;
+    private final List<Float> channelMax;
+    private final Set<String> selectedChannelNames;
+    private final String fingerprint;
+
+    private int nThreads = Math.min(8, Math.max(2, Runtime.getRuntime().availableProcessors()));
+    private ThumbnailUpdater thumbnailUpdater;
+    private DisplaySettingsJournal journal;
+    private DisplayRangeEstimator estimator;
+    private Project<BufferedImage> project;
+    private int syncInterval = 50;
+
+    /**
+     * Capture the settings to apply
+     * @param reference the image whose settings will be copied
+     * @param display the display of the reference image, with its ranges, colors and selected channels
+     */
+    public DisplaySettingsBatch(ImageData<BufferedImage> reference, ImageDisplay display) {
+        ImageServerMetadata metadata = reference.getServer().getMetadata();
+        this.imageType = reference.getImageType();
+        this.nChannels = metadata.getSizeC();
+        this.isRGB = metadata.isRGB();
+        this.channelNames = metadata.getChannels().stream().map(ImageChannel::getName).collect(Collectors.toList());
+
+        var available = display.availableChannels();
+        this.channelMin = available.stream().map(ChannelDisplayInfo::getMinDisplay).collect(Collectors.toList());
+        this.channelMax = available.stream().map(ChannelDisplayInfo::getMaxDisplay).collect(Collectors.toList());
+        this.channelColors = available.stream().map(ChannelDisplayInfo::getColor).collect(Collectors.toList());
+
+        // Also make sure that this command selects the channels that are currently displayed for all entries
+        this.selectedChannelNames = display.selectedChannels().stream().map(ChannelDisplayInfo::getName).collect(Collectors.toSet());
+
+        this.fingerprint = computeFingerprint();
+    }
+
+    // Hash of everything that is applied to an entry, sorted where the order does not matter
+    private String computeFingerprint() {
+        String settings = String.join("\n", imageType.toString(), String.valueOf(nChannels), String.valueOf(isRGB),
+                channelNames.toString(), channelColors.toString(), channelMin.toString(), channelMax.toString(),
+                new TreeSet<>(selectedChannelNames).toString());
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(settings.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(hash, 0, 16);
+        } catch (NoSuchAlgorithmException e) {
+            return Integer.toHexString(settings.hashCode());
+        }
+    }
+
+    /**
+     * @return a short hash identifying the settings applied by this batch
+     */
+    public String getFingerprint() {
+        String settings = fingerprint;
+        if (estimator != null)
+            settings += "-auto-" + estimator.getLowPercentile() + "-" + estimator.getHighPercentile();
+        // Entries done without their thumbnails must be done again when thumbnails are updated
+        if (thumbnailUpdater != null)
+            settings += "-thumbnails";
+        return settings;
+    }
+
+    /**
+     * Estimate the display ranges of each entry from its own pixel values, instead of copying those of the reference
+     * @param estimator the estimator, or null to copy the display ranges of the reference
+     */
+    public void setDisplayRangeEstimator(DisplayRangeEstimator estimator) {
+        this.estimator = estimator;
+    }
+
+    /**
+     * Use a journal to skip the entries that already have these settings and to record the entries that are updated
+     * @param journal the journal, or null to process all entries
+     */
+    public void setJournal(DisplaySettingsJournal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Synchronize the changes of the project regularly while entries are processed, and once at the end
+     * @param project the project the entries belong to, or null to leave synchronization to the caller
+     * @param syncInterval the number of updated entries between two synchronizations
+     */
+    public void setProjectSync(Project<BufferedImage> project, int syncInterval) {
+        this.project = project;
+        this.syncInterval = Math.max(1, syncInterval);
+    }
+
+    /**
+     * Set how many entries are read and written at the same time
+     * @param nThreads the number of threads
+     */
+    public void setThreads(int nThreads) {
+        this.nThreads = Math.max(1, nThreads);
+    }
+
+    /**
+     * Set what to do to update the thumbnail of each modified entry, or null to keep the thumbnails as they are
+     * @param thumbnailUpdater the updater
+     */
+    public void setThumbnailUpdater(ThumbnailUpdater thumbnailUpdater) {
+        this.thumbnailUpdater = thumbnailUpdater;
+    }
+
+    /**
+     * Apply the settings to all the entries with the same image type and number of channels as the reference
+     * @param entries the entries to update
+     * @param cancelled checked before each entry, processing stops when it returns true
+     * @param listener notified after each entry, from the worker threads. Can be null
+     * @return a summary of the processing
+     */
+    public Summary apply(List<ProjectImageEntry<BufferedImage>> entries, BooleanSupplier cancelled, EntryBatch.ProgressListener listener) {
+        Summary summary = new Summary();
+        int total = entries.size();
+        AtomicInteger nDone = new AtomicInteger(0);
+        AtomicInteger nSinceSync = new AtomicInteger(0);
+        String fingerprint = getFingerprint();
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(nThreads, Math.max(1, total)),
+                ThreadTools.createThreadFactory("biop-display-settings-", true));
+        try {
+            List<Future<?>> tasks = new ArrayList<>(total);
+            for (ProjectImageEntry<BufferedImage> entry : entries) {
+                tasks.add(pool.submit(() -> {
+                    // If the cancel button was pressed, stop processing
+                    if (cancelled.getAsBoolean())
+                        return;
+                    try {
+                        if (journal != null && journal.isDone(entry, fingerprint)) {
+                            summary.nSkipped.incrementAndGet();
+                        } else {
+                            Result result = applyTo(entry);
+                            switch (result.status()) {
+                                case UPDATED -> {
+                                    summary.nProcessed.incrementAndGet();
+                                    summary.bytesWritten.addAndGet(result.bytesWritten());
+                                    if (project != null && nSinceSync.incrementAndGet() % syncInterval == 0)
+                                        syncChanges();
+                                }
+                                case UNCHANGED -> summary.nUnchanged.incrementAndGet();
+                                case IGNORED -> summary.nIgnored.incrementAndGet();
+                            }
+                            if (journal != null && result.status() != Status.IGNORED)
+                                journal.markDone(entry, fingerprint);
+                        }
+                    } catch (Exception e) {
+                        summary.nErrors.incrementAndGet();
+                        logger.error("Could not apply display settings to {}: {}", entry.getImageName(), e.getMessage(), e);
+                    } finally {
+                        if (listener != null)
+                            listener.updateProgress(nDone.incrementAndGet(), total, entry);
+                    }
+                }));
+            }
+            for (Future<?> task : tasks)
+                task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            logger.error(e.getMessage(), e);
+        } finally {
+            pool.shutdownNow();
+            if (project != null)
+                syncChanges();
+        }
+        return summary;
+    }
+
+    private void syncChanges() {
+        synchronized (project) {
+            try {
+                project.syncChanges();
+            } catch (IOException e) {
+                logger.error("Could not synchronize project changes: {}", e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * Apply the settings to a single entry
+     * @param entry the entry to update
+     * @return whether the entry was updated, already had these settings or does not match the reference image type or
+     * number of channels, with the number of bytes written
+     * @throws Exception if the entry cannot be read or written
+     */
+    public Result applyTo(ProjectImageEntry<BufferedImage> entry) throws Exception {
+        // Quick check from the metadata stored in the project, without reading the entry. The image type is only known
+        // once the entry is read, so only the number of channels is checked here, with the same rule as below
+        ImageServerMetadata cachedMetadata = getCachedMetadata(entry);
+        if (cachedMetadata != null && cachedMetadata.getSizeC() != nChannels) {
+            logger.debug("Skipping {} based on its cached metadata", entry.getImageName());
+            return new Result(Status.IGNORED, 0);
+        }
+
+        ImageData<BufferedImage> imageData = entry.readImageData();
+        // The server of the image data is the only one we open for this entry
+        ImageServer<BufferedImage> server = imageData.getServer();
+        try {
+            // Check if the image type and number of channels match
+            if (!imageType.equals(imageData.getImageType()) || nChannels != server.getMetadata().getSizeC())
+                return new Result(Status.IGNORED, 0);
+
+            // The display ranges are either those of the reference or estimated for this entry
+            List<Float> targetMin = channelMin;
+            List<Float> targetMax = channelMax;
+            if (estimator != null) {
+                DisplayRangeEstimator.Range[] ranges = estimator.estimate(server);
+                targetMin = new ArrayList<>(channelMin);
+                targetMax = new ArrayList<>(channelMax);
+                for (int i = 0; i < Math.min(ranges.length, targetMin.size()); i++) {
+                    targetMin.set(i, ranges[i].min());
+                    targetMax.set(i, ranges[i].max());
+                }
+            }
+
+            // Nothing to write if the entry already looks like the reference
+            if (hasSameSettings(imageData, targetMin, targetMax)) {
+                logger.debug("Image {} already has these settings.", entry.getImageName());
+                // The thumbnail is a separate file, it can be refreshed without saving the data
+                if (thumbnailUpdater != null)
+                    thumbnailUpdater.updateThumbnail(entry, imageData);
+                return new Result(Status.UNCHANGED, 0);
+            }
+
+            // Required for the channel color to be updated in case we do not change the names!
+            imageData.removeProperty(ImageDisplay.class.getName());
+
+            // Set the names
+            QPEx.setChannelNames(imageData, channelNames.toArray(new String[0]));
+
+            // Set the colors
+            QPEx.setChannelColors(imageData, channelColors.toArray(new Integer[0]));
+
+            // Setting the Display range works only per channel unlike the other two above
+            for (int i = 0; i < targetMin.size(); i++) {
+                QPEx.setChannelDisplayRange(imageData, channelNames.get(i), targetMin.get(i), targetMax.get(i));
+            }
+
+            // Set the selected channels as active or not active
+            ImageDisplay tempDisplay = ImageDisplay.create(imageData);
+            for (ChannelDisplayInfo channel : tempDisplay.availableChannels()) {
+                tempDisplay.setChannelSelected(channel, selectedChannelNames.contains(channel.getName()));
+            }
+
+            if (thumbnailUpdater != null)
+                thumbnailUpdater.updateThumbnail(entry, imageData);
+
+            // Save our hard labor
+            entry.saveImageData(imageData);
+            long bytesWritten = getDataFileSize(entry);
+            logger.info("Image {} updated, {} bytes written.", entry.getImageName(), bytesWritten);
+            return new Result(Status.UPDATED, bytesWritten);
+        } finally {
+            server.close();
+        }
+    }
+
+    /**
+     * Compares the names, colors, ranges and selected channels of an image with the reference, without modifying it
+     */
+    private boolean hasSameSettings(ImageData<BufferedImage> imageData, List<Float> targetMin, List<Float> targetMax) {
+        // Without saved display settings, the ranges are not those of the reference
+        if (imageData.getProperty(ImageDisplay.class.getName()) == null)
+            return false;
+
+        List<String> names = imageData.getServer().getMetadata().getChannels().stream().map(ImageChannel::getName).toList();
+        if (!names.equals(channelNames))
+            return false;
+
+        ImageDisplay display = ImageDisplay.create(imageData);
+        var available = display.availableChannels();
+        if (available.size() != targetMin.size())
+            return false;
+        for (int i = 0; i < available.size(); i++) {
+            ChannelDisplayInfo channel = available.get(i);
+            if (!Objects.equals(channel.getColor(), channelColors.get(i))
+                    || Float.compare(channel.getMinDisplay(), targetMin.get(i)) != 0
+                    || Float.compare(channel.getMaxDisplay(), targetMax.get(i)) != 0)
+                return false;
+        }
+        Set<String> selected = display.selectedChannels().stream().map(ChannelDisplayInfo::getName).collect(Collectors.toSet());
+        return selected.equals(selectedChannelNames);
+    }
+
+    private static long getDataFileSize(ProjectImageEntry<BufferedImage> entry) {
+        try {
+            return Files.size(entry.getEntryPath().resolve("data.qpdata"));
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Returns the server metadata stored with the entry in the project file, if any
+     */
+    static ImageServerMetadata getCachedMetadata(ProjectImageEntry<BufferedImage> entry) {
+        try {
+            JsonElement json = GsonTools.getInstance().toJsonTree(entry.getServerBuilder());
+            if (json != null && json.isJsonObject()) {
+                JsonObject builder = json.getAsJsonObject();
+                if (builder.has("metadata") && builder.get("metadata").isJsonObject())
+                    return GsonTools.getInstance().fromJson(builder.get("metadata"), ImageServerMetadata.class);
+            }
+        } catch (Exception e) {
+            logger.debug("No cached metadata for {}: {}", entry.getImageName(), e.getMessage());
+        }
+        return null;
+    }
+
+    /**
+     * What happened to an entry
+     */
+    public enum Status {
+        /** The settings were applied and the entry saved */
+        UPDATED,
+        /** The entry already had these settings, nothing was written */
+        UNCHANGED,
+        /** The entry does not have the image type or number of channels of the reference */
+        IGNORED
+    }
+
+    /**
+     * Outcome of {@link #applyTo(ProjectImageEntry)}
+     * @param status what happened to the entry
+     * @param bytesWritten the size of the data file that was written, 0 if nothing was written
+     */
+    public record Result(Status status, long bytesWritten) {}
+
+    /**
+     * Updates the thumbnail of an entry once its display settings are applied
+     */
+    public interface ThumbnailUpdater {
+        void updateThumbnail(ProjectImageEntry<BufferedImage> entry, ImageData<BufferedImage> imageData) throws Exception;
+    }
+
+    /**
+     * Counts of processed, unchanged, ignored, skipped and failed entries, and the number of bytes written
+     */
+    public static class Summary {
+        private final AtomicInteger nProcessed = new AtomicInteger(0);
+        private final AtomicInteger nIgnored = new AtomicInteger(0);
+        private final AtomicInteger nSkipped = new AtomicInteger(0);
+        private final AtomicInteger nUnchanged = new AtomicInteger(0);
+        private final AtomicLong bytesWritten = new AtomicLong(0);
+        private final AtomicInteger nErrors = new AtomicInteger(0);
+
+        public int getProcessed() {
+            return nProcessed.get();
+        }
+
+        public int getIgnored() {
+            return nIgnored.get();
+        }
+
+        /**
+         * @return the number of entries the journal lists as already up to date
+         */
+        public int getSkipped() {
+            return nSkipped.get();
+        }
+
+        /**
+         * @return the number of entries that already had these settings and were not saved again
+         */
+        public int getUnchanged() {
+            return nUnchanged.get();
+        }
+
+        /**
+         * @return the total size of the data files that were written
+         */
+        public long getBytesWritten() {
+            return bytesWritten.get();
+        }
+
+        public int getErrors() {
+            return nErrors.get();
+        }
+    }
+}
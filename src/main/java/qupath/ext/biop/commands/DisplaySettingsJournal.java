@@ -0,0 +1,157 @@
+package qupath.ext.biop.commands;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.projects.Project;
+import qupath.lib.projects.ProjectImageEntry;
+import qupath.lib.projects.Projects;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Records which project entries already received a given set of display settings, so that an interrupted run of
+ * {@link DisplaySettingsBatch} can be resumed without processing them again.
+ * <p>
+ * Each line of the journal contains the ID of an entry, the fingerprint of the settings applied to it and the last
+ * modification time of its data file after saving. A line is written and flushed as soon as an entry is saved, so the
+ * journal survives a crash. An entry is considered done if its last line has the same fingerprint and its data file
+ * was not modified since. When the journal is opened, it is rewritten with only the last line of each entry.
+ */
+public class DisplaySettingsJournal implements Closeable {
+
+    final private static Logger logger = LoggerFactory.getLogger(DisplaySettingsJournal.class);
+
+    private final File file;
+    private final Map<String, Record> records = new ConcurrentHashMap<>();
+    private BufferedWriter writer;
+
+    /**
+     * Open a journal, reading the entries it already contains
+     * @param file the journal file, created when the first entry is recorded
+     * @throws IOException if the existing journal cannot be read
+     */
+    public DisplaySettingsJournal(File file) throws IOException {
+        this.file = file;
+        if (file.exists()) {
+            int nLines = 0;
+            try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    nLines++;
+                    String[] parts = line.split("\t");
+                    // A line cut by a crash is ignored, the entry will simply be processed again
+                    if (parts.length != 3)
+                        continue;
+                    try {
+                        records.put(parts[0], new Record(parts[1], Long.parseLong(parts[2])));
+                    } catch (NumberFormatException e) {
+                        logger.debug("Ignoring journal line '{}'", line);
+                    }
+                }
+            }
+            logger.info("Journal {} has {} entries", file.getName(), records.size());
+            if (nLines > records.size())
+                compact();
+        }
+    }
+
+    /**
+     * Rewrite the journal with only the last record of each entry, so that it does not grow with every run
+     */
+    private void compact() {
+        Path path = file.toPath().toAbsolutePath();
+        Path temp = null;
+        try {
+            temp = Files.createTempFile(path.getParent(), file.getName(), ".tmp");
+            try (BufferedWriter compacted = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                for (Map.Entry<String, Record> entry : records.entrySet()) {
+                    compacted.write(toLine(entry.getKey(), entry.getValue()));
+                    compacted.newLine();
+                }
+            }
+            try {
+                Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            // The journal is still complete, only longer than needed
+            logger.warn("Could not compact journal {}: {}", file.getName(), e.getLocalizedMessage());
+            try {
+                if (temp != null)
+                    Files.deleteIfExists(temp);
+            } catch (IOException ex) {
+                logger.debug("Could not delete {}: {}", temp, ex.getLocalizedMessage());
+            }
+        }
+    }
+
+    /**
+     * @param project the project
+     * @return the default journal file of a project, in its base directory
+     */
+    public static File getDefaultFile(Project<?> project) {
+        return new File(Projects.getBaseDirectory(project), "display_settings.journal");
+    }
+
+    /**
+     * @param entry the entry to check
+     * @param fingerprint the fingerprint of the settings, see {@link DisplaySettingsBatch#getFingerprint()}
+     * @return true if the settings were already applied to the entry and it was not modified since
+     */
+    public boolean isDone(ProjectImageEntry<?> entry, String fingerprint) {
+        Record record = records.get(entry.getID());
+        return record != null && record.fingerprint.equals(fingerprint) && record.lastModified == getLastModified(entry);
+    }
+
+    /**
+     * Record that the settings were applied to an entry, once it is saved
+     * @param entry the entry that was saved
+     * @param fingerprint the fingerprint of the settings that were applied
+     * @throws IOException if the journal cannot be written
+     */
+    public synchronized void markDone(ProjectImageEntry<?> entry, String fingerprint) throws IOException {
+        Record record = new Record(fingerprint, getLastModified(entry));
+        if (writer == null)
+            writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        writer.write(toLine(entry.getID(), record));
+        writer.newLine();
+        writer.flush();
+        records.put(entry.getID(), record);
+    }
+
+    private static String toLine(String id, Record record) {
+        return id + "\t" + record.fingerprint + "\t" + record.lastModified;
+    }
+
+    private static long getLastModified(ProjectImageEntry<?> entry) {
+        try {
+            Path data = entry.getEntryPath().resolve("data.qpdata");
+            return Files.exists(data) ? Files.getLastModifiedTime(data).toMillis() : -1;
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (writer != null) {
+            writer.close();
+            writer = null;
+        }
+    }
+
+    private record Record(String fingerprint, long lastModified) {}
+}
@@ -0,0 +1,285 @@
+package qupath.ext.biop.ml;
+
+import qupath.lib.objects.classes.PathClass;
+
+import java.util.List;
+
+/**
+ * Dense confusion matrix over a fixed list of classes, stored as a flat {@code long[]}.
+ * Rows are the ground truth classes and columns the predicted classes, in the order of {@link #getClasses()}.
+ * <p>
+ * All the metrics are computed in a single pass over the matrix by {@link #computeMetrics()}.
+ * Ratios that are undefined because their denominator is 0 (e.g. the precision of a class that was never predicted)
+ * are reported as 0 rather than NaN.
+ */
+public class ConfusionMatrix {
+
+    private final List<PathClass> classes;
+    private final int nClasses;
+    private final long[] counts;
+
+    /**
+     * Create an empty confusion matrix
+     * @param classes the classes, which define the row and column order
+     */
+    public ConfusionMatrix(List<PathClass> classes) {
+        this.classes = List.copyOf(classes);
+        this.nClasses = classes.size();
+        this.counts = new long[nClasses * nClasses];
+    }
+
+    /**
+     * @return the classes of this matrix, in row and column order
+     */
+    public List<PathClass> getClasses() {
+        return classes;
+    }
+
+    /**
+     * Add one match between a ground truth class and a predicted class
+     * @param gtIndex the index of the ground truth class
+     * @param predIndex the index of the predicted class
+     */
+    public void increment(int gtIndex, int predIndex) {
+        counts[gtIndex * nClasses + predIndex]++;
+    }
+
+    /**
+     * Add several matches between a ground truth class and a predicted class
+     * @param gtIndex the index of the ground truth class
+     * @param predIndex the index of the predicted class
+     * @param count the number of matches to add
+     */
+    public void add(int gtIndex, int predIndex, long count) {
+        counts[gtIndex * nClasses + predIndex] += count;
+    }
+
+    /**
+     * Add all the counts of another matrix with the same classes to this one
+     * @param other the matrix to add
+     */
+    public void add(ConfusionMatrix other) {
+        if (!other.classes.equals(classes))
+            throw new IllegalArgumentException("Cannot add confusion matrices with different classes");
+        for (int i = 0; i < counts.length; i++)
+            counts[i] += other.counts[i];
+    }
+
+    /**
+     * @param gtIndex the index of the ground truth class
+     * @param predIndex the index of the predicted class
+     * @return the number of objects of the ground truth class that were predicted as the predicted class
+     */
+    public long getCount(int gtIndex, int predIndex) {
+        return counts[gtIndex * nClasses + predIndex];
+    }
+
+    /**
+     * @return the total number of matches
+     */
+    public long getTotal() {
+        long total = 0;
+        for (long count : counts)
+            total += count;
+        return total;
+    }
+
+    /**
+     * @param classIndex the index of the class
+     * @return the number of objects of this class that were correctly predicted
+     */
+    public long getTP(int classIndex) {
+        return getCount(classIndex, classIndex);
+    }
+
+    /**
+     * @param classIndex the index of the class
+     * @return the number of objects predicted as this class that belong to another class
+     */
+    public long getFP(int classIndex) {
+        long sum = 0;
+        for (int gt = 0; gt < nClasses; gt++)
+            sum += getCount(gt, classIndex);
+        return sum - getTP(classIndex);
+    }
+
+    /**
+     * @param classIndex the index of the class
+     * @return the number of objects of this class that were predicted as another class
+     */
+    public long getFN(int classIndex) {
+        long sum = 0;
+        for (int pred = 0; pred < nClasses; pred++)
+            sum += getCount(classIndex, pred);
+        return sum - getTP(classIndex);
+    }
+
+    /**
+     * Compute all the metrics of this matrix in a single pass
+     * @return the per-class and summary metrics
+     */
+    public Metrics computeMetrics() {
+        long[] tp = new long[nClasses];
+        long[] gtTotals = new long[nClasses];
+        long[] predTotals = new long[nClasses];
+        long total = 0;
+        for (int gt = 0; gt < nClasses; gt++) {
+            int row = gt * nClasses;
+            for (int pred = 0; pred < nClasses; pred++) {
+                long count = counts[row + pred];
+                gtTotals[gt] += count;
+                predTotals[pred] += count;
+                total += count;
+            }
+            tp[gt] = counts[row + gt];
+        }
+        return new Metrics(tp, gtTotals, predTotals, total);
+    }
+
+    /**
+     * Metrics derived from a confusion matrix
+     */
+    public static class Metrics {
+
+        private final long[] tp, fp, fn;
+        private final double[] precision, recall, f1;
+        private final long tpTotal, fpTotal, fnTotal;
+        private final double macroPrecision, macroRecall, macroF1;
+        private final double microPrecision, microRecall, microF1;
+        private final double accuracy, balancedAccuracy, kappa;
+
+        private Metrics(long[] tp, long[] gtTotals, long[] predTotals, long total) {
+            int n = tp.length;
+            this.tp = tp;
+            this.fp = new long[n];
+            this.fn = new long[n];
+            this.precision = new double[n];
+            this.recall = new double[n];
+            this.f1 = new double[n];
+
+            long sumTP = 0, sumFP = 0, sumFN = 0;
+            double sumPrecision = 0, sumRecall = 0, sumF1 = 0, sumRecallWithSupport = 0, chance = 0;
+            int nPresent = 0, nWithSupport = 0;
+            for (int c = 0; c < n; c++) {
+                fp[c] = predTotals[c] - tp[c];
+                fn[c] = gtTotals[c] - tp[c];
+                precision[c] = divide(tp[c], predTotals[c]);
+                recall[c] = divide(tp[c], gtTotals[c]);
+                f1[c] = divide(2 * precision[c] * recall[c], precision[c] + recall[c]);
+
+                sumTP += tp[c];
+                sumFP += fp[c];
+                sumFN += fn[c];
+                chance += (double) gtTotals[c] * predTotals[c];
+
+                // Classes that never appear do not count towards the macro averages
+                if (gtTotals[c] > 0 || predTotals[c] > 0) {
+                    nPresent++;
+                    sumPrecision += precision[c];
+                    sumRecall += recall[c];
+                    sumF1 += f1[c];
+                }
+                if (gtTotals[c] > 0) {
+                    nWithSupport++;
+                    sumRecallWithSupport += recall[c];
+                }
+            }
+            this.tpTotal = sumTP;
+            this.fpTotal = sumFP;
+            this.fnTotal = sumFN;
+
+            this.macroPrecision = divide(sumPrecision, nPresent);
+            this.macroRecall = divide(sumRecall, nPresent);
+            this.macroF1 = divide(sumF1, nPresent);
+
+            this.microPrecision = divide(sumTP, sumTP + sumFP);
+            this.microRecall = divide(sumTP, sumTP + sumFN);
+            this.microF1 = divide(2 * microPrecision * microRecall, microPrecision + microRecall);
+
+            this.accuracy = divide(sumTP, total);
+            this.balancedAccuracy = divide(sumRecallWithSupport, nWithSupport);
+
+            double expected = divide(chance, (double) total * total);
+            this.kappa = divide(accuracy - expected, 1 - expected);
+        }
+
+        private static double divide(double numerator, double denominator) {
+            return denominator == 0 ? 0 : numerator / denominator;
+        }
+
+        public long getTP(int classIndex) {
+            return tp[classIndex];
+        }
+
+        public long getFP(int classIndex) {
+            return fp[classIndex];
+        }
+
+        public long getFN(int classIndex) {
+            return fn[classIndex];
+        }
+
+        public double getPrecision(int classIndex) {
+            return precision[classIndex];
+        }
+
+        public double getRecall(int classIndex) {
+            return recall[classIndex];
+        }
+
+        public double getF1(int classIndex) {
+            return f1[classIndex];
+        }
+
+        public long getTP() {
+            return tpTotal;
+        }
+
+        public long getFP() {
+            return fpTotal;
+        }
+
+        public long getFN() {
+            return fnTotal;
+        }
+
+        public double getMacroPrecision() {
+            return macroPrecision;
+        }
+
+        public double getMacroRecall() {
+            return macroRecall;
+        }
+
+        public double getMacroF1() {
+            return macroF1;
+        }
+
+        public double getMicroPrecision() {
+            return microPrecision;
+        }
+
+        public double getMicroRecall() {
+            return microRecall;
+        }
+
+        public double getMicroF1() {
+            return microF1;
+        }
+
+        public double getAccuracy() {
+            return accuracy;
+        }
+
+        public double getBalancedAccuracy() {
+            return balancedAccuracy;
+        }
+
+        /**
+         * @return Cohen's kappa, the agreement between ground truth and prediction corrected for chance
+         */
+        public double getKappa() {
+            return kappa;
+        }
+    }
+}
@@ -0,0 +1,287 @@
+package qupath.ext.biop.ml;
+
+import org.bytedeco.javacpp.indexer.FloatIndexer;
+import org.bytedeco.javacpp.indexer.IntIndexer;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.bytedeco.opencv.opencv_ml.KNearest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.classifiers.object.ObjectClassifier;
+import qupath.lib.common.GeneralTools;
+import qupath.lib.objects.PathObjectFilter;
+import qupath.lib.objects.classes.PathClass;
+import qupath.opencv.ml.OpenCVClassifiers;
+import qupath.opencv.ml.objects.OpenCVMLClassifier;
+import qupath.opencv.ml.objects.features.FeatureExtractor;
+import qupath.opencv.ml.objects.features.FeatureExtractors;
+import qupath.opencv.ml.objects.features.Normalizer;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import static org.bytedeco.opencv.global.opencv_core.CV_32FC1;
+import static org.bytedeco.opencv.global.opencv_core.CV_32SC1;
+
+/**
+ * Builds an object classifier from a k-means clustering of measurements.
+ * <p>
+ * Clusters are found with mini-batch k-means on the detections of a {@link MeasurementSample}: centers are seeded with
+ * k-means++ and then moved towards small random batches of detections, which are assigned to their closest center in
+ * parallel. Measurements can be normalized with the mean and standard deviation of all the detections of the sample.
+ * <p>
+ * The result is a standard nearest center classifier, which can be saved to the project and applied to any image.
+ * With a single measurement, clusters are sorted by increasing center, so the names can be given from low to high.
+ * <pre>
+ * def builder = new KMeansClassifierBuilder(["Solidity", "Max diameter µm"], ["A", "B", "C"])
+ * def classifier = builder.build(sample)
+ * </pre>
+ */
+public class KMeansClassifierBuilder {
+
+    final private static Logger logger = LoggerFactory.getLogger(KMeansClassifierBuilder.class);
+
+    private final List<String> measurements;
+    private final List<String> names;
+    private boolean normalize = true;
+    private int maxIterations = 1000;
+    private int batchSize = 4096;
+    private long seed = 42;
+
+    private double[][] centers;
+
+    /**
+     * @param measurements the measurements to cluster
+     * @param names the names of the classes, one per cluster
+     */
+    public KMeansClassifierBuilder(List<String> measurements, List<String> names) {
+        if (names.isEmpty())
+            throw new IllegalArgumentException("At least one class name is needed");
+        this.measurements = List.copyOf(measurements);
+        this.names = List.copyOf(names);
+    }
+
+    /**
+     * @param normalize true to scale each measurement to zero mean and unit standard deviation before clustering. Default is true
+     */
+    public void setNormalize(boolean normalize) {
+        this.normalize = normalize;
+    }
+
+    /**
+     * @param maxIterations the maximum number of batches. Default is 1000
+     */
+    public void setMaxIterations(int maxIterations) {
+        this.maxIterations = Math.max(1, maxIterations);
+    }
+
+    /**
+     * @param batchSize the number of detections in each batch. Default is 4096
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    /**
+     * @param seed the seed of the random choices, so that results can be reproduced. Default is 42
+     */
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    /**
+     * Cluster the detections and create the classifier
+     * @param sample measurements that include this builder's measurements. Detections with a missing value are ignored
+     * @return the classifier
+     */
+    public ObjectClassifier<BufferedImage> build(MeasurementSample sample) {
+        int d = measurements.size();
+        int k = names.size();
+        float[] all = sample.getCompleteRows();
+        // Measurements in the order of this builder
+        int[] columns = measurements.stream().mapToInt(sample.getMeasurements()::indexOf).toArray();
+        if (Arrays.stream(columns).anyMatch(c -> c < 0))
+            throw new IllegalArgumentException("The sample does not contain all of " + measurements);
+        int width = sample.getMeasurements().size();
+        int n = all.length / width;
+        if (n < k)
+            throw new IllegalArgumentException("Cannot find " + k + " clusters in " + n + " detections");
+
+        double[] offsets = new double[d];
+        double[] scales = new double[d];
+        for (int j = 0; j < d; j++) {
+            double sd = sample.getStdDev(measurements.get(j));
+            offsets[j] = normalize ? -sample.getMean(measurements.get(j)) : 0;
+            scales[j] = normalize && sd > 0 ? 1 / sd : 1;
+        }
+        double[] points = new double[n * d];
+        IntStream.range(0, n).parallel().forEach(i -> {
+            for (int j = 0; j < d; j++)
+                points[i * d + j] = (all[i * width + columns[j]] + offsets[j]) * scales[j];
+        });
+
+        long start = System.currentTimeMillis();
+        centers = cluster(points, n, d, k);
+        if (d == 1)
+            Arrays.sort(centers, Comparator.comparingDouble(c -> c[0]));
+        logger.info("K-means of {} detections on {} in {} ms, centers {}", n, measurements,
+                System.currentTimeMillis() - start, Arrays.deepToString(centers));
+
+        return createClassifier(offsets, scales);
+    }
+
+    private double[][] cluster(double[] points, int n, int d, int k) {
+        Random random = new Random(seed);
+        double[][] c = initialize(points, n, d, k, random);
+        long[] counts = new long[k];
+        int b = Math.min(batchSize, n);
+        int[] batch = new int[b];
+        int[] assigned = new int[b];
+
+        for (int iteration = 0; iteration < maxIterations; iteration++) {
+            for (int i = 0; i < b; i++)
+                batch[i] = random.nextInt(n);
+            double[][] current = c;
+            IntStream.range(0, b).parallel().forEach(i -> assigned[i] = nearest(points, batch[i], d, current));
+
+            // Move each center towards its detections, by less and less as it gets more of them
+            double shift = 0;
+            for (int i = 0; i < b; i++) {
+                double[] center = c[assigned[i]];
+                double rate = 1.0 / ++counts[assigned[i]];
+                for (int j = 0; j < d; j++) {
+                    double delta = rate * (points[batch[i] * d + j] - center[j]);
+                    center[j] += delta;
+                    shift += delta * delta;
+                }
+            }
+            if (shift / k < 1e-12)
+                break;
+        }
+        return c;
+    }
+
+    /**
+     * k-means++ seeding, on a subset of the points
+     */
+    private static double[][] initialize(double[] points, int n, int d, int k, Random random) {
+        int m = Math.min(n, 10_000);
+        int[] subset = m == n ? IntStream.range(0, n).toArray() : random.ints(m, 0, n).toArray();
+        double[][] centers = new double[k][];
+        centers[0] = point(points, subset[random.nextInt(m)], d);
+        double[] distances = new double[m];
+        Arrays.fill(distances, Double.POSITIVE_INFINITY);
+        for (int c = 1; c < k; c++) {
+            double total = 0;
+            for (int i = 0; i < m; i++) {
+                distances[i] = Math.min(distances[i], distanceSq(points, subset[i], d, centers[c - 1]));
+                total += distances[i];
+            }
+            // Pick the next center with a probability proportional to its squared distance
+            double target = random.nextDouble() * total;
+            int chosen = m - 1;
+            for (int i = 0; i < m; i++) {
+                target -= distances[i];
+                if (target < 0) {
+                    chosen = i;
+                    break;
+                }
+            }
+            centers[c] = point(points, subset[chosen], d);
+        }
+        return centers;
+    }
+
+    private static double[] point(double[] points, int i, int d) {
+        return Arrays.copyOfRange(points, i * d, i * d + d);
+    }
+
+    private static int nearest(double[] points, int i, int d, double[][] centers) {
+        int best = 0;
+        double bestDistance = Double.POSITIVE_INFINITY;
+        for (int c = 0; c < centers.length; c++) {
+            double distance = distanceSq(points, i, d, centers[c]);
+            if (distance < bestDistance) {
+                bestDistance = distance;
+                best = c;
+            }
+        }
+        return best;
+    }
+
+    private static double distanceSq(double[] points, int i, int d, double[] center) {
+        double sum = 0;
+        for (int j = 0; j < d; j++) {
+            double diff = points[i * d + j] - center[j];
+            sum += diff * diff;
+        }
+        return sum;
+    }
+
+    /**
+     * One training sample per center for a nearest neighbor model, with the same normalization as the clustering
+     */
+    private ObjectClassifier<BufferedImage> createClassifier(double[] offsets, double[] scales) {
+        int k = centers.length;
+        int d = measurements.size();
+        Mat samples = new Mat(k, d, CV_32FC1);
+        Mat targets = new Mat(k, 1, CV_32SC1);
+        try (FloatIndexer sampleIndexer = samples.createIndexer(); IntIndexer targetIndexer = targets.createIndexer()) {
+            for (int c = 0; c < k; c++) {
+                for (int j = 0; j < d; j++)
+                    sampleIndexer.put(c, j, (float) centers[c][j]);
+                targetIndexer.put(c, 0, c);
+            }
+        }
+        // With one sample per center, the default of 10 neighbors would vote over all centers and always give the same class
+        KNearest knn = KNearest.create();
+        knn.setDefaultK(1);
+        knn.setIsClassifier(true);
+        var model = OpenCVClassifiers.wrapStatModel(knn);
+        model.train(model.createTrainData(samples, targets, null, false));
+        checkCenters(knn, samples, k);
+
+        FeatureExtractor<BufferedImage> extractor = FeatureExtractors.createMeasurementListFeatureExtractor(measurements);
+        if (normalize)
+            extractor = FeatureExtractors.createNormalizingFeatureExtractor(extractor, Normalizer.createNormalizer(offsets, scales, 0));
+
+        List<PathClass> pathClasses = new ArrayList<>(k);
+        for (String name : names)
+            pathClasses.add(PathClass.fromString(name));
+        return OpenCVMLClassifier.create(model, PathObjectFilter.DETECTIONS_ALL, extractor, pathClasses);
+    }
+
+    /**
+     * Each center must be given its own class, otherwise the classifier would discard the clustering
+     */
+    private static void checkCenters(KNearest knn, Mat samples, int k) {
+        Mat results = new Mat();
+        knn.predict(samples, results, 0);
+        try (FloatIndexer indexer = results.createIndexer()) {
+            for (int c = 0; c < k; c++) {
+                if (Math.round(indexer.get(c, 0)) != c)
+                    throw new IllegalStateException("The classifier gives center " + c + " the class of center " + Math.round(indexer.get(c, 0)));
+            }
+        } finally {
+            results.close();
+        }
+    }
+
+    /**
+     * @return the centers of the last clustering, normalized if {@link #setNormalize(boolean)} is true, in the order of the names
+     */
+    public double[][] getCenters() {
+        return centers;
+    }
+
+    /**
+     * @return a name to save the classifier with
+     */
+    public String getName() {
+        return GeneralTools.stripInvalidFilenameChars("K-Means " + String.join(" and ", names) + " on " + String.join(", ", measurements));
+    }
+}
@@ -0,0 +1,110 @@
+package qupath.ext.biop.ml;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.classifiers.object.ObjectClassifier;
+import qupath.lib.classifiers.object.ObjectClassifiers;
+import qupath.lib.common.GeneralTools;
+import qupath.lib.objects.classes.PathClass;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Builds a single measurement classifier whose threshold is the median plus k times the standard deviation estimated
+ * from the Median Absolute Deviation (MAD), see
+ * <a href="https://petebankhead.github.io/qupath/tips/2018/08/06/multichannel-fluorescence.html#one-method-for-determining-a-threshold">this post</a>.
+ * <p>
+ * The statistics come from a {@link MeasurementSample}, so the same threshold can be computed from all the images of
+ * a project. Objects at or above the threshold get the class "[pathClass]+", the others "[pathClass]-".
+ * <pre>
+ * def builder = new MADClassifierBuilder("CY3: Mean", "CY3", 3)
+ * def classifier = builder.build(sample)
+ * getProject().getObjectClassifiers().put(builder.getName(), classifier)
+ * </pre>
+ */
+public class MADClassifierBuilder {
+
+    final private static Logger logger = LoggerFactory.getLogger(MADClassifierBuilder.class);
+
+    // Converts the MAD to a standard deviation, for normally distributed values
+    private static final double MAD_TO_SIGMA = 0.6745;
+
+    private final String measurement;
+    private final String pathClass;
+    private final double k;
+    private double threshold = Double.NaN;
+
+    /**
+     * @param measurement the measurement to threshold
+     * @param pathClass the base name of the classes
+     * @param k the number of standard deviations above the median
+     */
+    public MADClassifierBuilder(String measurement, String pathClass, double k) {
+        this.measurement = measurement;
+        this.pathClass = pathClass;
+        this.k = k;
+    }
+
+    /**
+     * Compute the threshold and create the classifier
+     * @param sample measurements that include this builder's measurement
+     * @return the classifier
+     */
+    public ObjectClassifier<BufferedImage> build(MeasurementSample sample) {
+        float[] values = sample.getValues(measurement);
+        double median = MeasurementSample.median(values, values.length);
+
+        // Median of the absolute deviations, converted to a standard deviation
+        for (int i = 0; i < values.length; i++)
+            values[i] = (float) Math.abs(values[i] - median);
+        double sigma = MeasurementSample.median(values, values.length) / MAD_TO_SIGMA;
+
+        threshold = median + k * sigma;
+        logger.info("New MAD classifier '{}' based on '{}' and k = {} : threshold = {}", pathClass, measurement, k, threshold);
+
+        return new ObjectClassifiers.ClassifyByMeasurementBuilder<BufferedImage>(measurement)
+                .threshold(threshold)
+                .aboveEquals(PathClass.fromString(pathClass + "+"))
+                .below(PathClass.fromString(pathClass + "-"))
+                .build();
+    }
+
+    /**
+     * @return the threshold of the last classifier that was built, or NaN
+     */
+    public double getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * @return the threshold of the last classifier that was built as a rule, to apply it to many entries with a
+     * {@link ThresholdClassifierBatch}
+     */
+    public ThresholdClassifierBatch.Rule getRule() {
+        if (Double.isNaN(threshold))
+            throw new IllegalStateException("The classifier has not been built");
+        return new ThresholdClassifierBatch.Rule(measurement, threshold,
+                PathClass.fromString(pathClass + "+"), PathClass.fromString(pathClass + "-"));
+    }
+
+    /**
+     * @return the measurement to threshold
+     */
+    public String getMeasurement() {
+        return measurement;
+    }
+
+    /**
+     * @return the base name of the classes
+     */
+    public String getPathClass() {
+        return pathClass;
+    }
+
+    /**
+     * @return a name to save the classifier with
+     */
+    public String getName() {
+        return GeneralTools.stripInvalidFilenameChars(pathClass + " - MAD k=" + GeneralTools.formatNumber(k, 2));
+    }
+}
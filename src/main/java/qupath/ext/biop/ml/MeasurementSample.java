@@ -0,0 +1,362 @@
+package qupath.ext.biop.ml;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.ext.biop.utils.EntryBatch;
+import qupath.lib.measurements.MeasurementList;
+import qupath.lib.objects.PathObject;
+import qupath.lib.projects.ProjectImageEntry;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Measurements of the detections of many images, gathered into primitive columns to build classifiers from the
+ * statistics of a whole project.
+ * <p>
+ * The mean and standard deviation of each measurement are computed exactly over all detections. The values themselves
+ * are kept for at most {@link #setMaxRows(int)} detections, so memory stays bounded however large the project is. Below
+ * that number all values are kept and medians and quantiles are exact. Above it, a uniform random subset of detections
+ * is kept. Each detection is given a pseudo-random priority derived from its ID and the detections with the smallest
+ * priorities are kept, so the subset does not depend on the order in which images are read.
+ * <pre>
+ * def sample = new MeasurementSample(["CY3: Mean", "CY5: Mean"])
+ * sample.setParallelism(4)
+ * sample.addEntries(getProject().getImageList())
+ * </pre>
+ */
+public class MeasurementSample {
+
+    final private static Logger logger = LoggerFactory.getLogger(MeasurementSample.class);
+
+    private final List<String> measurements;
+    private final int nMeasurements;
+    private int maxRows = 5_000_000;
+    private final EntryBatch batch = new EntryBatch("measurement-sample");
+
+    // Exact statistics of each measurement, merged as images are added
+    private final long[] counts;
+    private final double[] means;
+    private final double[] m2s;
+
+    private Rows rows;
+    private long nObjects;
+
+    /**
+     * @param measurements the names of the measurements to gather
+     */
+    public MeasurementSample(List<String> measurements) {
+        this.measurements = List.copyOf(measurements);
+        this.nMeasurements = measurements.size();
+        this.counts = new long[nMeasurements];
+        this.means = new double[nMeasurements];
+        this.m2s = new double[nMeasurements];
+    }
+
+    /**
+     * Set the maximum number of detections whose values are kept. Default is 5 000 000.
+     * Should be set before adding images.
+     * @param maxRows the number of detections
+     */
+    public void setMaxRows(int maxRows) {
+        this.maxRows = Math.max(1, maxRows);
+    }
+
+    /**
+     * Set how many entries can be read at the same time by {@link #addEntries(Collection)}. Default is 1.
+     * @param parallelism the number of entries read concurrently, see {@link EntryBatch#setParallelism(int)}
+     */
+    public void setParallelism(int parallelism) {
+        batch.setParallelism(parallelism);
+    }
+
+    /**
+     * @param memoryBudgetMB the approximate memory budget, in megabytes, see {@link EntryBatch#setMemoryBudgetMB(int)}
+     */
+    public void setMemoryBudgetMB(int memoryBudgetMB) {
+        batch.setMemoryBudgetMB(memoryBudgetMB);
+    }
+
+    /**
+     * @return the names of the measurements, in column order
+     */
+    public List<String> getMeasurements() {
+        return measurements;
+    }
+
+    /**
+     * Add the measurements of objects, e.g. the detections of the current image
+     * @param pathObjects the objects
+     */
+    public void add(Collection<? extends PathObject> pathObjects) {
+        Rows local = new Rows(maxRows, nMeasurements);
+        long[] localCounts = new long[nMeasurements];
+        double[] localMeans = new double[nMeasurements];
+        double[] localM2s = new double[nMeasurements];
+
+        float[] row = new float[nMeasurements];
+        for (PathObject pathObject : pathObjects) {
+            MeasurementList list = pathObject.getMeasurementList();
+            for (int m = 0; m < nMeasurements; m++) {
+                double value = list.get(measurements.get(m));
+                row[m] = (float) value;
+                if (Double.isNaN(value))
+                    continue;
+                // Welford's update
+                long n = ++localCounts[m];
+                double delta = value - localMeans[m];
+                localMeans[m] += delta / n;
+                localM2s[m] += delta * (value - localMeans[m]);
+            }
+            local.offer(priority(pathObject.getID()), row);
+        }
+        merge(local, localCounts, localMeans, localM2s);
+    }
+
+    /**
+     * Add the detections of project entries. Only the hierarchies are read, and entries are not modified.
+     * @param entries the entries
+     */
+    public void addEntries(Collection<ProjectImageEntry<BufferedImage>> entries) {
+        batch.run(entries, entry -> add(entry.readHierarchy().getDetectionObjects()));
+        logger.info("{} detections gathered, {} kept", getCount(), getRowCount());
+    }
+
+    private synchronized void merge(Rows local, long[] localCounts, double[] localMeans, double[] localM2s) {
+        for (int m = 0; m < nMeasurements; m++) {
+            // Chan et al. parallel combination of the mean and the sum of squared differences
+            long n = counts[m] + localCounts[m];
+            if (n == 0)
+                continue;
+            double delta = localMeans[m] - means[m];
+            means[m] += delta * localCounts[m] / n;
+            m2s[m] += localM2s[m] + delta * delta * counts[m] * localCounts[m] / n;
+            counts[m] = n;
+        }
+        nObjects += local.total;
+        if (rows == null) {
+            rows = local;
+        } else {
+            float[] row = new float[nMeasurements];
+            for (int i = 0; i < local.size; i++) {
+                System.arraycopy(local.values, i * nMeasurements, row, 0, nMeasurements);
+                rows.offer(local.priorities[i], row);
+            }
+        }
+    }
+
+    /**
+     * @return the number of detections added, including those whose values were not kept
+     */
+    public synchronized long getCount() {
+        return nObjects;
+    }
+
+    /**
+     * @return the number of detections whose values are kept
+     */
+    public synchronized int getRowCount() {
+        return rows == null ? 0 : rows.size;
+    }
+
+    /**
+     * @param measurement the name of a measurement
+     * @return the mean of all its values that are not NaN
+     */
+    public synchronized double getMean(String measurement) {
+        int m = indexOf(measurement);
+        return counts[m] == 0 ? Double.NaN : means[m];
+    }
+
+    /**
+     * @param measurement the name of a measurement
+     * @return the sample standard deviation of all its values that are not NaN
+     */
+    public synchronized double getStdDev(String measurement) {
+        int m = indexOf(measurement);
+        return counts[m] < 2 ? Double.NaN : Math.sqrt(m2s[m] / (counts[m] - 1));
+    }
+
+    /**
+     * @param measurement the name of a measurement
+     * @return a new array with the kept values of the measurement that are not NaN, in no particular order
+     */
+    public synchronized float[] getValues(String measurement) {
+        int m = indexOf(measurement);
+        if (rows == null)
+            return new float[0];
+        float[] values = new float[rows.size];
+        int n = 0;
+        for (int i = 0; i < rows.size; i++) {
+            float value = rows.values[i * nMeasurements + m];
+            if (!Float.isNaN(value))
+                values[n++] = value;
+        }
+        return n == values.length ? values : Arrays.copyOf(values, n);
+    }
+
+    /**
+     * @return a new array with the kept detections that have a value for all measurements, one row of
+     * {@link #getMeasurements()} values after the other
+     */
+    public synchronized float[] getCompleteRows() {
+        if (rows == null)
+            return new float[0];
+        float[] values = new float[rows.size * nMeasurements];
+        int n = 0;
+        for (int i = 0; i < rows.size; i++) {
+            boolean complete = true;
+            for (int m = 0; m < nMeasurements && complete; m++)
+                complete = !Float.isNaN(rows.values[i * nMeasurements + m]);
+            if (complete) {
+                System.arraycopy(rows.values, i * nMeasurements, values, n * nMeasurements, nMeasurements);
+                n++;
+            }
+        }
+        return Arrays.copyOf(values, n * nMeasurements);
+    }
+
+    private int indexOf(String measurement) {
+        int m = measurements.indexOf(measurement);
+        if (m < 0)
+            throw new IllegalArgumentException("Measurement was not gathered: " + measurement);
+        return m;
+    }
+
+    /**
+     * Median of values, which are reordered
+     * @param values the values
+     * @param n the number of values to use, from the start of the array
+     * @return the median, or NaN if there are no values
+     */
+    static double median(float[] values, int n) {
+        if (n == 0)
+            return Double.NaN;
+        int half = n / 2;
+        select(values, 0, n - 1, half);
+        if (n % 2 == 1)
+            return values[half];
+        // The lower middle value is the largest of the lower half
+        float lower = values[0];
+        for (int i = 1; i < half; i++)
+            lower = Math.max(lower, values[i]);
+        return (lower + (double) values[half]) / 2.0;
+    }
+
+    /**
+     * Partial sort so that the k-th element of [left, right] is in place, smaller before and larger after
+     */
+    static void select(float[] values, int left, int right, int k) {
+        while (right > left) {
+            int mid = (left + right) >>> 1;
+            if (values[mid] < values[left]) swap(values, mid, left);
+            if (values[right] < values[left]) swap(values, right, left);
+            if (values[right] < values[mid]) swap(values, right, mid);
+            float pivot = values[mid];
+
+            int i = left, j = right;
+            while (i <= j) {
+                while (values[i] < pivot) i++;
+                while (values[j] > pivot) j--;
+                if (i <= j) {
+                    swap(values, i, j);
+                    i++;
+                    j--;
+                }
+            }
+            if (k <= j)
+                right = j;
+            else if (k >= i)
+                left = i;
+            else
+                return;
+        }
+    }
+
+    private static void swap(float[] values, int i, int j) {
+        float t = values[i];
+        values[i] = values[j];
+        values[j] = t;
+    }
+
+    // Mix the bits of the ID, so that priorities are uniformly spread
+    private static long priority(UUID id) {
+        long h = id.getMostSignificantBits() * 0x9E3779B97F4A7C15L ^ id.getLeastSignificantBits();
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * The rows with the smallest priorities, in a max-heap on the priority. Arrays grow as rows are added.
+     */
+    private static class Rows {
+        private final int capacity;
+        private final int width;
+        private long[] priorities = new long[1024];
+        private float[] values;
+        private int size;
+        private long total;
+
+        Rows(int capacity, int width) {
+            this.capacity = capacity;
+            this.width = width;
+            this.values = new float[priorities.length * width];
+        }
+
+        void offer(long priority, float[] row) {
+            total++;
+            if (size < capacity) {
+                if (size == priorities.length) {
+                    int length = (int) Math.min(capacity, 2L * size);
+                    priorities = Arrays.copyOf(priorities, length);
+                    values = Arrays.copyOf(values, length * width);
+                }
+                int c = size++;
+                set(c, priority, row, 0);
+                while (c > 0) {
+                    int parent = (c - 1) >>> 1;
+                    if (priorities[parent] >= priorities[c])
+                        break;
+                    swapRows(parent, c);
+                    c = parent;
+                }
+            } else if (priority < priorities[0]) {
+                set(0, priority, row, 0);
+                int i = 0;
+                while (true) {
+                    int left = 2 * i + 1;
+                    if (left >= size)
+                        break;
+                    int largest = left;
+                    if (left + 1 < size && priorities[left + 1] > priorities[left])
+                        largest = left + 1;
+                    if (priorities[i] >= priorities[largest])
+                        break;
+                    swapRows(i, largest);
+                    i = largest;
+                }
+            }
+        }
+
+        private void set(int i, long priority, float[] row, int offset) {
+            priorities[i] = priority;
+            System.arraycopy(row, offset, values, i * width, width);
+        }
+
+        private void swapRows(int i, int j) {
+            long p = priorities[i];
+            priorities[i] = priorities[j];
+            priorities[j] = p;
+            for (int m = 0; m < width; m++) {
+                float t = values[i * width + m];
+                values[i * width + m] = values[j * width + m];
+                values[j * width + m] = t;
+            }
+        }
+    }
+}
@@ -3,12 +3,14 @@ package qupath.ext.biop.ml;
 import ij.measure.ResultsTable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import qupath.ext.biop.utils.EntryBatch;
 import qupath.lib.classifiers.object.ObjectClassifier;
 import qupath.lib.gui.QuPathGUI;
 import qupath.lib.images.ImageData;
 import qupath.lib.objects.PathObject;
 import qupath.lib.objects.PathObjectTools;
 import qupath.lib.objects.classes.PathClass;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
 import qupath.lib.projects.Project;
 import qupath.lib.projects.ProjectImageEntry;
 
@@ -16,6 +18,7 @@ import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.stream.Collectors;
 
 public class ObjectClassifierValidation {
@@ -23,7 +26,8 @@ public class ObjectClassifierValidation {
     private QuPathGUI qupath;
     private Project<BufferedImage> project;
 
-    private MatchList matches;
+    // One MatchList per classifier, in the same order as the classifiers
+    private List<MatchList> matchLists;
     private List<PathClass> groundTruthClasses;
 
     public ObjectClassifierValidation(Project<BufferedImage>project) {
@@ -31,12 +35,38 @@ public class ObjectClassifierValidation {
         this.qupath = QuPathGUI.getInstance();
     }
 
-    private ObjectClassifier<BufferedImage> classifier;
+    private List<ObjectClassifier<BufferedImage>> classifiers;
 
+    private final EntryBatch batch = new EntryBatch("classifier-validation");
+
+    /**
+     * Validate the classifier on all project entries whose metadata key matches the given value.
+     * <p>
+     * Each entry is read exactly once. The detections are classified with the classifier and the classes of the
+     * ground truth point annotations they contain are recorded. Entries are processed concurrently according to
+     * {@link #setParallelism(int)} and {@link #setMemoryBudgetMB(int)}.
+     * @param classifier the classifier to validate
+     * @param metadataKeyFilter the metadata key used to select the entries
+     * @param metadataValueFilter the value the key should have
+     */
     public void computeValidation(ObjectClassifier<BufferedImage> classifier, String metadataKeyFilter, String metadataValueFilter) {
-        // If nothing was set, figure out the classes here
-        // Get the classifier
-        this.classifier = classifier;
+        computeComparison(List.of(classifier), metadataKeyFilter, metadataValueFilter);
+    }
+
+    /**
+     * Validate several classifiers at once, for instance to compare different feature sets or thresholds.
+     * <p>
+     * Each entry is read and its ground truth points are matched to the detections only once. The matched detections are
+     * then copied and each classifier is applied to the copies, so the hierarchy of the entry is never modified and only
+     * the detections that contain a ground truth point are classified.
+     * Use {@link #showLeaderboard()} to rank the classifiers.
+     * @param classifiers the classifiers to validate
+     * @param metadataKeyFilter the metadata key used to select the entries
+     * @param metadataValueFilter the value the key should have
+     */
+    public void computeComparison(List<ObjectClassifier<BufferedImage>> classifiers, String metadataKeyFilter, String metadataValueFilter) {
+        // Get the classifiers
+        this.classifiers = List.copyOf(classifiers);
         List<ProjectImageEntry<BufferedImage>> selectedEntries = project.getImageList().stream()
                 .filter(entry -> {
                     if (entry.getMetadata().containsKey(metadataKeyFilter)) {
@@ -45,105 +75,248 @@ public class ObjectClassifierValidation {
                     return false;
                 }).collect(Collectors.toList());
 
-        Set<PathClass> classSet = selectedEntries.stream()
-                .flatMap(entry -> {
-                    try {
-                        return entry.readHierarchy().getAnnotationObjects().stream()
-                                .filter(PathObjectTools::hasPointROI)
-                                .toList().stream();
-                    } catch (IOException e) {
-                        logger.warn("Could not read hierarchy for {}: {}", entry.getImageName(), e.getLocalizedMessage());
-                        return null;
-                    }
-                })
-                .filter(Objects::nonNull)
-                .map(PathObject::getPathClass).collect(Collectors.toSet());
-
-        this.groundTruthClasses = classSet.stream().filter(Objects::nonNull).sorted(Comparator.comparing(PathClass::getName)).toList();
+        // For each entry
+        matchLists = this.classifiers.stream().map(MatchList::new).toList();
+
+        // The ground truth classes are only known once all entries are read, so we keep all point classes for now
+        Set<PathClass> classSet = ConcurrentHashMap.newKeySet();
+        batch.run(selectedEntries, entry -> {
+            ImageMatches[] counts = matchEntry(entry, classSet);
+            for (int i = 0; i < counts.length; i++)
+                matchLists.get(i).putEntry(entry, counts[i]);
+        });
 
+        this.groundTruthClasses = classSet.stream().sorted(Comparator.comparing(PathClass::getName)).toList();
 
-        // For each entry
-        matches = new MatchList();
+        // Only keep the matches where both the point and the detection are ground truth classes
+        matchLists.forEach(matches -> matches.retainClasses(groundTruthClasses));
+    }
 
-        selectedEntries.forEach( entry -> {
-            try {
-                Collection<PathObject> detections = entry.readHierarchy().getDetectionObjects();
-                Collection<PathObject> points = entry.readHierarchy().getAnnotationObjects().stream()
-                        .filter(PathObjectTools::hasPointROI)
-                        .toList();
-
-                ImageData<BufferedImage> imageData = entry.readImageData();
-
-                // Classify the detections
-                classifier.classifyObjects(imageData, detections, true);
-                // Find the class of the point inside the detection (if any)
-                points.forEach(pointObject -> {
-                    detections.forEach(detection -> {
-                        pointObject.getROI().getAllPoints().forEach(p -> {
-                            if (detection.getROI().contains(p.getX(), p.getY())) {
-                                if (groundTruthClasses.contains(pointObject.getPathClass()) && groundTruthClasses.contains(detection.getPathClass())) {
-                                    // Now do the thing. Store it
-                                    matches.incrementEntry(entry, pointObject.getPathClass(), detection.getPathClass());
-                                }
-                            }
-                        });
-                    });
+    /**
+     * Reads the entry once, matches the points to the detections and counts, for each classifier, which detection classes
+     * contain which point classes
+     */
+    private ImageMatches[] matchEntry(ProjectImageEntry<BufferedImage> entry, Set<PathClass> classSet) throws IOException {
+        ImageData<BufferedImage> imageData = entry.readImageData();
+        PathObjectHierarchy hierarchy = imageData.getHierarchy();
+
+        Collection<PathObject> detections = hierarchy.getDetectionObjects();
+        Collection<PathObject> points = hierarchy.getAnnotationObjects().stream()
+                .filter(PathObjectTools::hasPointROI)
+                .filter(p -> p.getPathClass() != null)
+                .toList();
+        points.forEach(p -> classSet.add(p.getPathClass()));
+
+        ImageMatches[] counts = new ImageMatches[classifiers.size()];
+        for (int i = 0; i < counts.length; i++)
+            counts[i] = new ImageMatches();
+        if (points.isEmpty())
+            return counts;
+
+        // Index the detections once, so that each point only needs to be tested against its neighbors
+        PointDetectionMatcher matcher = new PointDetectionMatcher(detections);
+
+        // Find the detections containing each point (if any). We keep copies of the detections so that classifying them
+        // never touches the hierarchy
+        Map<PathObject, PathObject> copies = new HashMap<>();
+        List<PathClass> matchedGTClasses = new ArrayList<>();
+        List<PathObject> matchedDetections = new ArrayList<>();
+        points.forEach(pointObject -> {
+            pointObject.getROI().getAllPoints().forEach(p -> {
+                matcher.findMatches(p.getX(), p.getY(), detection -> {
+                    matchedGTClasses.add(pointObject.getPathClass());
+                    matchedDetections.add(copies.computeIfAbsent(detection, d -> PathObjectTools.transformObject(d, null, true)));
                 });
-            } catch (IOException e) {
-                logger.warn("Could not read hierarchy for {}: {}", entry.getImageName(), e.getLocalizedMessage());
-            }
+            });
         });
+
+        // Classify the copies with each classifier in turn and count the matches
+        for (int i = 0; i < counts.length; i++) {
+            classifiers.get(i).classifyObjects(imageData, copies.values(), true);
+            for (int m = 0; m < matchedDetections.size(); m++) {
+                PathClass predicted = matchedDetections.get(m).getPathClass();
+                if (predicted != null)
+                    counts[i].increment(matchedGTClasses.get(m), predicted);
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Set how many entries can be processed at the same time. Default is 1.
+     * @param parallelism the number of entries processed concurrently, see {@link EntryBatch#setParallelism(int)}
+     */
+    public void setParallelism(int parallelism) {
+        batch.setParallelism(parallelism);
+    }
+
+    /**
+     * @param memoryBudgetMB the approximate memory budget, in megabytes, see {@link EntryBatch#setMemoryBudgetMB(int)}
+     */
+    public void setMemoryBudgetMB(int memoryBudgetMB) {
+        batch.setMemoryBudgetMB(memoryBudgetMB);
+    }
+
+    /**
+     * @param progressListener the listener, or null to remove it, see {@link EntryBatch#setProgressListener(EntryBatch.ProgressListener)}
+     */
+    public void setProgressListener(EntryBatch.ProgressListener progressListener) {
+        batch.setProgressListener(progressListener);
+    }
+
+    /**
+     * Stop the validation currently running. Entries that are already being processed are finished.
+     */
+    public void cancel() {
+        batch.cancel();
     }
 
     public void show() {
-        this.matches.showMatches( this.groundTruthClasses, null );
+        this.matchLists.forEach(matches -> matches.showMatches( this.groundTruthClasses, null ));
     }
 
     public void showAndSave(String path) {
-        this.matches.showMatches( this.groundTruthClasses, path );
+        this.matchLists.forEach(matches -> matches.showMatches( this.groundTruthClasses, path ));
     }
 
-    private class MatchList {
-        Map<ProjectImageEntry<BufferedImage>, Map<PathClass, Map<PathClass, Integer>>> matchData;
+    /**
+     * Show a table ranking all the classifiers of the last {@link #computeComparison(List, String, String)},
+     * from the best macro F1 score to the worst. Ties are broken using Cohen's kappa.
+     */
+    public void showLeaderboard() {
+        showAndSaveLeaderboard(null);
+    }
+
+    /**
+     * Same as {@link #showLeaderboard()}, and also save the table as a CSV file in the given folder
+     * @param path the folder where to save the leaderboard
+     */
+    public void showAndSaveLeaderboard(String path) {
+        List<MatchList> ranked = new ArrayList<>(matchLists);
+        Map<MatchList, ConfusionMatrix.Metrics> metrics = new HashMap<>();
+        ranked.forEach(m -> metrics.put(m, m.global.computeMetrics()));
+        ranked.sort(Comparator.comparingDouble((MatchList m) -> metrics.get(m).getMacroF1())
+                .thenComparingDouble(m -> metrics.get(m).getKappa())
+                .reversed());
+
+        ResultsTable leaderboard = new ResultsTable();
+        for (int i = 0; i < ranked.size(); i++) {
+            MatchList matches = ranked.get(i);
+            leaderboard.incrementCounter();
+            leaderboard.addValue("Rank", i + 1);
+            leaderboard.addValue("Classifier", matches.classifier.toString());
+            matches.addMetrics(leaderboard, metrics.get(matches));
+        }
+        leaderboard.show("Classifier Leaderboard");
+        if(path != null && !path.isEmpty()) {
+            try {
+                leaderboard.save(path + File.separator + "Classifier Leaderboard.csv");
+            }catch(Exception e){
+                logger.error("Cannot save the ResultsTable 'Classifier Leaderboard' in {}", path);
+            }
+        }
+    }
+
+    /**
+     * @return the confusion matrix of all validated entries for the first classifier, or null if no validation was run
+     */
+    public ConfusionMatrix getConfusionMatrix() {
+        return matchLists == null ? null : matchLists.get(0).global;
+    }
+
+    /**
+     * @param classifier one of the validated classifiers
+     * @return the confusion matrix of all validated entries for this classifier, or null if it was not validated
+     */
+    public ConfusionMatrix getConfusionMatrix(ObjectClassifier<BufferedImage> classifier) {
+        if (matchLists == null)
+            return null;
+        return matchLists.stream().filter(m -> m.classifier == classifier).map(m -> m.global).findFirst().orElse(null);
+    }
+
+    /**
+     * @return the confusion matrix of each validated entry that contained matches, for the first classifier
+     */
+    public Map<ProjectImageEntry<BufferedImage>, ConfusionMatrix> getConfusionMatrices() {
+        return matchLists == null ? Collections.emptyMap() : Collections.unmodifiableMap(matchLists.get(0).perImage);
+    }
 
-        MatchList() {
-            matchData = new HashMap<>();
+    /**
+     * Matches of a single image, counted over the classes met in that image, in order of appearance.
+     * Only used by one thread at a time.
+     */
+    private static class ImageMatches {
+        private final Map<PathClass, Integer> indices = new HashMap<>();
+        private final List<PathClass> classes = new ArrayList<>();
+        private long[][] counts = new long[0][0];
+
+        private int indexOf(PathClass pathClass) {
+            Integer index = indices.get(pathClass);
+            if (index == null) {
+                index = classes.size();
+                indices.put(pathClass, index);
+                classes.add(pathClass);
+                // Grow the matrix, which only happens once per class
+                long[][] grown = new long[index + 1][index + 1];
+                for (int i = 0; i < counts.length; i++)
+                    System.arraycopy(counts[i], 0, grown[i], 0, counts[i].length);
+                counts = grown;
+            }
+            return index;
         }
 
-        public void incrementEntry( ProjectImageEntry<BufferedImage> image, PathClass gtClass, PathClass predClass ) {
-            // Get or create the first-level map for the image
-            matchData.computeIfAbsent(image, k -> new HashMap<>())
-                    // Get or create the second-level map for key1
-                    .computeIfAbsent(gtClass, k -> new HashMap<>())
-                    .merge(predClass, 1, Integer::sum);
+        void increment(PathClass gtClass, PathClass predClass) {
+            int gt = indexOf(gtClass);
+            int pred = indexOf(predClass);
+            counts[gt][pred]++;
         }
 
-        // Sum all values across all images for a given key1 and key2 pair
-        public int sumAcrossEntries(PathClass gtClass, PathClass predClass) {
-            int totalSum = 0;
-
-            // Iterate through each image
-            for (Map<PathClass, Map<PathClass, Integer>> gtMap : matchData.values()) {
-                // Check if the image contains the specified key1
-                if (gtMap.containsKey(gtClass)) {
-                    // Check if the key1 contains the specified key2 and sum the value
-                    Map<PathClass, Integer> predMap = gtMap.get(gtClass);
-                    totalSum += predMap.getOrDefault(predClass, 0);
+        // Copy the counts over to a matrix with the final classes, dropping the classes that are not in it
+        ConfusionMatrix toConfusionMatrix(List<PathClass> gtClasses) {
+            ConfusionMatrix matrix = new ConfusionMatrix(gtClasses);
+            int[] mapping = classes.stream().mapToInt(gtClasses::indexOf).toArray();
+            for (int gt = 0; gt < counts.length; gt++) {
+                if (mapping[gt] < 0)
+                    continue;
+                for (int pred = 0; pred < counts.length; pred++) {
+                    if (mapping[pred] >= 0 && counts[gt][pred] > 0)
+                        matrix.add(mapping[gt], mapping[pred], counts[gt][pred]);
                 }
             }
-            return totalSum;
+            return matrix;
         }
+    }
+
+    private class MatchList {
+        private final ObjectClassifier<BufferedImage> classifier;
+
+        // Matches as they are computed, until the ground truth classes are known
+        private final Map<ProjectImageEntry<BufferedImage>, ImageMatches> rawMatches = new ConcurrentHashMap<>();
 
-        public int getTP( ProjectImageEntry<BufferedImage> image, PathClass gtClass ) {
-            return this.matchData.get(image).get(gtClass).getOrDefault(gtClass, 0);
+        private Map<ProjectImageEntry<BufferedImage>, ConfusionMatrix> perImage = new HashMap<>();
+        private ConfusionMatrix global = new ConfusionMatrix(Collections.emptyList());
+
+        MatchList(ObjectClassifier<BufferedImage> classifier) {
+            this.classifier = classifier;
         }
 
-        public int getFN( ProjectImageEntry<BufferedImage> image, PathClass gtClass ) {
-            return this.matchData.get(image).get(gtClass).values().stream().mapToInt(Integer::intValue).sum() - getTP(image, gtClass);
+        // Add all the counts of one image at once, typically computed in a worker thread
+        public void putEntry( ProjectImageEntry<BufferedImage> image, ImageMatches counts ) {
+            rawMatches.put(image, counts);
         }
 
-        public int getFP( ProjectImageEntry<BufferedImage> image, PathClass gtClass ) {
-            return this.matchData.get(image).values().stream().mapToInt( t -> t.getOrDefault(gtClass, 0) ).sum() - getTP(image, gtClass);
+        // Build the confusion matrices using only the given classes. Images that are left without counts are dropped
+        public void retainClasses( List<PathClass> classes ) {
+            perImage = new HashMap<>();
+            global = new ConfusionMatrix(classes);
+            rawMatches.forEach((image, counts) -> {
+                ConfusionMatrix matrix = counts.toConfusionMatrix(classes);
+                if (matrix.getTotal() > 0) {
+                    perImage.put(image, matrix);
+                    global.add(matrix);
+                }
+            });
+            rawMatches.clear();
         }
 
         private void showMatches( List<PathClass> gtClasses, String path ) {
@@ -151,66 +324,80 @@ public class ObjectClassifierValidation {
             rt.setValue("", 0, "");
             for (int i = 0; i < gtClasses.size(); i++) {
                 rt.setValue("", i, "Predicted - " + gtClasses.get(i).getName());
-                rt.setValue("GT - " + gtClasses.get(i).getName(), 0, 0);
-            }
-
-            for (Map<PathClass, Map<PathClass, Integer>> gtMap : matchData.values()) {
-
-                gtClasses.forEach(gt -> {
-                    Map<PathClass, Integer> predMap = gtMap.computeIfAbsent(gt, k -> new HashMap<>());
-                    predMap.forEach((predK, value) -> {
-                        int rowIdx = gtClasses.indexOf(predK);
-
-                        if (rowIdx >= 0) {
-                            int val = (int) rt.getValue("GT - " + gt.getName(), rowIdx);
-                            rt.setValue("GT - " + gt.getName(), rowIdx, value + val);
-                        }
-                    });
-                });
             }
-            rt.show( classifier.toString() + " - Matches" );
-            if(path != null && !path.isEmpty()) {
-                try {
-                    rt.save(path + File.separator + classifier.toString() + " - Matches.csv");
-                }catch(Exception e){
-                    logger.error("Cannot save the ResultsTable '{} - Matches' in {}", classifier.toString(), path);
+            for (int gt = 0; gt < gtClasses.size(); gt++) {
+                String column = "GT - " + gtClasses.get(gt).getName();
+                for (int pred = 0; pred < gtClasses.size(); pred++) {
+                    rt.setValue(column, pred, global.getCount(gt, pred));
                 }
             }
+            rt.show( classifier.toString() + " - Matches" );
+            save(rt, path, "Matches");
 
             // Make a table for each image to contain all the fancy calculations
-            ResultsTable perImage = new ResultsTable();
-
-            matchData.keySet().stream().sorted(Comparator.comparing(ProjectImageEntry::getID)).forEach( entry -> {
-                perImage.incrementCounter();
-                perImage.addValue("Entry Name", entry.getImageName());
+            ResultsTable perImageTable = new ResultsTable();
 
-                int tp=0, fp=0, fn=0 ;
-
-                for (PathClass groundTruthClass : groundTruthClasses) {
-                    tp += getTP(entry, groundTruthClass);
-                    fp += getFP(entry, groundTruthClass);
-                    fn += getFN(entry, groundTruthClass);
-                }
-
-                double precision = (double) tp / ( tp + fp );
-                double recall = (double) tp / ( tp + fn );
-                double f1 = ( 2 * precision * recall ) / ( precision + recall );
+            perImage.keySet().stream().sorted(Comparator.comparing(ProjectImageEntry::getID)).forEach( entry -> {
+                perImageTable.incrementCounter();
+                perImageTable.addValue("Entry Name", entry.getImageName());
+                addMetrics(perImageTable, perImage.get(entry).computeMetrics());
+            });
 
+            perImageTable.show( classifier.toString() + " - Per Image");
+            save(perImageTable, path, "Per Image");
+
+            // And one for the whole validation, per class and summarized
+            ConfusionMatrix.Metrics metrics = global.computeMetrics();
+            ResultsTable perClass = new ResultsTable();
+            for (int c = 0; c < gtClasses.size(); c++) {
+                perClass.incrementCounter();
+                perClass.addValue("Class", gtClasses.get(c).getName());
+                perClass.addValue("TP", metrics.getTP(c));
+                perClass.addValue("FP", metrics.getFP(c));
+                perClass.addValue("FN", metrics.getFN(c));
+                perClass.addValue("Precision", metrics.getPrecision(c));
+                perClass.addValue("Recall", metrics.getRecall(c));
+                perClass.addValue("F1 Score", metrics.getF1(c));
+            }
+            perClass.incrementCounter();
+            perClass.addValue("Class", "All (micro average)");
+            perClass.addValue("TP", metrics.getTP());
+            perClass.addValue("FP", metrics.getFP());
+            perClass.addValue("FN", metrics.getFN());
+            perClass.addValue("Precision", metrics.getMicroPrecision());
+            perClass.addValue("Recall", metrics.getMicroRecall());
+            perClass.addValue("F1 Score", metrics.getMicroF1());
+            perClass.incrementCounter();
+            perClass.addValue("Class", "All (macro average)");
+            perClass.addValue("Precision", metrics.getMacroPrecision());
+            perClass.addValue("Recall", metrics.getMacroRecall());
+            perClass.addValue("F1 Score", metrics.getMacroF1());
+
+            logger.info("{}: accuracy {}, balanced accuracy {}, Cohen's kappa {}", classifier.toString(),
+                    metrics.getAccuracy(), metrics.getBalancedAccuracy(), metrics.getKappa());
+
+            perClass.show( classifier.toString() + " - Per Class");
+            save(perClass, path, "Per Class");
+        }
 
-                perImage.addValue("TP", tp);
-                perImage.addValue("FP", fp);
-                perImage.addValue("FN", fn);
-                perImage.addValue("Precision", precision);
-                perImage.addValue("Recall", recall);
-                perImage.addValue("F1 Score", f1);
-            });
+        private void addMetrics(ResultsTable table, ConfusionMatrix.Metrics metrics) {
+            table.addValue("TP", metrics.getTP());
+            table.addValue("FP", metrics.getFP());
+            table.addValue("FN", metrics.getFN());
+            table.addValue("Precision", metrics.getMicroPrecision());
+            table.addValue("Recall", metrics.getMicroRecall());
+            table.addValue("F1 Score", metrics.getMicroF1());
+            table.addValue("Macro F1 Score", metrics.getMacroF1());
+            table.addValue("Balanced Accuracy", metrics.getBalancedAccuracy());
+            table.addValue("Kappa", metrics.getKappa());
+        }
 
-            perImage.show( classifier.toString() + " - Per Image");
+        private void save(ResultsTable table, String path, String suffix) {
             if(path != null && !path.isEmpty()) {
                 try {
-                    perImage.save(path + File.separator + classifier.toString() + " - Per Image.csv");
+                    table.save(path + File.separator + classifier.toString() + " - " + suffix + ".csv");
                 }catch(Exception e){
-                    logger.error("Cannot save the ResultsTable '{} - Per Image' in {}", classifier.toString(), path);
+                    logger.error("Cannot save the ResultsTable '{} - {}' in {}", classifier.toString(), suffix, path);
                 }
             }
         }
@@ -0,0 +1,184 @@
+package qupath.ext.biop.ml;
+
+import qupath.lib.objects.PathObject;
+import qupath.lib.roi.interfaces.ROI;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Spatial index used to find which detections contain a given point.
+ * <p>
+ * The index is a uniform grid built over the bounding boxes of the detections, stored as flat arrays
+ * (one offset array per cell and one array of detection indices). It is built once per image, after which
+ * each query only has to test the few detections registered in the grid cell of the point.
+ * <p>
+ * The final containment test is the same {@link ROI#contains(double, double)} call that a brute-force search would make,
+ * so the matches are exactly those of the brute-force approach, see {@link #findMatchesBruteForce(Collection, double, double, Consumer)}.
+ */
+public class PointDetectionMatcher {
+
+    // Target number of detections per grid cell, on average
+    private static final double DETECTIONS_PER_CELL = 2.0;
+
+    private final PathObject[] detections;
+    private final ROI[] rois;
+
+    private final double minX, minY, cellSize;
+    private final int nCellsX, nCellsY;
+
+    // Compressed grid: detections in cell c are cellIndices[cellOffsets[c]] to cellIndices[cellOffsets[c+1]-1]
+    private final int[] cellOffsets;
+    private final int[] cellIndices;
+
+    /**
+     * Build the index for the given detections. Detections without a ROI are ignored.
+     * @param detections the detections to index, typically {@code hierarchy.getDetectionObjects()}
+     */
+    public PointDetectionMatcher(Collection<? extends PathObject> detections) {
+        List<PathObject> valid = new ArrayList<>(detections.size());
+        for (PathObject detection : detections) {
+            if (detection.hasROI())
+                valid.add(detection);
+        }
+        int n = valid.size();
+        this.detections = valid.toArray(new PathObject[0]);
+        this.rois = new ROI[n];
+
+        double x0 = Double.POSITIVE_INFINITY, y0 = Double.POSITIVE_INFINITY;
+        double x1 = Double.NEGATIVE_INFINITY, y1 = Double.NEGATIVE_INFINITY;
+        double sumSize = 0;
+        for (int i = 0; i < n; i++) {
+            ROI roi = this.detections[i].getROI();
+            rois[i] = roi;
+            x0 = Math.min(x0, roi.getBoundsX());
+            y0 = Math.min(y0, roi.getBoundsY());
+            x1 = Math.max(x1, roi.getBoundsX() + roi.getBoundsWidth());
+            y1 = Math.max(y1, roi.getBoundsY() + roi.getBoundsHeight());
+            sumSize += Math.max(roi.getBoundsWidth(), roi.getBoundsHeight());
+        }
+
+        if (n == 0) {
+            this.minX = 0;
+            this.minY = 0;
+            this.cellSize = 1;
+            this.nCellsX = 1;
+            this.nCellsY = 1;
+            this.cellOffsets = new int[2];
+            this.cellIndices = new int[0];
+            return;
+        }
+
+        // Cells should be at least as large as a typical detection so that each detection spans few cells,
+        // but small enough so that each cell only holds a couple of detections
+        double area = Math.max(x1 - x0, 1) * Math.max(y1 - y0, 1);
+        double cellSize = Math.max(sumSize / n, Math.sqrt(area * DETECTIONS_PER_CELL / n));
+        // Avoid degenerate grids when all detections are tiny or the image is huge
+        cellSize = Math.max(cellSize, Math.max(x1 - x0, y1 - y0) / 16384.0);
+        cellSize = Math.max(cellSize, 1e-6);
+
+        this.minX = x0;
+        this.minY = y0;
+        this.cellSize = cellSize;
+        this.nCellsX = (int) Math.floor((x1 - x0) / cellSize) + 1;
+        this.nCellsY = (int) Math.floor((y1 - y0) / cellSize) + 1;
+
+        // First pass: count the detections per cell
+        int nCells = nCellsX * nCellsY;
+        int[] counts = new int[nCells + 1];
+        for (int i = 0; i < n; i++) {
+            ROI roi = rois[i];
+            int cx0 = cellX(roi.getBoundsX()), cx1 = cellX(roi.getBoundsX() + roi.getBoundsWidth());
+            int cy0 = cellY(roi.getBoundsY()), cy1 = cellY(roi.getBoundsY() + roi.getBoundsHeight());
+            for (int cy = cy0; cy <= cy1; cy++)
+                for (int cx = cx0; cx <= cx1; cx++)
+                    counts[cy * nCellsX + cx + 1]++;
+        }
+        for (int c = 0; c < nCells; c++)
+            counts[c + 1] += counts[c];
+        this.cellOffsets = counts;
+
+        // Second pass: fill in the detection indices, in detection order
+        this.cellIndices = new int[cellOffsets[nCells]];
+        int[] cursor = Arrays.copyOf(cellOffsets, nCells);
+        for (int i = 0; i < n; i++) {
+            ROI roi = rois[i];
+            int cx0 = cellX(roi.getBoundsX()), cx1 = cellX(roi.getBoundsX() + roi.getBoundsWidth());
+            int cy0 = cellY(roi.getBoundsY()), cy1 = cellY(roi.getBoundsY() + roi.getBoundsHeight());
+            for (int cy = cy0; cy <= cy1; cy++)
+                for (int cx = cx0; cx <= cx1; cx++)
+                    cellIndices[cursor[cy * nCellsX + cx]++] = i;
+        }
+    }
+
+    private int cellX(double x) {
+        return Math.min(nCellsX - 1, Math.max(0, (int) Math.floor((x - minX) / cellSize)));
+    }
+
+    private int cellY(double y) {
+        return Math.min(nCellsY - 1, Math.max(0, (int) Math.floor((y - minY) / cellSize)));
+    }
+
+    /**
+     * @return the number of indexed detections
+     */
+    public int size() {
+        return detections.length;
+    }
+
+    /**
+     * Calls the consumer once for every detection whose ROI contains the point (x, y)
+     * @param x the x coordinate of the point, in pixels
+     * @param y the y coordinate of the point, in pixels
+     * @param action what to do with each detection containing the point
+     */
+    public void findMatches(double x, double y, Consumer<PathObject> action) {
+        if (detections.length == 0)
+            return;
+        double gx = (x - minX) / cellSize;
+        double gy = (y - minY) / cellSize;
+        // Points outside the grid cannot be inside any detection
+        if (gx < 0 || gy < 0 || gx >= nCellsX + 1 || gy >= nCellsY + 1)
+            return;
+        int cell = cellY(y) * nCellsX + cellX(x);
+        for (int k = cellOffsets[cell]; k < cellOffsets[cell + 1]; k++) {
+            int i = cellIndices[k];
+            ROI roi = rois[i];
+            // Cheap bounding box rejection before the actual containment test
+            if (x < roi.getBoundsX() || y < roi.getBoundsY()
+                    || x > roi.getBoundsX() + roi.getBoundsWidth() || y > roi.getBoundsY() + roi.getBoundsHeight())
+                continue;
+            if (roi.contains(x, y))
+                action.accept(detections[i]);
+        }
+    }
+
+    /**
+     * Returns all detections whose ROI contains the point (x, y)
+     * @param x the x coordinate of the point, in pixels
+     * @param y the y coordinate of the point, in pixels
+     * @return a list of detections, empty if there are none
+     */
+    public List<PathObject> getMatches(double x, double y) {
+        List<PathObject> matches = new ArrayList<>(1);
+        findMatches(x, y, matches::add);
+        return matches;
+    }
+
+    /**
+     * Reference implementation that tests every detection. Useful to check or benchmark {@link #findMatches(double, double, Consumer)}
+     * @param detections the detections to test
+     * @param x the x coordinate of the point, in pixels
+     * @param y the y coordinate of the point, in pixels
+     * @param action what to do with each detection containing the point
+     */
+    public static void findMatchesBruteForce(Collection<? extends PathObject> detections, double x, double y, Consumer<PathObject> action) {
+        for (PathObject detection : detections) {
+            if (detection.hasROI() && detection.getROI().contains(x, y))
+                action.accept(detection);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package qupath.ext.biop.ml;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.classifiers.object.ObjectClassifier;
+import qupath.lib.classifiers.object.ObjectClassifiers;
+import qupath.lib.common.GeneralTools;
+import qupath.lib.objects.classes.PathClass;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Builds a single measurement classifier whose threshold is k times a baseline taken from the low values.
+ * <p>
+ * Values are ranked and the lowest 5% are dropped as outliers. The baseline is the mean of the following values, as
+ * many as the given quantile of all values. The values of these ranks are found by partial sorting.
+ * <p>
+ * The statistics come from a {@link MeasurementSample}, so the same threshold can be computed from all the images of
+ * a project. Objects at or above the threshold get the class "[pathClass]+", the others "[pathClass]-".
+ * <pre>
+ * def builder = new QuantileClassifierBuilder("CY3: Mean", "CY3", 0.2, 3)
+ * def classifier = builder.build(sample)
+ * </pre>
+ */
+public class QuantileClassifierBuilder {
+
+    final private static Logger logger = LoggerFactory.getLogger(QuantileClassifierBuilder.class);
+
+    private static final double DROPPED_FRACTION = 0.05;
+
+    private final String measurement;
+    private final String pathClass;
+    private final double quantile;
+    private final double k;
+    private double threshold = Double.NaN;
+
+    /**
+     * @param measurement the measurement to threshold
+     * @param pathClass the base name of the classes
+     * @param quantile the fraction of the values averaged into the baseline
+     * @param k the factor applied to the baseline
+     */
+    public QuantileClassifierBuilder(String measurement, String pathClass, double quantile, double k) {
+        this.measurement = measurement;
+        this.pathClass = pathClass;
+        this.quantile = quantile;
+        this.k = k;
+    }
+
+    /**
+     * Compute the threshold and create the classifier
+     * @param sample measurements that include this builder's measurement
+     * @return the classifier
+     */
+    public ObjectClassifier<BufferedImage> build(MeasurementSample sample) {
+        float[] values = sample.getValues(measurement);
+        int n = values.length;
+        int first = (int) (n * DROPPED_FRACTION);
+        int last = Math.min(n, first + (int) (n * quantile)) - 1;
+
+        double baseline = Double.NaN;
+        if (last >= first) {
+            // Ranks first to last end up between these two positions
+            MeasurementSample.select(values, 0, n - 1, first);
+            MeasurementSample.select(values, first, n - 1, last);
+            double sum = 0;
+            for (int i = first; i <= last; i++)
+                sum += values[i];
+            baseline = sum / (last - first + 1);
+        }
+        threshold = k * baseline;
+        logger.info("New Quantile Classifier '{}' based on '{}', quantile = {}, k = {} : threshold = {}", pathClass, measurement, quantile, k, threshold);
+
+        return new ObjectClassifiers.ClassifyByMeasurementBuilder<BufferedImage>(measurement)
+                .threshold(threshold)
+                .aboveEquals(PathClass.fromString(pathClass + "+"))
+                .below(PathClass.fromString(pathClass + "-"))
+                .build();
+    }
+
+    /**
+     * @return the threshold of the last classifier that was built, or NaN
+     */
+    public double getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * @return the threshold of the last classifier that was built as a rule, to apply it to many entries with a
+     * {@link ThresholdClassifierBatch}
+     */
+    public ThresholdClassifierBatch.Rule getRule() {
+        if (Double.isNaN(threshold))
+            throw new IllegalStateException("The classifier has not been built");
+        return new ThresholdClassifierBatch.Rule(measurement, threshold,
+                PathClass.fromString(pathClass + "+"), PathClass.fromString(pathClass + "-"));
+    }
+
+    /**
+     * @return the measurement to threshold
+     */
+    public String getMeasurement() {
+        return measurement;
+    }
+
+    /**
+     * @return the base name of the classes
+     */
+    public String getPathClass() {
+        return pathClass;
+    }
+
+    /**
+     * @return a name to save the classifier with
+     */
+    public String getName() {
+        return GeneralTools.stripInvalidFilenameChars(pathClass + " - Quantile q=" + GeneralTools.formatNumber(quantile, 3)
+                + " k=" + GeneralTools.formatNumber(k, 2));
+    }
+}
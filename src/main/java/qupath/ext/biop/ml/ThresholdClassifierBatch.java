@@ -0,0 +1,245 @@
+package qupath.ext.biop.ml;
+
+import ij.measure.ResultsTable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.ext.biop.utils.EntryBatch;
+import qupath.lib.images.ImageData;
+import qupath.lib.measurements.MeasurementList;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.classes.PathClass;
+import qupath.lib.objects.classes.PathClassTools;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.projects.ProjectImageEntry;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Applies single measurement threshold rules to the detections of many project entries, and saves them.
+ * <p>
+ * The rules give the same classes as the composite of their {@code ClassifyByMeasurement} classifiers, e.g.
+ * "CY3+: CY5-", with existing classes reset. For each entry, the values of all the rule measurements are first copied
+ * into primitive columns. The position of each measurement is looked up once for all the objects that share the same
+ * measurement names, rather than by name for each object. The rules are then evaluated column by column, and the
+ * classes of all the combinations of results are created only once.
+ * <p>
+ * Entries are processed concurrently according to {@link #setParallelism(int)} and {@link #setMemoryBudgetMB(int)}.
+ * The number of detections of each class in each entry is kept, see {@link #showSummary()}.
+ * <pre>
+ * def batch = new ThresholdClassifierBatch([madBuilder.getRule(), quantileBuilder.getRule()])
+ * batch.setParallelism(4)
+ * batch.run(getProject().getImageList())
+ * batch.showSummary()
+ * </pre>
+ */
+public class ThresholdClassifierBatch {
+
+    final private static Logger logger = LoggerFactory.getLogger(ThresholdClassifierBatch.class);
+
+    // Results of a rule for one object
+    private static final byte BELOW = 0;
+    private static final byte ABOVE = 1;
+    private static final byte MISSING = 2;
+    private static final int MAX_RULES = 19;
+
+    private final List<Rule> rules;
+
+    private final EntryBatch batch = new EntryBatch("threshold-classifier");
+
+    private final Map<ProjectImageEntry<BufferedImage>, Map<PathClass, Long>> counts = new ConcurrentHashMap<>();
+
+    /**
+     * A single measurement threshold, like {@code ClassifyByMeasurementBuilder.threshold(threshold).aboveEquals(above).below(below)}
+     * @param measurement the measurement
+     * @param threshold the threshold
+     * @param above the class of objects at or above the threshold
+     * @param below the class of objects below the threshold
+     */
+    public record Rule(String measurement, double threshold, PathClass above, PathClass below) {
+    }
+
+    /**
+     * @param rules the rules, in the order their classes are combined
+     */
+    public ThresholdClassifierBatch(List<Rule> rules) {
+        if (rules.isEmpty())
+            throw new IllegalArgumentException("At least one rule is needed");
+        // Results of all rules are packed in one int
+        if (rules.size() > MAX_RULES)
+            throw new IllegalArgumentException("At most " + MAX_RULES + " rules can be combined");
+        this.rules = List.copyOf(rules);
+    }
+
+    /**
+     * Set how many entries can be processed at the same time. Default is 1.
+     * @param parallelism the number of entries processed concurrently, see {@link EntryBatch#setParallelism(int)}
+     */
+    public void setParallelism(int parallelism) {
+        batch.setParallelism(parallelism);
+    }
+
+    /**
+     * @param memoryBudgetMB the approximate memory budget, in megabytes, see {@link EntryBatch#setMemoryBudgetMB(int)}
+     */
+    public void setMemoryBudgetMB(int memoryBudgetMB) {
+        batch.setMemoryBudgetMB(memoryBudgetMB);
+    }
+
+    /**
+     * @param progressListener the listener, or null to remove it, see {@link EntryBatch#setProgressListener(EntryBatch.ProgressListener)}
+     */
+    public void setProgressListener(EntryBatch.ProgressListener progressListener) {
+        batch.setProgressListener(progressListener);
+    }
+
+    /**
+     * Stop the batch currently running. Entries that are already being processed are finished and saved.
+     */
+    public void cancel() {
+        batch.cancel();
+    }
+
+    /**
+     * Classify the detections of entries and save them
+     * @param entries the entries to process
+     * @return the number of entries that were saved
+     */
+    public int run(Collection<ProjectImageEntry<BufferedImage>> entries) {
+        counts.clear();
+        return batch.run(entries, entry -> {
+            ImageData<BufferedImage> imageData = entry.readImageData();
+            try {
+                counts.put(entry, classify(imageData.getHierarchy()));
+                entry.saveImageData(imageData);
+            } finally {
+                imageData.getServer().close();
+            }
+        });
+    }
+
+    /**
+     * Classify the detections of a hierarchy, e.g. of the current image, and notify it once
+     * @param hierarchy the hierarchy
+     * @return the number of detections of each class
+     */
+    public Map<PathClass, Long> classify(PathObjectHierarchy hierarchy) {
+        List<PathObject> detections = new ArrayList<>(hierarchy.getDetectionObjects());
+        int n = detections.size();
+        int nRules = rules.size();
+
+        // Columns of values, looking up the measurements only when the names change
+        double[][] columns = new double[nRules][n];
+        int[] indices = new int[nRules];
+        List<String> lastNames = null;
+        for (int i = 0; i < n; i++) {
+            MeasurementList list = detections.get(i).getMeasurementList();
+            List<String> names = list.getMeasurementNames();
+            if (names != lastNames && !names.equals(lastNames)) {
+                for (int r = 0; r < nRules; r++)
+                    indices[r] = names.indexOf(rules.get(r).measurement());
+            }
+            lastNames = names;
+            double[] values = list.values();
+            for (int r = 0; r < nRules; r++)
+                columns[r][i] = indices[r] < 0 ? Double.NaN : values[indices[r]];
+        }
+
+        // One code per object, with a digit per rule
+        int[] codes = new int[n];
+        for (int r = 0; r < nRules; r++) {
+            double threshold = rules.get(r).threshold();
+            double[] column = columns[r];
+            for (int i = 0; i < n; i++) {
+                double value = column[i];
+                byte result = Double.isNaN(value) ? MISSING : value >= threshold ? ABOVE : BELOW;
+                codes[i] = codes[i] * 3 + result;
+            }
+        }
+
+        Map<Integer, PathClass> classes = new HashMap<>();
+        Map<PathClass, Long> classCounts = new LinkedHashMap<>();
+        for (int i = 0; i < n; i++) {
+            PathClass pathClass = classes.computeIfAbsent(codes[i], this::toPathClass);
+            detections.get(i).setPathClass(pathClass);
+            classCounts.merge(pathClass == null ? PathClass.NULL_CLASS : pathClass, 1L, Long::sum);
+        }
+        hierarchy.fireObjectClassificationsChangedEvent(this, detections);
+        return classCounts;
+    }
+
+    // Combine the classes of all rules, like a composite classifier
+    private PathClass toPathClass(int code) {
+        int[] results = new int[rules.size()];
+        for (int r = rules.size() - 1; r >= 0; r--) {
+            results[r] = code % 3;
+            code /= 3;
+        }
+        Set<String> names = new LinkedHashSet<>();
+        for (int r = 0; r < rules.size(); r++) {
+            PathClass pathClass = switch (results[r]) {
+                case ABOVE -> rules.get(r).above();
+                case BELOW -> rules.get(r).below();
+                default -> null;
+            };
+            if (pathClass != null)
+                names.addAll(PathClassTools.splitNames(pathClass));
+        }
+        return names.isEmpty() ? null : PathClass.fromCollection(names);
+    }
+
+    /**
+     * @return the number of detections of each class in each processed entry
+     */
+    public Map<ProjectImageEntry<BufferedImage>, Map<PathClass, Long>> getClassCounts() {
+        return Collections.unmodifiableMap(counts);
+    }
+
+    /**
+     * Show a table with the number of detections of each class, one row per entry
+     */
+    public void showSummary() {
+        showAndSaveSummary(null);
+    }
+
+    /**
+     * Same as {@link #showSummary()}, and also save the table as a CSV file in the given folder
+     * @param path the folder where to save the summary
+     */
+    public void showAndSaveSummary(String path) {
+        List<PathClass> allClasses = counts.values().stream()
+                .flatMap(c -> c.keySet().stream())
+                .distinct()
+                .sorted(Comparator.comparing(PathClass::toString))
+                .toList();
+
+        ResultsTable summary = new ResultsTable();
+        counts.keySet().stream().sorted(Comparator.comparing(ProjectImageEntry::getID)).forEach(entry -> {
+            Map<PathClass, Long> entryCounts = counts.get(entry);
+            summary.incrementCounter();
+            summary.addValue("Entry Name", entry.getImageName());
+            summary.addValue("Detections", entryCounts.values().stream().mapToLong(Long::longValue).sum());
+            for (PathClass pathClass : allClasses)
+                summary.addValue(pathClass.toString(), entryCounts.getOrDefault(pathClass, 0L));
+        });
+        summary.show("Threshold Classification Summary");
+        if (path != null && !path.isEmpty()) {
+            try {
+                summary.save(path + File.separator + "Threshold Classification Summary.csv");
+            } catch (Exception e) {
+                logger.error("Cannot save the ResultsTable 'Threshold Classification Summary' in {}", path);
+            }
+        }
+    }
+}
@@ -0,0 +1,344 @@
+package qupath.ext.biop.spatial;
+
+import org.locationtech.jts.geom.Geometry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.analysis.DelaunayTools;
+import qupath.lib.common.GeneralTools;
+import qupath.lib.images.ImageData;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjectTools;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.objects.hierarchy.events.PathObjectHierarchyEvent;
+import qupath.lib.objects.hierarchy.events.PathObjectHierarchyListener;
+import qupath.lib.roi.GeometryTools;
+import qupath.lib.roi.interfaces.ROI;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.stream.IntStream;
+
+/**
+ * Delaunay triangulation of objects, stored as an adjacency graph in primitive arrays for parallel queries.
+ * <p>
+ * The subdivision is built once with {@link DelaunayTools}. Graphs obtained with {@link #getForDetections(ImageData)}
+ * and {@link #getForAnnotations(ImageData)} are cached with the hierarchy and rebuilt only after objects are added,
+ * removed or changed. Changes of measurements or classifications keep the cached graph.
+ * <pre>
+ * def graph = DelaunayGraph.getForDetections(getCurrentImageData())
+ * graph.addNeighborCounts(20)
+ * def neighborhood = graph.getNeighborhood(getSelectedObject(), 2)
+ * </pre>
+ */
+public class DelaunayGraph {
+
+    final private static Logger logger = LoggerFactory.getLogger(DelaunayGraph.class);
+
+    private static final String um = GeneralTools.micrometerSymbol();
+
+    // The graphs are held by the listeners of their hierarchy, so that they are released with it
+    private static final Map<PathObjectHierarchy, WeakReference<CachedGraphs>> cache = new WeakHashMap<>();
+
+    // Depths of the objects visited by a neighborhood search, one array per thread so that searches can run in parallel.
+    // Shared by all graphs and only grown, so each thread holds a single array as large as the largest graph it searched
+    private static final ThreadLocal<int[]> visitedDepths = ThreadLocal.withInitial(() -> new int[0]);
+
+    private final ImageData<?> imageData;
+    private final DelaunayTools.Subdivision subdivision;
+    private final List<PathObject> objects;
+    private final Map<PathObject, Integer> indices = new IdentityHashMap<>();
+    // Centroids in pixels
+    private final double[] x;
+    private final double[] y;
+    // Neighbors of object i are neighbors[offsets[i]] to neighbors[offsets[i + 1] - 1]
+    private final int[] offsets;
+    private final int[] neighbors;
+
+    private Geometry voronoiClip;
+    private Map<PathObject, ROI> voronoiROIs;
+
+    private DelaunayGraph(ImageData<?> imageData, Collection<? extends PathObject> pathObjects) {
+        this.imageData = imageData;
+        long start = System.currentTimeMillis();
+        this.subdivision = DelaunayTools.newBuilder(pathObjects).preferNucleus(true).build();
+        this.objects = new ArrayList<>(subdivision.getPathObjects());
+        for (int i = 0; i < objects.size(); i++)
+            indices.put(objects.get(i), i);
+
+        int n = objects.size();
+        x = new double[n];
+        y = new double[n];
+        for (int i = 0; i < n; i++) {
+            ROI roi = PathObjectTools.getROI(objects.get(i), true);
+            x[i] = roi.getCentroidX();
+            y[i] = roi.getCentroidY();
+        }
+
+        // All neighbors are computed once, then only the arrays are read
+        Map<PathObject, List<PathObject>> allNeighbors = subdivision.getAllNeighbors();
+        offsets = new int[n + 1];
+        for (int i = 0; i < n; i++)
+            offsets[i + 1] = offsets[i] + allNeighbors.getOrDefault(objects.get(i), List.of()).size();
+        neighbors = new int[offsets[n]];
+        for (int i = 0; i < n; i++) {
+            int k = offsets[i];
+            for (PathObject neighbor : allNeighbors.getOrDefault(objects.get(i), List.of()))
+                neighbors[k++] = indices.get(neighbor);
+        }
+        logger.debug("Delaunay graph of {} objects built in {} ms", n, System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Build a graph without caching it
+     * @param imageData the image the objects belong to
+     * @param pathObjects the objects
+     * @return a new graph
+     */
+    public static DelaunayGraph create(ImageData<?> imageData, Collection<? extends PathObject> pathObjects) {
+        return new DelaunayGraph(imageData, pathObjects);
+    }
+
+    /**
+     * @param imageData the image
+     * @return the graph of all the detections of the image, built once until the hierarchy changes
+     */
+    public static DelaunayGraph getForDetections(ImageData<?> imageData) {
+        return getCached(imageData, true);
+    }
+
+    /**
+     * @param imageData the image
+     * @return the graph of all the annotations of the image, built once until the hierarchy changes
+     */
+    public static DelaunayGraph getForAnnotations(ImageData<?> imageData) {
+        return getCached(imageData, false);
+    }
+
+    private static DelaunayGraph getCached(ImageData<?> imageData, boolean detections) {
+        PathObjectHierarchy hierarchy = imageData.getHierarchy();
+        CachedGraphs graphs;
+        synchronized (cache) {
+            WeakReference<CachedGraphs> reference = cache.get(hierarchy);
+            graphs = reference == null ? null : reference.get();
+            if (graphs == null) {
+                graphs = new CachedGraphs(hierarchy);
+                cache.put(hierarchy, new WeakReference<>(graphs));
+            }
+        }
+        return graphs.get(imageData, detections);
+    }
+
+    /**
+     * @return the objects of the graph, in the order of the indices used by the queries
+     */
+    public List<PathObject> getObjects() {
+        return objects;
+    }
+
+    /**
+     * @return the subdivision built by {@link DelaunayTools}
+     */
+    public DelaunayTools.Subdivision getSubdivision() {
+        return subdivision;
+    }
+
+    /**
+     * @param pathObject an object of the graph
+     * @return its index, or -1 if it is not in the graph
+     */
+    public int indexOf(PathObject pathObject) {
+        return indices.getOrDefault(pathObject, -1);
+    }
+
+    /**
+     * @param index the index of an object
+     * @return the indices of its direct neighbors
+     */
+    public int[] getNeighbors(int index) {
+        return Arrays.copyOfRange(neighbors, offsets[index], offsets[index + 1]);
+    }
+
+    /**
+     * Count the direct neighbors of each object whose centroid is within a distance, in parallel
+     * @param maxDistance the distance, in microns
+     * @return the count for each object
+     */
+    public int[] countNeighborsWithin(double maxDistance) {
+        double maxPx = maxDistance / getPixelSize();
+        double maxSq = maxPx * maxPx;
+        int[] counts = new int[objects.size()];
+        IntStream.range(0, objects.size()).parallel().forEach(i -> {
+            int count = 0;
+            for (int k = offsets[i]; k < offsets[i + 1]; k++) {
+                int j = neighbors[k];
+                double dx = x[j] - x[i];
+                double dy = y[j] - y[i];
+                if (dx * dx + dy * dy <= maxSq)
+                    count++;
+            }
+            counts[i] = count;
+        });
+        return counts;
+    }
+
+    /**
+     * Add the measurement "Delaunay NN in radius [radius] µm" to all objects, and notify the hierarchy once
+     * @param radius the maximum distance to the neighbors, in microns
+     */
+    public void addNeighborCounts(double radius) {
+        String name = "Delaunay NN in radius " + GeneralTools.formatNumber(radius, 2) + " " + um;
+        int[] counts = countNeighborsWithin(radius);
+        IntStream.range(0, objects.size()).parallel().forEach(i -> objects.get(i).getMeasurementList().put(name, counts[i]));
+        imageData.getHierarchy().fireObjectMeasurementsChangedEvent(this, objects);
+    }
+
+    /**
+     * Find the objects at most a number of edges away in the graph
+     * @param index the index of the starting object
+     * @param hops the maximum number of edges, 1 for the direct neighbors
+     * @return the indices of the objects, by increasing number of edges, without the starting object
+     */
+    public int[] getNeighborhood(int index, int hops) {
+        // Breadth first, with the distance of each visited object + 1, so that 0 means not visited yet
+        int[] depths = visitedDepths.get();
+        if (depths.length < objects.size()) {
+            depths = new int[objects.size()];
+            visitedDepths.set(depths);
+        }
+        int[] queue = new int[16];
+        int head = 0, tail = 0;
+        queue[tail++] = index;
+        depths[index] = 1;
+        while (head < tail) {
+            int i = queue[head++];
+            int depth = depths[i];
+            if (depth > hops)
+                continue;
+            for (int k = offsets[i]; k < offsets[i + 1]; k++) {
+                int j = neighbors[k];
+                if (depths[j] == 0) {
+                    depths[j] = depth + 1;
+                    if (tail == queue.length)
+                        queue = Arrays.copyOf(queue, queue.length * 2);
+                    queue[tail++] = j;
+                }
+            }
+        }
+        // Only the visited objects need to be reset for the next search on this thread
+        for (int q = 0; q < tail; q++)
+            depths[queue[q]] = 0;
+        return Arrays.copyOfRange(queue, 1, tail);
+    }
+
+    /**
+     * @param pathObject an object of the graph
+     * @param hops the maximum number of edges, 1 for the direct neighbors
+     * @return the objects at most this number of edges away, without the object itself
+     */
+    public List<PathObject> getNeighborhood(PathObject pathObject, int hops) {
+        int index = indexOf(pathObject);
+        if (index < 0)
+            return List.of();
+        return Arrays.stream(getNeighborhood(index, hops)).mapToObj(objects::get).toList();
+    }
+
+    /**
+     * Find the neighborhoods of all objects, in parallel
+     * @param hops the maximum number of edges, 1 for the direct neighbors
+     * @return for each object, the indices of the objects at most this number of edges away
+     */
+    public int[][] getAllNeighborhoods(int hops) {
+        int[][] neighborhoods = new int[objects.size()][];
+        IntStream.range(0, objects.size()).parallel().forEach(i -> neighborhoods[i] = getNeighborhood(i, hops));
+        return neighborhoods;
+    }
+
+    /**
+     * @param clip the area the Voronoi cells are limited to, usually the image bounds
+     * @return the Voronoi cell of each object, computed once for the same area
+     */
+    public synchronized Map<PathObject, ROI> getVoronoiROIs(Geometry clip) {
+        if (voronoiROIs == null || voronoiClip == null || !voronoiClip.equalsExact(clip)) {
+            voronoiROIs = subdivision.getVoronoiROIs(clip);
+            voronoiClip = clip;
+        }
+        return voronoiROIs;
+    }
+
+    /**
+     * Grow each object by a distance, limited to its Voronoi cell so that grown objects do not overlap.
+     * Objects are grown in parallel.
+     * @param distance the distance, in pixels
+     * @param clip the area the Voronoi cells are limited to, usually the image bounds
+     * @return for each object, a new detection with the ring around the object and the same class
+     */
+    public Map<PathObject, PathObject> expandWithinVoronoi(double distance, Geometry clip) {
+        Map<PathObject, ROI> voronois = getVoronoiROIs(clip);
+        PathObject[] expanded = new PathObject[objects.size()];
+        IntStream.range(0, objects.size()).parallel().forEach(i -> {
+            PathObject object = objects.get(i);
+            ROI bounds = voronois.get(object);
+            if (bounds == null)
+                return;
+            Geometry geometry = object.getROI().getGeometry();
+            // The ring around the object, clipped by the voronoi cell in case it has neighbors
+            Geometry ring = geometry.buffer(distance).difference(geometry);
+            Geometry clipped = ring.intersection(bounds.getGeometry());
+            expanded[i] = PathObjects.createDetectionObject(GeometryTools.geometryToROI(clipped, object.getROI().getImagePlane()), object.getPathClass());
+        });
+        Map<PathObject, PathObject> result = new LinkedHashMap<>();
+        for (int i = 0; i < expanded.length; i++) {
+            if (expanded[i] != null)
+                result.put(objects.get(i), expanded[i]);
+        }
+        return result;
+    }
+
+    private double getPixelSize() {
+        return imageData.getServer().getPixelCalibration().getAveragedPixelSize().doubleValue();
+    }
+
+    /**
+     * Graphs of one hierarchy, dropped when objects change
+     */
+    private static class CachedGraphs implements PathObjectHierarchyListener {
+
+        private DelaunayGraph detections;
+        private DelaunayGraph annotations;
+
+        CachedGraphs(PathObjectHierarchy hierarchy) {
+            hierarchy.addListener(this);
+        }
+
+        synchronized DelaunayGraph get(ImageData<?> imageData, boolean forDetections) {
+            if (forDetections) {
+                if (detections == null)
+                    detections = new DelaunayGraph(imageData, imageData.getHierarchy().getDetectionObjects());
+                return detections;
+            }
+            if (annotations == null)
+                annotations = new DelaunayGraph(imageData, imageData.getHierarchy().getAnnotationObjects());
+            return annotations;
+        }
+
+        @Override
+        public synchronized void hierarchyChanged(PathObjectHierarchyEvent event) {
+            // Measurements and classes do not move objects
+            switch (event.getEventType()) {
+                case CHANGE_MEASUREMENTS, CHANGE_CLASSIFICATION -> {}
+                default -> {
+                    detections = null;
+                    annotations = null;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package qupath.ext.biop.spatial;
+
+/**
+ * Static 2D KD-tree over points stored in primitive arrays.
+ * <p>
+ * The tree is implicit: points are reordered so that each range of the arrays is split at its middle by the median of
+ * one axis, alternating between x and y. It is built in O(n log n) by partitioning around the median, without sorting
+ * and without creating an object per point. Small ranges are scanned linearly.
+ * <p>
+ * Points are identified by their index in the arrays given to the constructor. Points with identical coordinates are
+ * all kept. A built tree is never modified, so it can be queried from many threads at the same time.
+ */
+public class KDTree {
+
+    private static final int LEAF_SIZE = 8;
+
+    // Coordinates in tree order, and the original index of each point
+    private final double[] xs;
+    private final double[] ys;
+    private final int[] ids;
+
+    /**
+     * Build a tree
+     * @param x the x coordinates of the points
+     * @param y the y coordinates of the points, same length as x
+     */
+    public KDTree(double[] x, double[] y) {
+        if (x.length != y.length)
+            throw new IllegalArgumentException("x and y should have the same length: " + x.length + " != " + y.length);
+        int n = x.length;
+        xs = x.clone();
+        ys = y.clone();
+        ids = new int[n];
+        for (int i = 0; i < n; i++)
+            ids[i] = i;
+        build(0, n, 0);
+    }
+
+    private void build(int lo, int hi, int depth) {
+        while (hi - lo > LEAF_SIZE) {
+            int mid = (lo + hi) >>> 1;
+            select(lo, hi - 1, mid, (depth & 1) == 0 ? xs : ys);
+            // Recurse on the smaller side and loop on the other, to keep the stack shallow
+            build(lo, mid, depth + 1);
+            lo = mid + 1;
+            depth++;
+        }
+    }
+
+    // Partial sort so that the k-th element of [left, right] is in place, smaller before and larger after
+    private void select(int left, int right, int k, double[] values) {
+        while (right > left) {
+            // Median of three as pivot
+            int mid = (left + right) >>> 1;
+            if (values[mid] < values[left]) swap(mid, left);
+            if (values[right] < values[left]) swap(right, left);
+            if (values[right] < values[mid]) swap(right, mid);
+            double pivot = values[mid];
+
+            int i = left, j = right;
+            while (i <= j) {
+                while (values[i] < pivot) i++;
+                while (values[j] > pivot) j--;
+                if (i <= j) {
+                    swap(i, j);
+                    i++;
+                    j--;
+                }
+            }
+            if (k <= j)
+                right = j;
+            else if (k >= i)
+                left = i;
+            else
+                return;
+        }
+    }
+
+    private void swap(int i, int j) {
+        double tx = xs[i]; xs[i] = xs[j]; xs[j] = tx;
+        double ty = ys[i]; ys[i] = ys[j]; ys[j] = ty;
+        int ti = ids[i]; ids[i] = ids[j]; ids[j] = ti;
+    }
+
+    /**
+     * @return the number of points in the tree
+     */
+    public int size() {
+        return ids.length;
+    }
+
+    /**
+     * Count the points within a radius, the border included
+     * @param x the x coordinate of the center
+     * @param y the y coordinate of the center
+     * @param radius the radius
+     * @param exclude the index of a point not to count, usually the center itself, or -1
+     * @return the number of points
+     */
+    public int countInRadius(double x, double y, double radius, int exclude) {
+        int[] count = new int[1];
+        forEachInRadius(x, y, radius, exclude, (index, distanceSq) -> count[0]++);
+        return count[0];
+    }
+
+    /**
+     * Visit the points within a radius, the border included, in no particular order
+     * @param x the x coordinate of the center
+     * @param y the y coordinate of the center
+     * @param radius the radius
+     * @param exclude the index of a point not to visit, usually the center itself, or -1
+     * @param consumer called with the index and the squared distance of each point
+     */
+    public void forEachInRadius(double x, double y, double radius, int exclude, NeighborConsumer consumer) {
+        if (ids.length > 0)
+            searchRadius(0, ids.length, 0, x, y, radius * radius, exclude, consumer);
+    }
+
+    private void searchRadius(int lo, int hi, int depth, double x, double y, double radiusSq, int exclude, NeighborConsumer consumer) {
+        if (hi - lo <= LEAF_SIZE) {
+            for (int i = lo; i < hi; i++) {
+                double dx = xs[i] - x;
+                double dy = ys[i] - y;
+                double d = dx * dx + dy * dy;
+                if (d <= radiusSq && ids[i] != exclude)
+                    consumer.accept(ids[i], d);
+            }
+            return;
+        }
+        int mid = (lo + hi) >>> 1;
+        double dx = xs[mid] - x;
+        double dy = ys[mid] - y;
+        double d = dx * dx + dy * dy;
+        if (d <= radiusSq && ids[mid] != exclude)
+            consumer.accept(ids[mid], d);
+
+        double diff = (depth & 1) == 0 ? x - xs[mid] : y - ys[mid];
+        if (diff < 0) {
+            searchRadius(lo, mid, depth + 1, x, y, radiusSq, exclude, consumer);
+            if (diff * diff <= radiusSq)
+                searchRadius(mid + 1, hi, depth + 1, x, y, radiusSq, exclude, consumer);
+        } else {
+            searchRadius(mid + 1, hi, depth + 1, x, y, radiusSq, exclude, consumer);
+            if (diff * diff <= radiusSq)
+                searchRadius(lo, mid, depth + 1, x, y, radiusSq, exclude, consumer);
+        }
+    }
+
+    /**
+     * Find the k nearest points
+     * @param x the x coordinate of the center
+     * @param y the y coordinate of the center
+     * @param k the number of points to find
+     * @param exclude the index of a point to ignore, usually the center itself, or -1
+     * @param indices receives the indices of the points, closest first. At least k long
+     * @param distancesSq receives the squared distances of the points, closest first. At least k long
+     * @return the number of points found, k unless the tree has fewer points
+     */
+    public int nearest(double x, double y, int k, int exclude, int[] indices, double[] distancesSq) {
+        if (k <= 0 || ids.length == 0)
+            return 0;
+        // Max-heap on the distance, in the output arrays
+        int[] count = new int[1];
+        searchNearest(0, ids.length, 0, x, y, k, exclude, indices, distancesSq, count);
+        int n = count[0];
+        // Sort the heap, closest first
+        for (int end = n - 1; end > 0; end--) {
+            swapHeap(indices, distancesSq, 0, end);
+            siftDown(indices, distancesSq, 0, end);
+        }
+        return n;
+    }
+
+    private void searchNearest(int lo, int hi, int depth, double x, double y, int k, int exclude,
+                               int[] heap, double[] heapDist, int[] count) {
+        if (hi - lo <= LEAF_SIZE) {
+            for (int i = lo; i < hi; i++)
+                offer(i, x, y, k, exclude, heap, heapDist, count);
+            return;
+        }
+        int mid = (lo + hi) >>> 1;
+        offer(mid, x, y, k, exclude, heap, heapDist, count);
+
+        double diff = (depth & 1) == 0 ? x - xs[mid] : y - ys[mid];
+        int firstLo = diff < 0 ? lo : mid + 1;
+        int firstHi = diff < 0 ? mid : hi;
+        int secondLo = diff < 0 ? mid + 1 : lo;
+        int secondHi = diff < 0 ? hi : mid;
+        searchNearest(firstLo, firstHi, depth + 1, x, y, k, exclude, heap, heapDist, count);
+        if (count[0] < k || diff * diff < heapDist[0])
+            searchNearest(secondLo, secondHi, depth + 1, x, y, k, exclude, heap, heapDist, count);
+    }
+
+    private void offer(int i, double x, double y, int k, int exclude, int[] heap, double[] heapDist, int[] count) {
+        if (ids[i] == exclude)
+            return;
+        double dx = xs[i] - x;
+        double dy = ys[i] - y;
+        double d = dx * dx + dy * dy;
+        int n = count[0];
+        if (n < k) {
+            // Add at the end and sift up
+            int c = n;
+            heap[c] = ids[i];
+            heapDist[c] = d;
+            while (c > 0) {
+                int parent = (c - 1) >>> 1;
+                if (heapDist[parent] >= heapDist[c])
+                    break;
+                swapHeap(heap, heapDist, parent, c);
+                c = parent;
+            }
+            count[0] = n + 1;
+        } else if (d < heapDist[0]) {
+            heap[0] = ids[i];
+            heapDist[0] = d;
+            siftDown(heap, heapDist, 0, n);
+        }
+    }
+
+    private static void siftDown(int[] heap, double[] heapDist, int i, int n) {
+        while (true) {
+            int left = 2 * i + 1;
+            if (left >= n)
+                return;
+            int largest = left;
+            if (left + 1 < n && heapDist[left + 1] > heapDist[left])
+                largest = left + 1;
+            if (heapDist[i] >= heapDist[largest])
+                return;
+            swapHeap(heap, heapDist, i, largest);
+            i = largest;
+        }
+    }
+
+    private static void swapHeap(int[] heap, double[] heapDist, int i, int j) {
+        int ti = heap[i]; heap[i] = heap[j]; heap[j] = ti;
+        double td = heapDist[i]; heapDist[i] = heapDist[j]; heapDist[j] = td;
+    }
+
+    /**
+     * Receives the points found by a radius search
+     */
+    @FunctionalInterface
+    public interface NeighborConsumer {
+        /**
+         * @param index the index of the point, as given to the constructor
+         * @param distanceSq the squared distance to the center
+         */
+        void accept(int index, double distanceSq);
+    }
+}
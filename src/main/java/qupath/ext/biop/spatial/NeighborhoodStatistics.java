@@ -0,0 +1,226 @@
+package qupath.ext.biop.spatial;
+
+import qupath.lib.common.GeneralTools;
+import qupath.lib.images.ImageData;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.classes.PathClass;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+/**
+ * Neighborhood statistics for many radii and neighbor classes, computed in a single search per object.
+ * <p>
+ * For each object, the neighbors within the largest radius are visited once. Each neighbor is added to the smallest
+ * radius that contains it and to its class, and the counts and distances of larger radii are then accumulated from the
+ * smaller ones. Objects are processed in parallel, and all measurements are added before the hierarchy is notified once.
+ * <p>
+ * For each radius R, the measurements are
+ * <ul>
+ *     <li>"NN in radius R µm" and "Mean NN distance in radius R µm"</li>
+ *     <li>With classes, "NN [Class] in radius R µm" and "Mean NN distance [Class] in radius R µm"</li>
+ * </ul>
+ * Mean distances are NaN when there is no neighbor.
+ * <pre>
+ * def stats = new NeighborhoodStatistics(10, 20, 50, 100)
+ * stats.setClassAware(true)
+ * stats.run(getCurrentImageData(), getDetectionObjects())
+ * </pre>
+ */
+public class NeighborhoodStatistics {
+
+    private static final String um = GeneralTools.micrometerSymbol();
+    private static final String UNCLASSIFIED = "Unclassified";
+
+    private final double[] radii;
+    private final double[] radiiSq;
+    private boolean classAware = false;
+    private boolean meanDistances = true;
+    private List<PathClass> classes;
+
+    /**
+     * @param radii the radii in microns, in any order
+     */
+    public NeighborhoodStatistics(double... radii) {
+        if (radii.length == 0)
+            throw new IllegalArgumentException("At least one radius is needed");
+        this.radii = radii.clone();
+        Arrays.sort(this.radii);
+        this.radiiSq = Arrays.stream(this.radii).map(r -> r * r).toArray();
+    }
+
+    /**
+     * @param classAware true to also count the neighbors of each class
+     */
+    public void setClassAware(boolean classAware) {
+        this.classAware = classAware;
+    }
+
+    /**
+     * @param meanDistances true to also compute the mean distance to the neighbors
+     */
+    public void setMeanDistances(boolean meanDistances) {
+        this.meanDistances = meanDistances;
+    }
+
+    /**
+     * Set the neighbor classes to report, so that the same measurements are created on all images. By default, the
+     * classes of the measured objects are used.
+     * @param classes the classes, null for unclassified objects
+     */
+    public void setClasses(List<PathClass> classes) {
+        this.classes = classes == null ? null : new ArrayList<>(classes);
+    }
+
+    /**
+     * @return the largest radius, which is the distance searched around each object
+     */
+    public double getMaxRadius() {
+        return radii[radii.length - 1];
+    }
+
+    /**
+     * Measure all objects, and notify the hierarchy once
+     * @param imageData the image the objects belong to
+     * @param objects the objects, which are also the neighbors
+     */
+    public void run(ImageData<?> imageData, Collection<? extends PathObject> objects) {
+        run(SpatialNeighbors.create(imageData, objects));
+    }
+
+    /**
+     * Measure all the objects of an index, and notify the hierarchy once
+     * @param neighbors the index of the objects
+     */
+    public void run(SpatialNeighbors neighbors) {
+        List<PathObject> objects = neighbors.getObjects();
+        Context context = createContext(objects);
+        List<String> names = context.names();
+        double[] x = neighbors.getX();
+        double[] y = neighbors.getY();
+        int[] classIndices = context.classIndices(objects);
+
+        IntStream.range(0, objects.size()).parallel().forEach(i -> {
+            double[] values = compute(i, x, y, classIndices, neighbors.getTree(), context.nClasses());
+            var measurements = objects.get(i).getMeasurementList();
+            for (int m = 0; m < values.length; m++)
+                measurements.put(names.get(m), values[m]);
+        });
+        neighbors.fireMeasurementsChanged();
+    }
+
+    /**
+     * @param objects the objects, used to find the classes if they were not set
+     * @return the names of the measurements, in the order of the values computed for each object
+     */
+    public List<String> getMeasurementNames(Collection<? extends PathObject> objects) {
+        return createContext(objects).names();
+    }
+
+    Context createContext(Collection<? extends PathObject> objects) {
+        List<PathClass> classList = classes;
+        if (classList == null && classAware)
+            classList = objects.stream().map(PathObject::getPathClass).distinct()
+                    .sorted((a, b) -> classLabel(a).compareTo(classLabel(b))).toList();
+        if (!classAware)
+            classList = List.of();
+
+        Map<PathClass, Integer> classMap = new LinkedHashMap<>();
+        for (PathClass pathClass : classList)
+            classMap.putIfAbsent(pathClass, classMap.size());
+
+        List<String> names = new ArrayList<>();
+        for (double radius : radii) {
+            String suffix = " in radius " + radius + " " + um;
+            names.add("NN" + suffix);
+            if (meanDistances)
+                names.add("Mean NN distance" + suffix);
+            for (PathClass pathClass : classMap.keySet()) {
+                names.add("NN " + classLabel(pathClass) + suffix);
+                if (meanDistances)
+                    names.add("Mean NN distance " + classLabel(pathClass) + suffix);
+            }
+        }
+        return new Context(classMap, names);
+    }
+
+    private static String classLabel(PathClass pathClass) {
+        return pathClass == null ? UNCLASSIFIED : pathClass.toString();
+    }
+
+    /**
+     * Compute the values of one object, in the order of the measurement names
+     * @param i the index of the object in the tree
+     * @param x the x coordinates of the points of the tree
+     * @param y the y coordinates of the points of the tree
+     * @param classIndices the class index of each point of the tree, -1 if its class is not reported
+     * @param tree the tree
+     * @param nClasses the number of reported classes
+     * @return the values
+     */
+    double[] compute(int i, double[] x, double[] y, int[] classIndices, KDTree tree, int nClasses) {
+        int nRadii = radii.length;
+        // Column 0 for all neighbors, then one column per class
+        int width = nClasses + 1;
+        long[] counts = new long[nRadii * width];
+        double[] distances = new double[nRadii * width];
+
+        tree.forEachInRadius(x[i], y[i], radii[nRadii - 1], i, (j, d) -> {
+            // Smallest radius containing the neighbor
+            int r = 0;
+            while (d > radiiSq[r])
+                r++;
+            double dist = meanDistances ? Math.sqrt(d) : 0;
+            counts[r * width]++;
+            distances[r * width] += dist;
+            int c = classIndices[j];
+            if (c >= 0) {
+                counts[r * width + c + 1]++;
+                distances[r * width + c + 1] += dist;
+            }
+        });
+
+        // Neighbors within a radius are also within all the larger ones
+        for (int r = 1; r < nRadii; r++) {
+            for (int c = 0; c < width; c++) {
+                counts[r * width + c] += counts[(r - 1) * width + c];
+                distances[r * width + c] += distances[(r - 1) * width + c];
+            }
+        }
+
+        int valuesPerColumn = meanDistances ? 2 : 1;
+        double[] values = new double[nRadii * width * valuesPerColumn];
+        int v = 0;
+        for (int r = 0; r < nRadii; r++) {
+            for (int c = 0; c < width; c++) {
+                long count = counts[r * width + c];
+                values[v++] = count;
+                if (meanDistances)
+                    values[v++] = count == 0 ? Double.NaN : distances[r * width + c] / count;
+            }
+        }
+        return values;
+    }
+
+    /**
+     * The classes and measurement names used for a set of objects
+     */
+    record Context(Map<PathClass, Integer> classMap, List<String> names) {
+
+        int nClasses() {
+            return classMap.size();
+        }
+
+        int[] classIndices(List<? extends PathObject> objects) {
+            int[] indices = new int[objects.size()];
+            for (int i = 0; i < indices.length; i++)
+                indices[i] = classMap.getOrDefault(objects.get(i).getPathClass(), -1);
+            return indices;
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package qupath.ext.biop.spatial;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.common.GeneralTools;
+import qupath.lib.images.ImageData;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjectTools;
+import qupath.lib.roi.interfaces.ROI;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Neighbor queries between the centroids of many objects, in calibrated units.
+ * <p>
+ * The centroids are read once into primitive arrays and indexed with a {@link KDTree}. Queries for all objects run in
+ * parallel and write their results directly into the measurement lists of the objects. Each object is its own
+ * neighbor only if it is a different object, so objects with identical centroids are all counted.
+ * <pre>
+ * def neighbors = SpatialNeighbors.create(getCurrentImageData(), getDetectionObjects())
+ * neighbors.addNeighborCounts(20)
+ * neighbors.addClosestNeighborDistance()
+ * </pre>
+ */
+public class SpatialNeighbors {
+
+    final private static Logger logger = LoggerFactory.getLogger(SpatialNeighbors.class);
+
+    private static final String um = GeneralTools.micrometerSymbol();
+
+    private final ImageData<?> imageData;
+    private final List<PathObject> objects;
+    private final double[] x;
+    private final double[] y;
+    private final KDTree tree;
+
+    private SpatialNeighbors(ImageData<?> imageData, List<PathObject> objects, double[] x, double[] y) {
+        this.imageData = imageData;
+        this.objects = objects;
+        this.x = x;
+        this.y = y;
+        long start = System.currentTimeMillis();
+        this.tree = new KDTree(x, y);
+        logger.debug("KD-tree of {} objects built in {} ms", objects.size(), System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Index the centroids of objects, in microns. For cells, the centroid of the nucleus is used.
+     * @param imageData the image the objects belong to, for the pixel size and to notify the hierarchy of changes
+     * @param objects the objects
+     * @return the index
+     */
+    public static SpatialNeighbors create(ImageData<?> imageData, Collection<? extends PathObject> objects) {
+        double pixelSize = imageData.getServer().getPixelCalibration().getAveragedPixelSize().doubleValue();
+        List<PathObject> list = new ArrayList<>(objects);
+        int n = list.size();
+        double[] x = new double[n];
+        double[] y = new double[n];
+        IntStream.range(0, n).parallel().forEach(i -> {
+            ROI roi = PathObjectTools.getROI(list.get(i), true);
+            x[i] = roi.getCentroidX() * pixelSize;
+            y[i] = roi.getCentroidY() * pixelSize;
+        });
+        return new SpatialNeighbors(imageData, list, x, y);
+    }
+
+    /**
+     * @return the objects, in the order of the results of the queries
+     */
+    public List<PathObject> getObjects() {
+        return objects;
+    }
+
+    /**
+     * @return the tree of the centroids, indexed like {@link #getObjects()}
+     */
+    public KDTree getTree() {
+        return tree;
+    }
+
+    /**
+     * @return the x coordinates of the centroids, in microns
+     */
+    public double[] getX() {
+        return x;
+    }
+
+    /**
+     * @return the y coordinates of the centroids, in microns
+     */
+    public double[] getY() {
+        return y;
+    }
+
+    /**
+     * Count the other objects within a radius of each object, in parallel
+     * @param radius the radius, in microns
+     * @return the count for each object
+     */
+    public int[] countInRadius(double radius) {
+        int[] counts = new int[x.length];
+        IntStream.range(0, x.length).parallel().forEach(i -> counts[i] = tree.countInRadius(x[i], y[i], radius, i));
+        return counts;
+    }
+
+    /**
+     * Find the distance to the k-th closest other object of each object, in parallel
+     * @param k 1 for the closest object
+     * @return the distance for each object in microns, NaN if there are fewer than k other objects
+     */
+    public double[] nearestDistances(int k) {
+        double[] distances = new double[x.length];
+        IntStream.range(0, x.length).parallel().forEach(i -> {
+            int[] indices = new int[k];
+            double[] distancesSq = new double[k];
+            int found = tree.nearest(x[i], y[i], k, i, indices, distancesSq);
+            distances[i] = found == k ? Math.sqrt(distancesSq[k - 1]) : Double.NaN;
+        });
+        return distances;
+    }
+
+    /**
+     * Find the k closest other objects of each object, in parallel
+     * @param k the number of neighbors
+     * @return for each object, the indices of its neighbors in {@link #getObjects()}, closest first
+     */
+    public int[][] nearestNeighbors(int k) {
+        int[][] neighbors = new int[x.length][];
+        IntStream.range(0, x.length).parallel().forEach(i -> {
+            int[] indices = new int[k];
+            double[] distancesSq = new double[k];
+            int found = tree.nearest(x[i], y[i], k, i, indices, distancesSq);
+            neighbors[i] = found == k ? indices : Arrays.copyOf(indices, found);
+        });
+        return neighbors;
+    }
+
+    /**
+     * Add the measurement "NN in radius [radius] µm" to all objects
+     * @param radius the radius, in microns
+     */
+    public void addNeighborCounts(double radius) {
+        String name = "NN in radius " + radius + " " + um;
+        int[] counts = countInRadius(radius);
+        IntStream.range(0, x.length).parallel().forEach(i -> objects.get(i).getMeasurementList().put(name, counts[i]));
+        fireMeasurementsChanged();
+    }
+
+    /**
+     * Add the measurement "Closest Neighbor µm" to all objects
+     */
+    public void addClosestNeighborDistance() {
+        String name = "Closest Neighbor " + um;
+        double[] distances = nearestDistances(1);
+        IntStream.range(0, x.length).parallel().forEach(i -> objects.get(i).getMeasurementList().put(name, distances[i]));
+        fireMeasurementsChanged();
+    }
+
+    void fireMeasurementsChanged() {
+        if (imageData != null)
+            imageData.getHierarchy().fireObjectMeasurementsChangedEvent(this, objects);
+    }
+}
@@ -0,0 +1,169 @@
+package qupath.ext.biop.spatial;
+
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.prep.PreparedGeometry;
+import org.locationtech.jts.geom.prep.PreparedGeometryFactory;
+import org.locationtech.jts.index.strtree.STRtree;
+import org.locationtech.jts.operation.union.UnaryUnionOp;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.objects.PathObject;
+import qupath.lib.roi.GeometryTools;
+import qupath.lib.roi.interfaces.ROI;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Grows objects step by step into the free space around them, without overlaps.
+ * <p>
+ * At each step, every object in turn is buffered from its original shape and takes the part of the ring that no other
+ * object has claimed yet, so that objects earlier in the list win contested areas within a step. This is the same
+ * first come, first served growth as unioning every result into a single mask, but each object is only compared with
+ * the objects close enough to reach it, found once with a spatial index.
+ * <p>
+ * Objects that do not compete with each other are grown in parallel. Within a step, an object is grown only after its
+ * neighbors that come before it in the list, so the result does not depend on the number of threads.
+ * <pre>
+ * def expansion = new TerritoryExpansion(150 / pixelSize, 10 / pixelSize)
+ * def territories = expansion.expand(getAnnotationObjects())
+ * </pre>
+ */
+public class TerritoryExpansion {
+
+    final private static Logger logger = LoggerFactory.getLogger(TerritoryExpansion.class);
+
+    private final double[] distances;
+
+    /**
+     * @param distance the total expansion distance, in pixels
+     * @param step the distance added at each step, in pixels
+     */
+    public TerritoryExpansion(double distance, double step) {
+        if (step <= 0)
+            throw new IllegalArgumentException("Expansion step should be positive: " + step);
+        // Same distances as adding the step until the total distance is passed
+        int nSteps = (int) Math.floor(distance / step + 1e-9);
+        this.distances = new double[nSteps];
+        for (int s = 0; s < nSteps; s++)
+            distances[s] = (s + 1) * step;
+    }
+
+    /**
+     * Expand the ROIs of objects
+     * @param pathObjects the objects, in order of priority
+     * @return the expanded ROI of each object, in the same order. Objects keep their original ROI if they could not be expanded
+     */
+    public List<ROI> expand(List<? extends PathObject> pathObjects) {
+        List<Geometry> geometries = pathObjects.stream().map(o -> o.getROI().getGeometry()).toList();
+        List<Geometry> expanded = expandGeometries(geometries);
+        List<ROI> rois = new ArrayList<>(expanded.size());
+        for (int i = 0; i < expanded.size(); i++)
+            rois.add(GeometryTools.geometryToROI(expanded.get(i), pathObjects.get(i).getROI().getImagePlane()));
+        return rois;
+    }
+
+    /**
+     * Expand geometries
+     * @param geometries the geometries, in order of priority
+     * @return the expanded geometries, in the same order
+     */
+    public List<Geometry> expandGeometries(List<Geometry> geometries) {
+        int n = geometries.size();
+        Geometry[] territories = geometries.toArray(Geometry[]::new);
+        if (distances.length == 0 || n == 0)
+            return Arrays.asList(territories);
+
+        long start = System.currentTimeMillis();
+        int[][] neighbors = findNeighbors(geometries, distances[distances.length - 1]);
+        List<int[]> batches = createBatches(neighbors);
+        logger.debug("{} objects in {} batches", n, batches.size());
+
+        for (double distance : distances) {
+            // Batches in order, the objects of a batch at the same time
+            for (int[] batch : batches) {
+                Arrays.stream(batch).parallel().forEach(i -> {
+                    try {
+                        territories[i] = grow(i, geometries.get(i), distance, territories, neighbors[i]);
+                    } catch (RuntimeException e) {
+                        logger.error("Object {} cannot be expanded by {} px: {}", i, distance, e.getLocalizedMessage());
+                    }
+                });
+            }
+        }
+        logger.debug("{} objects expanded in {} steps in {} ms", n, distances.length, System.currentTimeMillis() - start);
+        return Arrays.asList(territories);
+    }
+
+    private static Geometry grow(int i, Geometry original, double distance, Geometry[] territories, int[] neighbors) {
+        Geometry territory = territories[i];
+        Geometry ring = original.buffer(distance).difference(territory);
+        if (ring.isEmpty())
+            return territory;
+
+        // Only the neighbors that reach the ring take part in the difference
+        PreparedGeometry preparedRing = PreparedGeometryFactory.prepare(ring);
+        List<Geometry> claimed = new ArrayList<>();
+        for (int j : neighbors) {
+            Geometry other = territories[j];
+            if (other.getEnvelopeInternal().intersects(ring.getEnvelopeInternal()) && preparedRing.intersects(other))
+                claimed.add(other);
+        }
+        Geometry free = claimed.isEmpty() ? ring : ring.difference(UnaryUnionOp.union(claimed));
+        return free.isEmpty() ? territory : territory.union(free);
+    }
+
+    /**
+     * Objects can only meet if their bounds, grown by the full distance, overlap
+     */
+    private static int[][] findNeighbors(List<Geometry> geometries, double distance) {
+        int n = geometries.size();
+        Envelope[] envelopes = new Envelope[n];
+        STRtree tree = new STRtree();
+        for (int i = 0; i < n; i++) {
+            envelopes[i] = new Envelope(geometries.get(i).getEnvelopeInternal());
+            envelopes[i].expandBy(distance);
+            tree.insert(envelopes[i], i);
+        }
+        tree.build();
+
+        int[][] neighbors = new int[n][];
+        Arrays.parallelSetAll(neighbors, i -> {
+            @SuppressWarnings("unchecked")
+            List<Integer> candidates = tree.query(envelopes[i]);
+            return candidates.stream().mapToInt(Integer::intValue).filter(j -> j != i).sorted().toArray();
+        });
+        return neighbors;
+    }
+
+    /**
+     * Group objects so that no object shares a batch with a neighbor, and each object comes after its neighbors with
+     * a smaller index
+     */
+    private static List<int[]> createBatches(int[][] neighbors) {
+        int n = neighbors.length;
+        int[] levels = new int[n];
+        int nLevels = 0;
+        for (int i = 0; i < n; i++) {
+            int level = 0;
+            for (int j : neighbors[i]) {
+                if (j < i)
+                    level = Math.max(level, levels[j] + 1);
+            }
+            levels[i] = level;
+            nLevels = Math.max(nLevels, level + 1);
+        }
+        int[] sizes = new int[nLevels];
+        for (int level : levels)
+            sizes[level]++;
+        List<int[]> batches = new ArrayList<>(nLevels);
+        for (int size : sizes)
+            batches.add(new int[size]);
+        int[] filled = new int[nLevels];
+        for (int i = 0; i < n; i++)
+            batches.get(levels[i])[filled[levels[i]]++] = i;
+        return batches;
+    }
+}
@@ -0,0 +1,213 @@
+package qupath.ext.biop.spatial;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.ext.biop.utils.EntryBatch;
+import qupath.lib.images.ImageData;
+import qupath.lib.objects.PathDetectionObject;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjectTools;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.projects.ProjectImageEntry;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.regions.ImageRegion;
+import qupath.lib.roi.interfaces.ROI;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Computes {@link NeighborhoodStatistics} tile by tile, so that no index over all the detections of an image is needed.
+ * <p>
+ * Neighbors are only searched in the same z-slice and timepoint, so each plane of a z-stack or time series is tiled
+ * separately. The area covered by the detections of a plane is split into square tiles. Each detection belongs to the
+ * tile that contains its centroid. For each tile, the detections of the plane within the tile and a halo as wide as the
+ * largest radius are read from the hierarchy, and only the detections of the tile itself are measured. As every
+ * neighbor of a measured detection is in the halo, the results are exactly those of a single index over the detections
+ * of the plane. Tiles of all planes are processed in parallel.
+ * <p>
+ * Whole projects can be processed with {@link #runProject(List)}. Entries are then read, measured and saved a few at a
+ * time, within a memory budget estimated from the size of their data files.
+ */
+public class TiledNeighborhoods {
+
+    final private static Logger logger = LoggerFactory.getLogger(TiledNeighborhoods.class);
+
+    private final NeighborhoodStatistics statistics;
+    private double tileSize = 1000;
+    private final EntryBatch batch = new EntryBatch("neighborhoods");
+
+    /**
+     * @param statistics the statistics to compute
+     */
+    public TiledNeighborhoods(NeighborhoodStatistics statistics) {
+        this.statistics = statistics;
+    }
+
+    /**
+     * @param tileSize the width and height of the tiles, in microns. Default is 1000
+     */
+    public void setTileSize(double tileSize) {
+        if (tileSize <= 0)
+            throw new IllegalArgumentException("Tile size should be positive: " + tileSize);
+        this.tileSize = tileSize;
+    }
+
+    /**
+     * Set how many entries can be processed at the same time by {@link #runProject(List)}. Default is 1.
+     * @param parallelism the number of entries processed concurrently, see {@link EntryBatch#setParallelism(int)}
+     */
+    public void setParallelism(int parallelism) {
+        batch.setParallelism(parallelism);
+    }
+
+    /**
+     * @param memoryBudgetMB the approximate memory budget, in megabytes, see {@link EntryBatch#setMemoryBudgetMB(int)}
+     */
+    public void setMemoryBudgetMB(int memoryBudgetMB) {
+        batch.setMemoryBudgetMB(memoryBudgetMB);
+    }
+
+    /**
+     * Measure all the detections of an image, tile by tile, and notify the hierarchy once
+     * @param imageData the image
+     * @return the number of detections that were measured
+     */
+    public int run(ImageData<?> imageData) {
+        PathObjectHierarchy hierarchy = imageData.getHierarchy();
+        Collection<PathObject> detections = hierarchy.getDetectionObjects();
+        if (detections.isEmpty())
+            return 0;
+
+        // Same classes and measurement names for all tiles
+        NeighborhoodStatistics.Context context = statistics.createContext(detections);
+
+        // Neighbors are only searched within the same z-slice and timepoint, so each plane has its own grid
+        Map<ImagePlane, List<PathObject>> planes = new LinkedHashMap<>();
+        for (PathObject detection : detections)
+            planes.computeIfAbsent(PathObjectTools.getROI(detection, true).getImagePlane(), p -> new ArrayList<>()).add(detection);
+
+        double pixelSize = imageData.getServer().getPixelCalibration().getAveragedPixelSize().doubleValue();
+        List<Tile> tiles = new ArrayList<>();
+        for (Map.Entry<ImagePlane, List<PathObject>> plane : planes.entrySet()) {
+            Grid grid = Grid.create(plane.getKey(), plane.getValue(), tileSize / pixelSize, statistics.getMaxRadius() / pixelSize);
+            for (int iy = 0; iy < grid.ny; iy++) {
+                for (int ix = 0; ix < grid.nx; ix++)
+                    tiles.add(new Tile(grid, ix, iy));
+            }
+        }
+        logger.debug("Measuring {} detections in {} tiles over {} planes", detections.size(), tiles.size(), planes.size());
+
+        List<PathObject> measured = new ArrayList<>(detections);
+        int nMeasured = tiles.parallelStream()
+                .mapToInt(tile -> measureTile(imageData, hierarchy, tile.grid(), tile.ix(), tile.iy(), context))
+                .sum();
+        hierarchy.fireObjectMeasurementsChangedEvent(this, measured);
+        return nMeasured;
+    }
+
+    private int measureTile(ImageData<?> imageData, PathObjectHierarchy hierarchy, Grid grid, int ix, int iy, NeighborhoodStatistics.Context context) {
+        // Detections of the tile and its halo, straight from the spatial cache of the hierarchy
+        ImageRegion region = grid.getHaloRegion(ix, iy);
+        Collection<PathObject> candidates = hierarchy.getObjectsForRegion(PathDetectionObject.class, region, null);
+        if (candidates.isEmpty())
+            return 0;
+
+        SpatialNeighbors neighbors = SpatialNeighbors.create(imageData, candidates);
+        List<PathObject> objects = neighbors.getObjects();
+        int[] classIndices = context.classIndices(objects);
+        List<String> names = context.names();
+        double[] x = neighbors.getX();
+        double[] y = neighbors.getY();
+
+        int n = 0;
+        for (int i = 0; i < objects.size(); i++) {
+            PathObject object = objects.get(i);
+            // Only the detections whose centroid is in this tile, the others are measured with their own tile
+            ROI roi = PathObjectTools.getROI(object, true);
+            if (grid.getTileX(roi.getCentroidX()) != ix || grid.getTileY(roi.getCentroidY()) != iy)
+                continue;
+            double[] values = statistics.compute(i, x, y, classIndices, neighbors.getTree(), context.nClasses());
+            var measurements = object.getMeasurementList();
+            for (int m = 0; m < values.length; m++)
+                measurements.put(names.get(m), values[m]);
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * Measure all the detections of project entries and save them
+     * @param entries the entries to process
+     * @return the number of entries that were saved
+     */
+    public int runProject(List<ProjectImageEntry<BufferedImage>> entries) {
+        return batch.run(entries, entry -> {
+            ImageData<BufferedImage> imageData = entry.readImageData();
+            try {
+                int n = run(imageData);
+                entry.saveImageData(imageData);
+                logger.info("{}: {} detections measured", entry.getImageName(), n);
+            } finally {
+                imageData.getServer().close();
+            }
+        });
+    }
+
+    private record Tile(Grid grid, int ix, int iy) {}
+
+    /**
+     * Square tiles over the centroids of the detections of one plane, in pixels
+     */
+    private static class Grid {
+        private final ImagePlane plane;
+        private final double minX, minY;
+        private final double tileSize;
+        private final double halo;
+        private final int nx, ny;
+
+        static Grid create(ImagePlane plane, Collection<PathObject> detections, double tileSize, double halo) {
+            double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+            double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+            for (PathObject detection : detections) {
+                ROI roi = PathObjectTools.getROI(detection, true);
+                minX = Math.min(minX, roi.getCentroidX());
+                minY = Math.min(minY, roi.getCentroidY());
+                maxX = Math.max(maxX, roi.getCentroidX());
+                maxY = Math.max(maxY, roi.getCentroidY());
+            }
+            return new Grid(plane, minX, minY, maxX, maxY, tileSize, halo);
+        }
+
+        Grid(ImagePlane plane, double minX, double minY, double maxX, double maxY, double tileSize, double halo) {
+            this.plane = plane;
+            this.minX = minX;
+            this.minY = minY;
+            this.tileSize = tileSize;
+            this.halo = halo;
+            this.nx = Math.max(1, (int) Math.ceil((maxX - minX) / tileSize));
+            this.ny = Math.max(1, (int) Math.ceil((maxY - minY) / tileSize));
+        }
+
+        int getTileX(double x) {
+            return Math.max(0, Math.min(nx - 1, (int) Math.floor((x - minX) / tileSize)));
+        }
+
+        int getTileY(double y) {
+            return Math.max(0, Math.min(ny - 1, (int) Math.floor((y - minY) / tileSize)));
+        }
+
+        // The tile grown by the halo, rounded outwards, in the plane of the grid
+        ImageRegion getHaloRegion(int ix, int iy) {
+            int x0 = (int) Math.floor(minX + ix * tileSize - halo) - 1;
+            int y0 = (int) Math.floor(minY + iy * tileSize - halo) - 1;
+            int x1 = (int) Math.ceil(minX + (ix + 1) * tileSize + halo) + 1;
+            int y1 = (int) Math.ceil(minY + (iy + 1) * tileSize + halo) + 1;
+            return ImageRegion.createInstance(x0, y0, x1 - x0, y1 - y0, plane.getZ(), plane.getT());
+        }
+    }
+}
@@ -0,0 +1,239 @@
+package qupath.ext.biop.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.common.ThreadTools;
+import qupath.lib.display.ChannelDisplayInfo;
+import qupath.lib.display.ImageDisplay;
+import qupath.lib.gui.scripting.QPEx;
+import qupath.lib.images.ImageData;
+import qupath.lib.projects.ProjectImageEntry;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Immutable channel settings, ready to be applied to any number of images.
+ * <p>
+ * The settings are parsed once, in the format of {@link Channels}, and stored by channel position, with the colors
+ * already converted to QuPath colors. Profiles read from files are cached, and only read again when the file changes.
+ * Applying a profile does not need a viewer, so it works on images that are not open.
+ * <pre>
+ * def profile = ChannelProfile.load(new File(buildFilePath(PROJECT_BASE_DIR, 'panel_1.txt')))
+ * profile.applyAndSave(getProject().getImageList(), 4)
+ * </pre>
+ */
+public class ChannelProfile {
+
+    final private static Logger logger = LoggerFactory.getLogger(ChannelProfile.class);
+
+    private static final Map<Path, CachedProfile> cache = new ConcurrentHashMap<>();
+
+    // Indexed by position - 1, null or NaN where the profile has no channel
+    private final String[] names;
+    private final Integer[] colors;
+    private final float[] displayMin;
+    private final float[] displayMax;
+    private final boolean[] defined;
+
+    private ChannelProfile(List<Channels.Channel> channels) {
+        int size = channels.stream().mapToInt(c -> c.position).max().orElse(0);
+        names = new String[size];
+        colors = new Integer[size];
+        displayMin = new float[size];
+        displayMax = new float[size];
+        defined = new boolean[size];
+        Arrays.fill(displayMin, Float.NaN);
+        Arrays.fill(displayMax, Float.NaN);
+
+        for (Channels.Channel c : channels) {
+            if (c.position < 1) {
+                logger.warn("Ignoring channel '{}' with position {}", c.name, c.position);
+                continue;
+            }
+            int i = c.position - 1;
+            names[i] = c.name;
+            colors[i] = c.getQuPathColor();
+            displayMin[i] = c.displayMin;
+            displayMax[i] = c.displayMax;
+            defined[i] = true;
+        }
+    }
+
+    /**
+     * Create a profile from channels read with {@link Channels#readChannelSettings(String)} or {@link Channels#readChannelSettings(File)}
+     * @param channels the channels
+     * @return a new profile
+     */
+    public static ChannelProfile of(List<Channels.Channel> channels) {
+        return new ChannelProfile(channels);
+    }
+
+    /**
+     * Read a profile from a settings file, or return the cached profile if the file did not change since it was read
+     * @param settingsFile the file, in the format of {@link Channels#writeChannelSettings(List, File)}
+     * @return the profile
+     * @throws IOException if the file cannot be read
+     */
+    public static ChannelProfile load(File settingsFile) throws IOException {
+        Path path = settingsFile.toPath().toAbsolutePath().normalize();
+        if (!Files.exists(path))
+            throw new FileNotFoundException(settingsFile.getAbsolutePath());
+        long lastModified = Files.getLastModifiedTime(path).toMillis();
+        long size = Files.size(path);
+
+        CachedProfile cached = cache.get(path);
+        if (cached != null && cached.lastModified == lastModified && cached.size == size)
+            return cached.profile;
+
+        ChannelProfile profile = new ChannelProfile(Channels.readChannelSettings(settingsFile));
+        cache.put(path, new CachedProfile(lastModified, size, profile));
+        return profile;
+    }
+
+    // Forget a cached profile, when its file is rewritten
+    static void invalidate(File settingsFile) {
+        cache.remove(settingsFile.toPath().toAbsolutePath().normalize());
+    }
+
+    /**
+     * @return the number of channel positions covered by this profile, including the positions it does not set
+     */
+    public int size() {
+        return names.length;
+    }
+
+    /**
+     * @param position the channel position, starting at 1
+     * @return true if the profile has settings for this channel. Channels without settings are hidden
+     */
+    public boolean isDefined(int position) {
+        return position >= 1 && position <= names.length && defined[position - 1];
+    }
+
+    /**
+     * Set the channel names, colors, display ranges and visibility of an image. Does not need a viewer.
+     * Channels that are not in the profile keep their name and color, and are hidden.
+     * @param imageData the image to modify
+     */
+    public void apply(ImageData<BufferedImage> imageData) {
+        try {
+            apply(imageData, null);
+        } catch (IOException e) {
+            // Only estimating the ranges reads the image
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Set the channel names, colors and visibility of an image, with display ranges estimated from its pixels
+     * @param imageData the image to modify
+     * @param estimator estimates the display ranges of the image, or null to use the ranges of the profile
+     * @throws IOException if the estimator cannot read the image
+     */
+    public void apply(ImageData<BufferedImage> imageData, DisplayRangeEstimator estimator) throws IOException {
+        int nChannels = imageData.getServer().nChannels();
+
+        String[] channelNames = new String[nChannels];
+        Integer[] channelColors = new Integer[nChannels];
+        for (int i = 0; i < Math.min(nChannels, names.length); i++) {
+            channelNames[i] = names[i];
+            channelColors[i] = colors[i];
+        }
+        QPEx.setChannelNames(imageData, channelNames);
+        QPEx.setChannelColors(imageData, channelColors);
+
+        DisplayRangeEstimator.Range[] ranges = estimator == null ? null : estimator.estimate(imageData.getServer());
+        for (int i = 0; i < Math.min(nChannels, names.length); i++) {
+            if (!defined[i])
+                continue;
+            if (ranges != null)
+                QPEx.setChannelDisplayRange(imageData, i, ranges[i].min(), ranges[i].max());
+            else
+                QPEx.setChannelDisplayRange(imageData, i, displayMin[i], displayMax[i]);
+        }
+
+        // Visibility is stored with the display settings of the image
+        ImageDisplay display = ImageDisplay.create(imageData);
+        List<ChannelDisplayInfo> available = display.availableChannels();
+        for (int i = 0; i < available.size(); i++) {
+            display.setChannelSelected(available.get(i), i < defined.length && defined[i]);
+        }
+    }
+
+    /**
+     * Apply this profile to many images, in parallel
+     * @param images the images to modify
+     */
+    public void apply(Collection<ImageData<BufferedImage>> images) {
+        images.parallelStream().forEach(this::apply);
+    }
+
+    /**
+     * Apply this profile to project entries and save them, reading a few entries at the same time
+     * @param entries the entries to modify
+     * @param nThreads the number of entries processed at the same time
+     * @return the number of entries that were saved
+     */
+    public int applyAndSave(List<ProjectImageEntry<BufferedImage>> entries, int nThreads) {
+        return applyAndSave(entries, nThreads, null);
+    }
+
+    /**
+     * Apply this profile to project entries and save them, with display ranges estimated for each entry
+     * @param entries the entries to modify
+     * @param nThreads the number of entries processed at the same time
+     * @param estimator estimates the display ranges of each entry, or null to use the ranges of the profile
+     * @return the number of entries that were saved
+     */
+    public int applyAndSave(List<ProjectImageEntry<BufferedImage>> entries, int nThreads, DisplayRangeEstimator estimator) {
+        AtomicInteger nSaved = new AtomicInteger(0);
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(nThreads, entries.size())),
+                ThreadTools.createThreadFactory("biop-channel-profile-", true));
+        try {
+            List<Future<?>> tasks = new ArrayList<>(entries.size());
+            for (ProjectImageEntry<BufferedImage> entry : entries) {
+                tasks.add(pool.submit(() -> {
+                    try {
+                        ImageData<BufferedImage> imageData = entry.readImageData();
+                        try {
+                            apply(imageData, estimator);
+                            entry.saveImageData(imageData);
+                            nSaved.incrementAndGet();
+                        } finally {
+                            imageData.getServer().close();
+                        }
+                    } catch (Exception e) {
+                        logger.error("Could not apply channel settings to {}: {}", entry.getImageName(), e.getMessage(), e);
+                    }
+                }));
+            }
+            for (Future<?> task : tasks)
+                task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            logger.error(e.getMessage(), e);
+        } finally {
+            pool.shutdownNow();
+        }
+        return nSaved.get();
+    }
+
+    private record CachedProfile(long lastModified, long size, ChannelProfile profile) {}
+}
@@ -0,0 +1,85 @@
+package qupath.ext.biop.utils;
+
+import qupath.lib.projects.Project;
+import qupath.lib.projects.Projects;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A folder of named channel settings files, one per stain panel.
+ * <p>
+ * Each file ending with '.txt' is a profile named after the file, in the format of {@link Channels}.
+ * Profiles are read with {@link ChannelProfile#load(File)}, so switching between panels does not parse them again.
+ * <pre>
+ * def library = ChannelProfileLibrary.forProject(getProject())
+ * library.get("Panel 1").apply(getCurrentImageData())
+ * </pre>
+ */
+public class ChannelProfileLibrary {
+
+    private static final String EXTENSION = ".txt";
+
+    private final File directory;
+
+    /**
+     * @param directory the folder containing the settings files, created when saving the first profile
+     */
+    public ChannelProfileLibrary(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * @param project the project
+     * @return the library in the 'channel_profiles' folder of the project
+     */
+    public static ChannelProfileLibrary forProject(Project<?> project) {
+        return new ChannelProfileLibrary(new File(Projects.getBaseDirectory(project), "channel_profiles"));
+    }
+
+    /**
+     * @return the names of the available profiles, sorted
+     */
+    public List<String> getNames() {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(EXTENSION));
+        if (files == null)
+            return Collections.emptyList();
+        return Arrays.stream(files)
+                .map(f -> f.getName().substring(0, f.getName().length() - EXTENSION.length()))
+                .sorted()
+                .toList();
+    }
+
+    /**
+     * @param name the name of the profile
+     * @return the profile, read once and cached until its file changes
+     * @throws IOException if there is no profile with this name or it cannot be read
+     */
+    public ChannelProfile get(String name) throws IOException {
+        return ChannelProfile.load(getFile(name));
+    }
+
+    /**
+     * Save channel settings as a new profile, or replace an existing one
+     * @param name the name of the profile
+     * @param channels the settings, see {@link Channels#getCurrentChannelSettings()}
+     * @throws IOException if the file cannot be written
+     */
+    public void save(String name, List<Channels.Channel> channels) throws IOException {
+        directory.mkdirs();
+        File file = getFile(name);
+        Channels.writeChannelSettings(channels, file);
+        ChannelProfile.invalidate(file);
+    }
+
+    /**
+     * @param name the name of the profile
+     * @return the file of the profile, which may not exist
+     */
+    public File getFile(String name) {
+        return new File(directory, name + EXTENSION);
+    }
+}
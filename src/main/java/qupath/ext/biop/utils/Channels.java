@@ -15,11 +15,11 @@ import java.io.*;
 import java.lang.reflect.Field;
 import java.util.List;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
-import java.util.stream.IntStream;
 
 /**
  * Channels class to handle loading and saving channel settings
@@ -43,9 +43,9 @@ public class Channels {
      */
     public static void setChannelSettings(File settingsFile) {
         try {
-            List<Channel> settings = readChannelSettings(settingsFile);
-            setChannelSettings(settings);
-        } catch (FileNotFoundException e) {
+            // Parsed once, and reused as long as the file does not change
+            setChannelSettings(ChannelProfile.load(settingsFile));
+        } catch (IOException e) {
             logger.warn("Could not set channel settings:\n{}", e.getMessage());
         }
     }
@@ -55,36 +55,49 @@ public class Channels {
      * @param channels the list of channels, created with {@link Channels#readChannelSettings(File)}, {@link Channels#getCurrentChannelSettings()} or {@link Channels#readChannelSettings(String)}
      */
     public static void setChannelSettings(List<Channel> channels) {
-        ImageData<BufferedImage> imageData = QuPathGUI.getInstance().getImageData();
-
-        // Ready to set all the things
-        int nChannels = imageData.getServer().nChannels();
-        List<String> names = IntStream.rangeClosed(1, nChannels).mapToObj(idx -> {
-            Optional<Channel> channel = channels.stream().filter(c -> c.position == idx).findFirst();
-            return channel.isPresent() ? channel.get().name : null;
-        }).collect(Collectors.toList());
+        setChannelSettings(ChannelProfile.of(channels));
+    }
 
-        List<Integer> colors = IntStream.rangeClosed(1, nChannels).mapToObj(idx -> {
-            Optional<Channel> channel = channels.stream().filter(c -> c.position == idx).findFirst();
-            return channel.isPresent() ? channel.get().getQuPathColor() : null;
-        }).collect(Collectors.toList());
+    /**
+     * Set the channel displays of the current image from a profile, and update the viewer
+     * @param profile the profile, see {@link ChannelProfile} and {@link ChannelProfileLibrary}
+     */
+    public static void setChannelSettings(ChannelProfile profile) {
+        setChannelSettings(profile, null);
+    }
 
-        QPEx.setChannelNames(imageData, names.toArray(new String[0]));
-        QPEx.setChannelColors(imageData, colors.toArray(new Integer[0]));
+    /**
+     * Set the channel names, colors and visibility of the current image from a list of channels, but estimate the
+     * display ranges from the pixel values of the image rather than using those of the list
+     * @param channels the list of channels
+     * @param estimator the estimator of the display ranges, see {@link DisplayRangeEstimator}
+     */
+    public static void setChannelSettings(List<Channel> channels, DisplayRangeEstimator estimator) {
+        setChannelSettings(ChannelProfile.of(channels), estimator);
+    }
 
-        channels.stream().forEach(c -> QPEx.setChannelDisplayRange(c.position - 1, c.displayMin, c.displayMax));
+    /**
+     * Set the channel displays of the current image from a profile, and update the viewer
+     * @param profile the profile, see {@link ChannelProfile} and {@link ChannelProfileLibrary}
+     * @param estimator estimates the display ranges from the image, or null to use the ranges of the profile
+     */
+    public static void setChannelSettings(ChannelProfile profile, DisplayRangeEstimator estimator) {
+        ImageData<BufferedImage> imageData = QuPathGUI.getInstance().getImageData();
+        try {
+            profile.apply(imageData, estimator);
+        } catch (IOException e) {
+            logger.warn("Could not estimate display ranges:\n{}", e.getMessage());
+            return;
+        }
 
-        // Set visibility... Though this is only for the current display
+        // Set visibility on the current display, which was created before the settings were applied
         QuPathViewer viewer = QuPathGUI.getInstance().getViewer();
+        if (viewer == null || viewer.getImageData() != imageData)
+            return;
         ObservableList<ChannelDisplayInfo> availableChannels = viewer.getImageDisplay().availableChannels();
-
-        AtomicInteger position = new AtomicInteger(1);
-        availableChannels.stream().forEach(channelInfo -> {
-            // Check that the channel is in our channel list, based on index
-            int pos = position.getAndIncrement();
-            boolean active = channels.stream().filter(c -> c.position == pos).findFirst().isPresent();
-            viewer.getImageDisplay().setChannelSelected(channelInfo, active);
-        });
+        for (int i = 0; i < availableChannels.size(); i++) {
+            viewer.getImageDisplay().setChannelSelected(availableChannels.get(i), profile.isDefined(i + 1));
+        }
         viewer.repaintEntireImage();
     }
 
@@ -108,8 +121,8 @@ public class Channels {
             String name = c.getName();
 
             String color = "#" + Integer.toHexString(Color.decode(c.getColor().toString()).getRGB()).substring(2);
-            int displayMin = (int) c.getMinDisplay();
-            int displayMax = (int) c.getMaxDisplay();
+            float displayMin = c.getMinDisplay();
+            float displayMax = c.getMaxDisplay();
 
             // Is this channel visible?
             if (selectedChannels.contains(c)) {
@@ -135,7 +148,7 @@ public class Channels {
         for (String setting : settings) {
             Channel c = Channel.getChannel(setting);
             if (c != null)
-                channels.add(Channel.getChannel(setting));
+                channels.add(c);
         }
         return channels;
     }
@@ -155,7 +168,7 @@ public class Channels {
             br.lines().forEach(line -> {
                 Channel c = Channel.getChannel(line);
                 if (c != null)
-                    channels.add(Channel.getChannel(line));
+                    channels.add(c);
             });
 
             return channels;
@@ -183,20 +196,23 @@ public class Channels {
     }
 
     /**
-     * Private Channel class that handles converting to and from text
+     * Channel class that handles converting to and from text
      */
-    private static class Channel {
+    static class Channel {
         int position;
         String name;
         String color;
-        int displayMin;
-        int displayMax;
+        float displayMin;
+        float displayMax;
+
+        // Resolved colors, so that names are looked up only once
+        private static final Map<String, Integer> colorCache = new ConcurrentHashMap<>();
 
         // Magic pattern to remove the blablabla (C#) bit"
         static Pattern channelNamePattern = Pattern.compile("(.*) \\(C\\d+\\)");
 
         // Builder so we can use the 'as' magic
-        public Channel(int position, String name, String color, int displayMin, int displayMax) {
+        public Channel(int position, String name, String color, float displayMin, float displayMax) {
             this.position = position;
 
             // Cleanup channel name ( remove '(C#)' at the end if present)
@@ -220,8 +236,8 @@ public class Channels {
                 int position = Integer.parseInt(elements.get(0));
                 String name = elements.get(1);
                 String color = elements.get(2);
-                int displayMin = Integer.parseInt(elements.get(3));
-                int displayMax = Integer.parseInt(elements.get(4));
+                float displayMin = Float.parseFloat(elements.get(3));
+                float displayMax = Float.parseFloat(elements.get(4));
 
                 return new Channel(position, name, color, displayMin, displayMax);
             } catch (NumberFormatException error) {
@@ -231,21 +247,25 @@ public class Channels {
         }
 
         // Convert a text or hex color to a QuPath color
-        private int getQuPathColor() {
+        int getQuPathColor() {
+            return colorCache.computeIfAbsent(this.color, k -> resolveColor(k, this.name));
+        }
+
+        private static int resolveColor(String color, String name) {
             Color c;
             try {
                 // get color by hex or octal value
-                c = Color.decode(this.color);
+                c = Color.decode(color);
             } catch (NumberFormatException nfe) {
                 // if we can't decode lets try to get it by name
                 try {
                     // try to get a color by name using reflection
-                    final Field f = Color.class.getField(this.color.toLowerCase());
+                    final Field f = Color.class.getField(color.toLowerCase());
 
                     c = (Color) f.get(null);
                 } catch (Exception ce) {
                     // if we can't get any color return white
-                    logger.warn("Could not get color for Channel '{}'. Defaulting to grey", this.name);
+                    logger.warn("Could not get color for Channel '{}'. Defaulting to grey", name);
                     c = Color.white;
                 }
             }
@@ -256,7 +276,14 @@ public class Channels {
 
         // This is used to print out the contents of a Channel and for writing to a file
         public String toString() {
-            return String.format("%d, %s, %s, %d, %d", this.position, this.name, this.color, this.displayMin, this.displayMax);
+            return String.format("%d, %s, %s, %s, %s", this.position, this.name, this.color, formatValue(this.displayMin), formatValue(this.displayMax));
+        }
+
+        // Whole values are written without decimals, as in files written before ranges were floats
+        private static String formatValue(float value) {
+            if (value == Math.rint(value) && Math.abs(value) < 1e9)
+                return String.valueOf((long) value);
+            return String.valueOf(value);
         }
 
         @Override
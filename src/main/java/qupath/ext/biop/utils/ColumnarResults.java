@@ -0,0 +1,404 @@
+package qupath.ext.biop.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+
+/**
+ * Compact, column-oriented binary format for large results tables.
+ * <p>
+ * A file is a short header followed by row groups, typically one per image, which are appended one after the other
+ * with {@link #appendRowGroup(File, String, List, List)}. Within a row group, each column is stored separately and
+ * compressed, with its own type:
+ * <ul>
+ *     <li>integers, when all the values of the column are whole numbers</li>
+ *     <li>doubles, for all other numeric columns. Missing values are NaN</li>
+ *     <li>strings, stored as a dictionary of the distinct values and one code per row</li>
+ * </ul>
+ * A {@link Reader} only reads the headers of the row groups when opened, and then decompresses the requested columns,
+ * so a single measurement can be loaded for a whole project without parsing anything else.
+ */
+public class ColumnarResults {
+
+    private static final byte[] FILE_MAGIC = "BIOPCOL1".getBytes(StandardCharsets.US_ASCII);
+    private static final int GROUP_MAGIC = 0x52475250; // "RGRP"
+
+    private static final byte TYPE_DOUBLE = 0;
+    private static final byte TYPE_INT = 1;
+    private static final byte TYPE_STRING = 2;
+
+    /**
+     * Append one row group to a columnar results file, creating the file if needed.
+     * Several threads or processes can append to the same file, see {@link ResultsWriter}.
+     * @param file the file to append to
+     * @param groupName the name of the row group, typically the image name
+     * @param columns the names of the columns, in the same order as the values of each row
+     * @param rows the values, Numbers or Strings. Null values are written as NaN or null
+     * @throws IOException if the file cannot be written
+     */
+    public static void appendRowGroup(File file, String groupName, List<String> columns, List<Object[]> rows) throws IOException {
+        // Compress everything before taking the lock, so that other writers only wait for the actual write
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(GROUP_MAGIC);
+        writeString(out, groupName);
+        out.writeInt(rows.size());
+        out.writeInt(columns.size());
+        for (int c = 0; c < columns.size(); c++) {
+            writeString(out, columns.get(c));
+            writeColumn(out, rows, c);
+        }
+        out.flush();
+
+        Path path = file.toPath().toAbsolutePath();
+        ResultsWriter.withLock(path, channel -> {
+            channel.position(channel.size());
+            if (channel.size() == 0)
+                channel.write(ByteBuffer.wrap(FILE_MAGIC));
+            ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+            return null;
+        });
+    }
+
+    /**
+     * Convenience method to load a single numeric column of a columnar results file, e.g. from a script
+     * @param file the columnar results file
+     * @param column the name of the column
+     * @return one value per row of the file, NaN for missing values
+     * @throws IOException if the file cannot be read
+     */
+    public static double[] readColumn(File file, String column) throws IOException {
+        try (Reader reader = new Reader(file)) {
+            return reader.readDoubles(column);
+        }
+    }
+
+    private static void writeColumn(DataOutputStream out, List<Object[]> rows, int c) throws IOException {
+        int n = rows.size();
+        boolean allNumbers = true, allIntegers = true;
+        for (Object[] row : rows) {
+            Object value = c < row.length ? row[c] : null;
+            if (value instanceof Number number) {
+                double d = number.doubleValue();
+                if (d != Math.rint(d) || d < Integer.MIN_VALUE || d > Integer.MAX_VALUE)
+                    allIntegers = false;
+            } else if (value != null) {
+                allNumbers = false;
+                break;
+            } else {
+                // Integers cannot hold missing values
+                allIntegers = false;
+            }
+        }
+
+        ByteArrayOutputStream raw = new ByteArrayOutputStream();
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        DataOutputStream data = new DataOutputStream(new DeflaterOutputStream(raw, deflater, 1 << 16));
+        byte type;
+        if (allNumbers && allIntegers) {
+            type = TYPE_INT;
+            for (Object[] row : rows)
+                data.writeInt(((Number) row[c]).intValue());
+        } else if (allNumbers) {
+            type = TYPE_DOUBLE;
+            for (Object[] row : rows) {
+                Object value = c < row.length ? row[c] : null;
+                data.writeDouble(value == null ? Double.NaN : ((Number) value).doubleValue());
+            }
+        } else {
+            type = TYPE_STRING;
+            Map<String, Integer> dictionary = new HashMap<>();
+            List<String> values = new ArrayList<>();
+            int[] codes = new int[n];
+            for (int r = 0; r < n; r++) {
+                Object value = c < rows.get(r).length ? rows.get(r)[c] : null;
+                if (value == null) {
+                    codes[r] = -1;
+                    continue;
+                }
+                codes[r] = dictionary.computeIfAbsent(value.toString(), v -> {
+                    values.add(v);
+                    return values.size() - 1;
+                });
+            }
+            data.writeInt(values.size());
+            for (String value : values)
+                writeString(data, value);
+            for (int code : codes)
+                data.writeInt(code);
+        }
+        data.close();
+        deflater.end();
+
+        out.writeByte(type);
+        out.writeInt(data.size());
+        out.writeInt(raw.size());
+        raw.writeTo(out);
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Lazy reader for columnar results files. Only the row group headers are read when the file is opened.
+     */
+    public static class Reader implements Closeable {
+
+        private final RandomAccessFile file;
+        private final List<RowGroup> rowGroups = new ArrayList<>();
+        private final Set<String> columns = new LinkedHashSet<>();
+        private final int nRows;
+
+        /**
+         * Open a columnar results file
+         * @param columnarFile the file written with {@link ColumnarResults#appendRowGroup(File, String, List, List)}
+         * @throws IOException if the file cannot be read or is not a columnar results file
+         */
+        public Reader(File columnarFile) throws IOException {
+            this.file = new RandomAccessFile(columnarFile, "r");
+            try {
+                byte[] magic = new byte[FILE_MAGIC.length];
+                file.readFully(magic);
+                if (!Arrays.equals(magic, FILE_MAGIC))
+                    throw new IOException(columnarFile.getName() + " is not a columnar results file");
+
+                // Walk through the headers, skipping all the column data
+                int total = 0;
+                DataInputStream in = new DataInputStream(Channels.newInputStream(file.getChannel()));
+                while (file.getFilePointer() < file.length()) {
+                    if (in.readInt() != GROUP_MAGIC)
+                        throw new IOException("Corrupted row group in " + columnarFile.getName() + " at position " + file.getFilePointer());
+                    RowGroup group = new RowGroup(readString(in), in.readInt(), total);
+                    int nColumns = in.readInt();
+                    for (int c = 0; c < nColumns; c++) {
+                        String name = readString(in);
+                        byte type = in.readByte();
+                        int rawLength = in.readInt();
+                        int length = in.readInt();
+                        group.chunks.put(name, new Chunk(type, file.getFilePointer(), rawLength, length));
+                        columns.add(name);
+                        file.seek(file.getFilePointer() + length);
+                    }
+                    rowGroups.add(group);
+                    total += group.nRows;
+                }
+                this.nRows = total;
+            } catch (IOException | RuntimeException e) {
+                // Nobody else can close the file if the reader is not created
+                file.close();
+                throw e;
+            }
+        }
+
+        /**
+         * @return the names of all the columns, in order of appearance
+         */
+        public List<String> getColumns() {
+            return new ArrayList<>(columns);
+        }
+
+        /**
+         * @return the row groups of the file, in the order they were written
+         */
+        public List<RowGroup> getRowGroups() {
+            return Collections.unmodifiableList(rowGroups);
+        }
+
+        /**
+         * @return the total number of rows in the file
+         */
+        public int getRowCount() {
+            return nRows;
+        }
+
+        /**
+         * Read a numeric column for all row groups. Missing or non-numeric values are NaN
+         * @param column the name of the column
+         * @return one value per row of the file
+         * @throws IOException if the file cannot be read
+         */
+        public double[] readDoubles(String column) throws IOException {
+            double[] values = new double[nRows];
+            Arrays.fill(values, Double.NaN);
+            for (RowGroup group : rowGroups) {
+                Chunk chunk = group.chunks.get(column);
+                if (chunk == null)
+                    continue;
+                ByteBuffer data = chunk.read(file);
+                int offset = group.firstRow;
+                switch (chunk.type) {
+                    case TYPE_DOUBLE -> data.asDoubleBuffer().get(values, offset, group.nRows);
+                    case TYPE_INT -> {
+                        for (int r = 0; r < group.nRows; r++)
+                            values[offset + r] = data.getInt();
+                    }
+                    default -> {
+                        String[] strings = decodeStrings(data, group.nRows);
+                        for (int r = 0; r < group.nRows; r++) {
+                            try {
+                                values[offset + r] = strings[r] == null ? Double.NaN : Double.parseDouble(strings[r]);
+                            } catch (NumberFormatException e) {
+                                values[offset + r] = Double.NaN;
+                            }
+                        }
+                    }
+                }
+            }
+            return values;
+        }
+
+        /**
+         * Read a column as text for all row groups. Missing values are null
+         * @param column the name of the column
+         * @return one value per row of the file
+         * @throws IOException if the file cannot be read
+         */
+        public String[] readStrings(String column) throws IOException {
+            String[] values = new String[nRows];
+            for (RowGroup group : rowGroups) {
+                Chunk chunk = group.chunks.get(column);
+                if (chunk == null)
+                    continue;
+                ByteBuffer data = chunk.read(file);
+                int offset = group.firstRow;
+                switch (chunk.type) {
+                    case TYPE_DOUBLE -> {
+                        for (int r = 0; r < group.nRows; r++) {
+                            double d = data.getDouble();
+                            values[offset + r] = Double.isNaN(d) ? null : Double.toString(d);
+                        }
+                    }
+                    case TYPE_INT -> {
+                        for (int r = 0; r < group.nRows; r++)
+                            values[offset + r] = Integer.toString(data.getInt());
+                    }
+                    default -> System.arraycopy(decodeStrings(data, group.nRows), 0, values, offset, group.nRows);
+                }
+            }
+            return values;
+        }
+
+        private static String[] decodeStrings(ByteBuffer data, int nRows) {
+            String[] dictionary = new String[data.getInt()];
+            for (int i = 0; i < dictionary.length; i++) {
+                byte[] bytes = new byte[data.getInt()];
+                data.get(bytes);
+                dictionary[i] = new String(bytes, StandardCharsets.UTF_8);
+            }
+            String[] values = new String[nRows];
+            for (int r = 0; r < nRows; r++) {
+                int code = data.getInt();
+                values[r] = code < 0 ? null : dictionary[code];
+            }
+            return values;
+        }
+
+        @Override
+        public void close() throws IOException {
+            file.close();
+        }
+    }
+
+    /**
+     * A group of rows written at once, typically all the objects of one image
+     */
+    public static class RowGroup {
+        private final String name;
+        private final int nRows;
+        private final int firstRow;
+        private final Map<String, Chunk> chunks = new HashMap<>();
+
+        private RowGroup(String name, int nRows, int firstRow) {
+            this.name = name;
+            this.nRows = nRows;
+            this.firstRow = firstRow;
+        }
+
+        /**
+         * @return the name given when writing the group, typically the image name
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return the number of rows in this group
+         */
+        public int getRowCount() {
+            return nRows;
+        }
+
+        /**
+         * @return the index of the first row of this group, in the arrays returned by the {@link Reader}
+         */
+        public int getFirstRow() {
+            return firstRow;
+        }
+
+        /**
+         * @return the columns present in this group
+         */
+        public Set<String> getColumns() {
+            return Collections.unmodifiableSet(chunks.keySet());
+        }
+    }
+
+    private record Chunk(byte type, long position, int rawLength, int length) {
+
+        ByteBuffer read(RandomAccessFile file) throws IOException {
+            byte[] compressed = new byte[length];
+            file.seek(position);
+            file.readFully(compressed);
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(compressed);
+                byte[] raw = new byte[rawLength];
+                int n = 0;
+                while (n < rawLength && !inflater.finished()) {
+                    int read = inflater.inflate(raw, n, rawLength - n);
+                    if (read == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                        throw new IOException("Truncated column data");
+                    n += read;
+                }
+                return ByteBuffer.wrap(raw);
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupted column data: " + e.getLocalizedMessage(), e);
+            } finally {
+                inflater.end();
+            }
+        }
+    }
+}
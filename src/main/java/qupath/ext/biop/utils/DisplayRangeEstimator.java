@@ -0,0 +1,267 @@
+package qupath.ext.biop.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.gui.scripting.QPEx;
+import qupath.lib.images.ImageData;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.images.servers.PixelType;
+import qupath.lib.images.servers.ServerTools;
+import qupath.lib.images.servers.TileRequest;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+/**
+ * Estimates display ranges per channel from the pixel values of an image, rather than copying fixed values.
+ * <p>
+ * A random sample of tiles is read from a low resolution level, and the values of each channel are counted in a
+ * histogram of fixed size: one bin per value for 8 and 16 bit images, and 65536 logarithmic bins for other pixel types,
+ * precise to about 1%. Memory does not depend on the size of the image. Tiles are read in parallel, and all the
+ * channels of a tile are counted at once.
+ * <pre>
+ * def estimator = new DisplayRangeEstimator(0.1, 99.9)
+ * estimator.apply(getCurrentImageData())
+ * </pre>
+ */
+public class DisplayRangeEstimator {
+
+    final private static Logger logger = LoggerFactory.getLogger(DisplayRangeEstimator.class);
+
+    private final double lowPercentile;
+    private final double highPercentile;
+    private int maxTiles = 64;
+    private int maxSize = 4096;
+    private long seed = 42;
+
+    /**
+     * Estimator using the 0.1 and 99.9 percentiles
+     */
+    public DisplayRangeEstimator() {
+        this(0.1, 99.9);
+    }
+
+    /**
+     * @param lowPercentile the percentile used as minimum display, between 0 and 100
+     * @param highPercentile the percentile used as maximum display, between 0 and 100
+     */
+    public DisplayRangeEstimator(double lowPercentile, double highPercentile) {
+        if (lowPercentile < 0 || highPercentile > 100 || lowPercentile >= highPercentile)
+            throw new IllegalArgumentException("Percentiles should be between 0 and 100, with low < high: " + lowPercentile + ", " + highPercentile);
+        this.lowPercentile = lowPercentile;
+        this.highPercentile = highPercentile;
+    }
+
+    /**
+     * @param maxTiles the maximum number of tiles read per image
+     */
+    public void setMaxTiles(int maxTiles) {
+        this.maxTiles = Math.max(1, maxTiles);
+    }
+
+    /**
+     * @param maxSize the largest dimension of the resolution level the tiles are sampled from
+     */
+    public void setMaxSize(int maxSize) {
+        this.maxSize = Math.max(256, maxSize);
+    }
+
+    /**
+     * @param seed the seed used to pick the tiles, so that the same image always gives the same ranges
+     */
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    public double getLowPercentile() {
+        return lowPercentile;
+    }
+
+    public double getHighPercentile() {
+        return highPercentile;
+    }
+
+    /**
+     * Estimate the display range of every channel of an image
+     * @param server the server of the image
+     * @return one range per channel
+     * @throws IOException if the tiles cannot be read
+     */
+    public Range[] estimate(ImageServer<BufferedImage> server) throws IOException {
+        int nChannels = server.nChannels();
+        Binning binning = Binning.forPixelType(server.getPixelType());
+
+        // Sample from a level that is small enough, in the middle of the stack
+        double downsample = Math.max(1.0, Math.max(server.getWidth(), server.getHeight()) / (double) maxSize);
+        int level = ServerTools.getPreferredResolutionLevel(server, downsample);
+        int z = server.nZSlices() / 2;
+        List<TileRequest> tiles = new ArrayList<>();
+        for (TileRequest tile : server.getTileRequestManager().getTileRequestsForLevel(level)) {
+            if (tile.getZ() == z && tile.getT() == 0)
+                tiles.add(tile);
+        }
+        Collections.shuffle(tiles, new Random(seed));
+        List<TileRequest> sample = tiles.subList(0, Math.min(maxTiles, tiles.size()));
+
+        // One histogram per worker, each worker reading every nWorkers-th tile
+        int nWorkers = Math.max(1, Math.min(sample.size(), Math.min(8, Runtime.getRuntime().availableProcessors())));
+        int nBins = binning.nBins;
+        long[][] histograms;
+        try {
+            histograms = IntStream.range(0, nWorkers).parallel().mapToObj(w -> {
+                long[][] counts = new long[nChannels][nBins];
+                for (int i = w; i < sample.size(); i += nWorkers)
+                    addTile(server, sample.get(i), binning, counts);
+                return counts;
+            }).reduce((a, b) -> {
+                for (int c = 0; c < nChannels; c++)
+                    for (int i = 0; i < nBins; i++)
+                        a[c][i] += b[c][i];
+                return a;
+            }).orElseGet(() -> new long[nChannels][nBins]);
+        } catch (TileReadException e) {
+            throw e.getCause();
+        }
+
+        Range[] ranges = new Range[nChannels];
+        for (int c = 0; c < nChannels; c++) {
+            ranges[c] = new Range(
+                    (float) binning.getValue(percentileBin(histograms[c], lowPercentile)),
+                    (float) binning.getValue(percentileBin(histograms[c], highPercentile)));
+        }
+        logger.debug("Estimated display ranges of {} from {} tiles", server.getPath(), sample.size());
+        return ranges;
+    }
+
+    private static void addTile(ImageServer<BufferedImage> server, TileRequest tile, Binning binning, long[][] counts) {
+        BufferedImage img;
+        try {
+            img = server.readRegion(tile.getRegionRequest());
+        } catch (IOException e) {
+            throw new TileReadException(e);
+        }
+        if (img == null)
+            return;
+        Raster raster = img.getRaster();
+        int w = raster.getWidth();
+        int h = raster.getHeight();
+        // RGB images have a single packed band, read the colors from the image instead
+        if (server.isRGB()) {
+            int[] rgb = img.getRGB(0, 0, w, h, null, 0, w);
+            for (int v : rgb) {
+                counts[0][(v >> 16) & 0xff]++;
+                counts[1][(v >> 8) & 0xff]++;
+                counts[2][v & 0xff]++;
+            }
+            return;
+        }
+        float[] values = new float[w * h];
+        for (int c = 0; c < Math.min(counts.length, raster.getNumBands()); c++) {
+            raster.getSamples(0, 0, w, h, c, values);
+            long[] channelCounts = counts[c];
+            for (float v : values) {
+                if (!Float.isNaN(v))
+                    channelCounts[binning.getBin(v)]++;
+            }
+        }
+    }
+
+    private static int percentileBin(long[] counts, double percentile) {
+        long total = 0;
+        for (long count : counts)
+            total += count;
+        if (total == 0)
+            return 0;
+        long target = (long) Math.ceil(total * percentile / 100.0);
+        long sum = 0;
+        for (int i = 0; i < counts.length; i++) {
+            sum += counts[i];
+            if (sum >= target && sum > 0)
+                return i;
+        }
+        return counts.length - 1;
+    }
+
+    /**
+     * Estimate the display ranges of an image and set them
+     * @param imageData the image to modify
+     * @return the ranges that were set
+     * @throws IOException if the tiles cannot be read
+     */
+    public Range[] apply(ImageData<BufferedImage> imageData) throws IOException {
+        Range[] ranges = estimate(imageData.getServer());
+        for (int c = 0; c < ranges.length; c++) {
+            QPEx.setChannelDisplayRange(imageData, c, ranges[c].min(), ranges[c].max());
+        }
+        return ranges;
+    }
+
+    /**
+     * A display range
+     * @param min the minimum display value
+     * @param max the maximum display value
+     */
+    public record Range(float min, float max) {}
+
+    // Converts values to histogram bins and back
+    private enum Binning {
+        // One bin per value
+        UINT8(0, 256), INT8(128, 256), UINT16(0, 65536), INT16(32768, 65536),
+        // The top 16 bits of the value as a float, ordered like the values
+        FLOAT(0, 65536);
+
+        private final int offset;
+        private final int nBins;
+
+        Binning(int offset, int nBins) {
+            this.offset = offset;
+            this.nBins = nBins;
+        }
+
+        static Binning forPixelType(PixelType type) {
+            return switch (type) {
+                case UINT8 -> UINT8;
+                case INT8 -> INT8;
+                case UINT16 -> UINT16;
+                case INT16 -> INT16;
+                default -> FLOAT;
+            };
+        }
+
+        int getBin(float value) {
+            if (this != FLOAT)
+                return Math.max(0, Math.min(nBins - 1, (int) value + offset));
+            int bits = Float.floatToRawIntBits(value);
+            // Flip the bits of negative values so that the order of the bins follows the values
+            int sortable = bits < 0 ? ~bits : bits | 0x80000000;
+            return sortable >>> 16;
+        }
+
+        double getValue(int bin) {
+            if (this != FLOAT)
+                return bin - offset;
+            // Middle of the bin
+            int sortable = (bin << 16) | 0x8000;
+            int bits = sortable < 0 ? sortable & 0x7fffffff : ~sortable;
+            return Float.intBitsToFloat(bits);
+        }
+    }
+
+    // Carries read errors out of the parallel stream
+    private static class TileReadException extends RuntimeException {
+        TileReadException(IOException cause) {
+            super(cause);
+        }
+
+        @Override
+        public synchronized IOException getCause() {
+            return (IOException) super.getCause();
+        }
+    }
+}
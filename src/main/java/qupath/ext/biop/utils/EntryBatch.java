@@ -0,0 +1,198 @@
+package qupath.ext.biop.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.common.ThreadTools;
+import qupath.lib.projects.ProjectImageEntry;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs a task on project entries, a few entries at a time, within an approximate memory budget.
+ * <p>
+ * The memory needed by each entry is estimated from the size of its data file, and an entry only starts once that
+ * much of the budget is free. An entry larger than the budget is processed alone. The batch can be cancelled, in which
+ * case the entries that are already being processed are finished.
+ * <pre>
+ * def batch = new EntryBatch("neighborhoods")
+ * batch.setParallelism(4)
+ * batch.run(getProject().getImageList(), entry -> ...)
+ * </pre>
+ */
+public class EntryBatch {
+
+    final private static Logger logger = LoggerFactory.getLogger(EntryBatch.class);
+
+    // An entry in memory takes a lot more space than its compressed data file
+    private static final int DATA_FILE_EXPANSION = 10;
+
+    private final String name;
+    private int parallelism = 1;
+    private int memoryBudgetMB = (int) Math.max(1, Runtime.getRuntime().maxMemory() / (2 * 1024 * 1024));
+    private ProgressListener progressListener;
+    private final AtomicBoolean cancelled = new AtomicBoolean(false);
+
+    /**
+     * @param name what the batch does, used to name its threads and in log messages
+     */
+    public EntryBatch(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Set how many entries can be processed at the same time. Default is 1.
+     * @param parallelism the number of entries processed concurrently
+     */
+    public void setParallelism(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * Limit the memory used by the entries being processed at the same time. The memory needed by each entry is estimated
+     * from the size of its data file. An entry larger than the budget is processed alone.
+     * @param memoryBudgetMB the approximate memory budget, in megabytes
+     */
+    public void setMemoryBudgetMB(int memoryBudgetMB) {
+        this.memoryBudgetMB = Math.max(1, memoryBudgetMB);
+    }
+
+    /**
+     * Be notified each time an entry is done, e.g. to update a progress bar. The listener is called from worker threads.
+     * @param progressListener the listener, or null to remove it
+     */
+    public void setProgressListener(ProgressListener progressListener) {
+        this.progressListener = progressListener;
+    }
+
+    /**
+     * Stop the batch currently running. Entries that are already being processed are finished.
+     */
+    public void cancel() {
+        this.cancelled.set(true);
+    }
+
+    /**
+     * @return true if the last run was cancelled
+     */
+    public boolean isCancelled() {
+        return cancelled.get();
+    }
+
+    /**
+     * Run a task on each entry
+     * @param entries the entries to process
+     * @param task what to do with each entry. Errors are logged and do not stop the other entries
+     * @return the number of entries whose task completed without error
+     */
+    public int run(Collection<ProjectImageEntry<BufferedImage>> entries, EntryTask task) {
+        cancelled.set(false);
+        int total = entries.size();
+        AtomicInteger nDone = new AtomicInteger(0);
+        AtomicInteger nSucceeded = new AtomicInteger(0);
+        Semaphore memory = new Semaphore(memoryBudgetMB);
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(parallelism, total)),
+                ThreadTools.createThreadFactory("biop-" + name + "-", true));
+        try {
+            List<Future<?>> tasks = new ArrayList<>(total);
+            for (ProjectImageEntry<BufferedImage> entry : entries) {
+                tasks.add(pool.submit(() -> {
+                    if (cancelled.get())
+                        return;
+                    int permits = Math.min(memoryBudgetMB, Math.max(1, estimateMemoryMB(entry)));
+                    try {
+                        memory.acquire(permits);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                    try {
+                        if (!cancelled.get()) {
+                            task.run(entry);
+                            nSucceeded.incrementAndGet();
+                        }
+                    } catch (Exception e) {
+                        logger.warn("Error in {} for {}: {}", name, entry.getImageName(), e.getLocalizedMessage(), e);
+                    } finally {
+                        memory.release(permits);
+                        if (progressListener != null)
+                            progressListener.updateProgress(nDone.incrementAndGet(), total, entry);
+                    }
+                }));
+            }
+
+            for (Future<?> future : tasks) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    logger.error("Error in {}: {}", name, e.getCause().getLocalizedMessage(), e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            cancelled.set(true);
+            Thread.currentThread().interrupt();
+        } finally {
+            pool.shutdownNow();
+        }
+
+        if (cancelled.get())
+            logger.warn("{} was cancelled after {} of {} entries", name, nDone.get(), total);
+        return nSucceeded.get();
+    }
+
+    /**
+     * Rough estimate of the memory needed to hold an entry, based on the size of its data file
+     * @param entry the entry
+     * @return the estimated memory, in megabytes, at least 1
+     */
+    public static int estimateMemoryMB(ProjectImageEntry<BufferedImage> entry) {
+        try {
+            Path entryPath = entry.getEntryPath();
+            if (entryPath != null) {
+                Path dataFile = entryPath.resolve("data.qpdata");
+                if (Files.exists(dataFile))
+                    return (int) Math.max(1, Math.min(Integer.MAX_VALUE, Files.size(dataFile) * DATA_FILE_EXPANSION / (1024 * 1024)));
+            }
+        } catch (IOException e) {
+            logger.debug("Could not estimate the size of {}: {}", entry.getImageName(), e.getLocalizedMessage());
+        }
+        return 1;
+    }
+
+    /**
+     * What to do with each entry
+     */
+    @FunctionalInterface
+    public interface EntryTask {
+        /**
+         * @param entry the entry to process
+         * @throws Exception if the entry cannot be processed
+         */
+        void run(ProjectImageEntry<BufferedImage> entry) throws Exception;
+    }
+
+    /**
+     * Listener notified each time an entry has been processed
+     */
+    public interface ProgressListener {
+        /**
+         * @param done the number of entries processed so far
+         * @param total the total number of entries to process
+         * @param entry the entry that was just processed
+         */
+        void updateProgress(int done, int total, ProjectImageEntry<BufferedImage> entry);
+    }
+}
@@ -0,0 +1,210 @@
+package qupath.ext.biop.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.gui.measure.ObservableMeasurementTableData;
+import qupath.lib.images.ImageData;
+import qupath.lib.objects.PathObject;
+import qupath.lib.projects.Project;
+import qupath.lib.projects.ProjectImageEntry;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Precompiled description of a results export, built once and applied to as many images as needed.
+ * <p>
+ * The output column names are resolved once when the plan is created. For each image, the metadata columns are
+ * computed once and copied into every row, and the requested columns are resolved once with a
+ * {@link MeasurementExtractor} before all the objects are read.
+ * <p>
+ * A plan created with {@link #create(List, Project)} uses the metadata keys of all the entries of the project, so that
+ * every image gets the same columns.
+ *
+ * <pre>
+ * def plan = ExportPlan.create(["Class", "Nucleus: Area µm^2"], getProject())
+ * getProject().getImageList().each { entry -&gt;
+ *     def imageData = entry.readImageData()
+ *     plan.appendToFile(entry, imageData, new ArrayList(imageData.getHierarchy().getDetectionObjects()), resultsFile)
+ * }
+ * </pre>
+ */
+public class ExportPlan {
+
+    final private static Logger logger = LoggerFactory.getLogger(ExportPlan.class);
+
+    // Scripts usually export the same few column lists, so only the most recently used plans are kept
+    private static final int MAX_CACHED_PLANS = 16;
+    private static final Map<List<String>, ExportPlan> cache = Collections.synchronizedMap(new LinkedHashMap<>(MAX_CACHED_PLANS, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<List<String>, ExportPlan> eldest) {
+            return size() > MAX_CACHED_PLANS;
+        }
+    });
+
+    private final List<String> resultColumns;
+    private final List<String> outputColumns;
+    // Null if the metadata keys are taken from each entry
+    private final List<String> metadataKeys;
+
+    private ExportPlan(List<String> resultColumns, List<String> metadataKeys) {
+        this.resultColumns = List.copyOf(resultColumns);
+        // Because the Mu is sometimes poorly formatted, we remove them in favor of a 'u'
+        this.outputColumns = this.resultColumns.stream().map(c -> c.replace(Results.um, "um")).toList();
+        this.metadataKeys = metadataKeys == null ? null : List.copyOf(metadataKeys);
+    }
+
+    /**
+     * Create a plan where the metadata columns are those of each exported entry
+     * @param resultColumns the columns to export, with the same names as in the Measurement tables
+     * @return a new plan
+     */
+    public static ExportPlan create(List<String> resultColumns) {
+        return new ExportPlan(resultColumns, null);
+    }
+
+    /**
+     * Create a plan where the metadata columns are all the metadata keys found in the project, so that all entries
+     * are exported with the same columns
+     * @param resultColumns the columns to export, with the same names as in the Measurement tables
+     * @param project the project whose entries will be exported
+     * @return a new plan
+     */
+    public static ExportPlan create(List<String> resultColumns, Project<?> project) {
+        Set<String> keys = new LinkedHashSet<>();
+        project.getImageList().forEach(entry -> keys.addAll(entry.getMetadata().keySet()));
+        return new ExportPlan(resultColumns, new ArrayList<>(keys));
+    }
+
+    /**
+     * Returns the same plan for the same columns, so that scripts calling {@link Results} for each image do not
+     * rebuild it every time. Only the last few column lists that were used are kept
+     * @param resultColumns the columns to export
+     * @return a plan where the metadata columns are those of each exported entry
+     */
+    public static ExportPlan getCached(List<String> resultColumns) {
+        return cache.computeIfAbsent(List.copyOf(resultColumns), ExportPlan::create);
+    }
+
+    /**
+     * @param entry the entry to export
+     * @return the names of the columns written for this entry: image name, metadata, then the requested columns
+     */
+    public List<String> getColumns(ProjectImageEntry<?> entry) {
+        List<String> keys = getMetadataKeys(entry);
+        List<String> columns = new ArrayList<>(1 + keys.size() + outputColumns.size());
+        columns.add("Image Name");
+        for (String key : keys) {
+            columns.add("Metadata_" + key);
+        }
+        columns.addAll(outputColumns);
+        return columns;
+    }
+
+    private List<String> getMetadataKeys(ProjectImageEntry<?> entry) {
+        if (metadataKeys != null)
+            return metadataKeys;
+        return new ArrayList<>(entry.getMetadata().keySet());
+    }
+
+    /**
+     * Build one row per object, with the columns given by {@link #getColumns(ProjectImageEntry)}
+     * @param entry the entry the objects belong to, for the image name and metadata
+     * @param imageData the image data of the entry
+     * @param objects the objects to export
+     * @return the rows
+     */
+    public List<Object[]> buildRows(ProjectImageEntry<?> entry, ImageData<?> imageData, List<? extends PathObject> objects) {
+        // Everything that does not depend on the object is computed once
+        List<String> keys = getMetadataKeys(entry);
+        Map<String, String> metadata = entry.getMetadata();
+        Object[] constants = new Object[1 + keys.size()];
+        constants[0] = entry.getImageName();
+        for (int k = 0; k < keys.size(); k++) {
+            constants[k + 1] = metadata.get(keys.get(k));
+        }
+
+        // Read the columns we know how to access directly, without JavaFX
+        MeasurementExtractor extractor = new MeasurementExtractor(imageData, resultColumns, objects);
+        Object[] values = extractor.extract(objects);
+
+        // Only the columns that could not be resolved need the full ObservableMeasurementTableData
+        ObservableMeasurementTableData ob = null;
+        if (!extractor.getUnresolvedColumns().isEmpty()) {
+            logger.debug("Using ObservableMeasurementTableData for columns {}", extractor.getUnresolvedColumns());
+            ob = new ObservableMeasurementTableData();
+            // This line creates all the measurements
+            ob.setImageData(imageData, Collections.unmodifiableList(objects));
+        }
+
+        // Find out once what each column is
+        int nResults = resultColumns.size();
+        double[][] numeric = new double[nResults][];
+        String[][] text = new String[nResults][];
+        boolean[] observableNumeric = new boolean[nResults];
+        boolean[] observableString = new boolean[nResults];
+        for (int k = 0; k < nResults; k++) {
+            if (extractor.isNumeric(k))
+                numeric[k] = (double[]) values[k];
+            else if (extractor.isResolved(k))
+                text[k] = (String[]) values[k];
+            else {
+                observableNumeric[k] = ob.isNumericMeasurement(resultColumns.get(k));
+                observableString[k] = !observableNumeric[k] && ob.isStringMeasurement(resultColumns.get(k));
+            }
+        }
+
+        // Add value for each selected object
+        int rowLength = constants.length + nResults;
+        List<Object[]> rows = new ArrayList<>(objects.size());
+        for (int i = 0; i < objects.size(); i++) {
+            Object[] row = new Object[rowLength];
+            System.arraycopy(constants, 0, row, 0, constants.length);
+            for (int k = 0; k < nResults; k++) {
+                int c = constants.length + k;
+                if (numeric[k] != null)
+                    row[c] = numeric[k][i];
+                else if (text[k] != null)
+                    row[c] = text[k][i];
+                else if (observableNumeric[k])
+                    row[c] = ob.getNumericValue(objects.get(i), resultColumns.get(k));
+                else if (observableString[k])
+                    row[c] = ob.getStringValue(objects.get(i), resultColumns.get(k));
+            }
+            rows.add(row);
+        }
+        return rows;
+    }
+
+    /**
+     * Append the objects of one entry to a text results file, see {@link ResultsWriter}
+     * @param entry the entry the objects belong to
+     * @param imageData the image data of the entry
+     * @param objects the objects to export
+     * @param resultsFile the results file, created if needed
+     * @return the number of rows written
+     * @throws IOException if the file cannot be written
+     */
+    public int appendToFile(ProjectImageEntry<?> entry, ImageData<?> imageData, List<? extends PathObject> objects, File resultsFile) throws IOException {
+        return new ResultsWriter(resultsFile).appendRows(getColumns(entry), buildRows(entry, imageData, objects));
+    }
+
+    /**
+     * Append the objects of one entry to a columnar results file, as one row group, see {@link ColumnarResults}
+     * @param entry the entry the objects belong to
+     * @param imageData the image data of the entry
+     * @param objects the objects to export
+     * @param columnarFile the columnar results file, created if needed
+     * @throws IOException if the file cannot be written
+     */
+    public void appendToColumnarFile(ProjectImageEntry<?> entry, ImageData<?> imageData, List<? extends PathObject> objects, File columnarFile) throws IOException {
+        ColumnarResults.appendRowGroup(columnarFile, entry.getImageName(), getColumns(entry), buildRows(entry, imageData, objects));
+    }
+}
@@ -0,0 +1,228 @@
+package qupath.ext.biop.utils;
+
+import qupath.lib.common.GeneralTools;
+import qupath.lib.images.ImageData;
+import qupath.lib.images.servers.PixelCalibration;
+import qupath.lib.images.servers.ServerTools;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjectTools;
+import qupath.lib.roi.interfaces.ROI;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.function.ToDoubleFunction;
+import java.util.stream.IntStream;
+
+/**
+ * Headless alternative to ObservableMeasurementTableData to read the values of many objects at once.
+ * <p>
+ * Each requested column is resolved once to a direct accessor: a value of the object's MeasurementList, its
+ * classification, parent, name, or a value computed from its ROI (centroid, area, perimeter...).
+ * The values of all objects are then read in parallel into one primitive array per column, without JavaFX and
+ * without computing the columns that were not requested.
+ * <p>
+ * Column names follow the Measurement tables of QuPath, and the micrometer symbol can also be written 'um'.
+ * Columns that cannot be resolved are listed by {@link #getUnresolvedColumns()} and left empty.
+ */
+public class MeasurementExtractor {
+
+    private static final String um = GeneralTools.micrometerSymbol();
+
+    private final List<String> columnNames;
+    private final List<Column> columns = new ArrayList<>();
+    private final List<String> unresolved = new ArrayList<>();
+
+    /**
+     * Resolve the requested columns for the given objects
+     * @param imageData the image the objects belong to, used for the image name and pixel calibration
+     * @param columnNames the names of the columns to extract, as in the Measurement tables
+     * @param objects the objects that will be extracted, used to find which columns are measurements
+     */
+    public MeasurementExtractor(ImageData<?> imageData, List<String> columnNames, Collection<? extends PathObject> objects) {
+        this.columnNames = List.copyOf(columnNames);
+
+        String imageName = imageData == null ? null : ServerTools.getDisplayableImageName(imageData.getServer());
+        PixelCalibration cal = imageData == null ? PixelCalibration.getDefaultInstance() : imageData.getServer().getPixelCalibration();
+        double pixelWidth = cal.getPixelWidthMicrons();
+        double pixelHeight = cal.getPixelHeightMicrons();
+        boolean calibrated = cal.hasPixelSizeMicrons();
+
+        for (String name : this.columnNames) {
+            // Compare without the micrometer symbol, which is sometimes poorly encoded
+            String key = name.replace(um, "um");
+            Column column = switch (key) {
+                case "Image" -> text(name, o -> imageName);
+                case "Object ID" -> text(name, o -> o.getID().toString());
+                case "Object type" -> text(name, o -> PathObjectTools.getSuitableName(o.getClass(), false));
+                case "Name" -> text(name, PathObject::getName);
+                case "Class", "Classification" -> text(name, o -> o.getPathClass() == null ? null : o.getPathClass().toString());
+                case "Parent" -> text(name, o -> {
+                    PathObject parent = o.getParent();
+                    if (parent == null)
+                        return null;
+                    return parent.isRootObject() ? "Image" : parent.getDisplayedName();
+                });
+                case "ROI" -> text(name, o -> o.hasROI() ? o.getROI().getRoiName() : null);
+                case "Centroid X px" -> roi(name, r -> r.getCentroidX());
+                case "Centroid Y px" -> roi(name, r -> r.getCentroidY());
+                case "Area px^2" -> roi(name, r -> r.isArea() ? r.getArea() : Double.NaN);
+                case "Perimeter px" -> roi(name, r -> r.isArea() ? r.getLength() : Double.NaN);
+                case "Length px" -> roi(name, r -> r.isLine() ? r.getLength() : Double.NaN);
+                case "Num points" -> roi(name, r -> r.isPoint() ? r.getNumPoints() : Double.NaN);
+                default -> null;
+            };
+            if (column == null && calibrated) {
+                column = switch (key) {
+                    case "Centroid X um" -> roi(name, r -> r.getCentroidX() * pixelWidth);
+                    case "Centroid Y um" -> roi(name, r -> r.getCentroidY() * pixelHeight);
+                    case "Area um^2" -> roi(name, r -> r.isArea() ? r.getScaledArea(pixelWidth, pixelHeight) : Double.NaN);
+                    case "Perimeter um" -> roi(name, r -> r.isArea() ? r.getScaledLength(pixelWidth, pixelHeight) : Double.NaN);
+                    case "Length um" -> roi(name, r -> r.isLine() ? r.getScaledLength(pixelWidth, pixelHeight) : Double.NaN);
+                    default -> null;
+                };
+            }
+            if (column == null)
+                column = measurement(name, objects);
+            if (column == null)
+                unresolved.add(name);
+            columns.add(column);
+        }
+    }
+
+    private static Column text(String name, Function<PathObject, String> accessor) {
+        return new Column(name, null, accessor);
+    }
+
+    private static Column roi(String name, ToDoubleFunction<ROI> accessor) {
+        return new Column(name, o -> o.hasROI() ? accessor.applyAsDouble(o.getROI()) : Double.NaN, null);
+    }
+
+    // A measurement column, if at least one object has it
+    private static Column measurement(String name, Collection<? extends PathObject> objects) {
+        String alternative = name.contains(um) ? name.replace(um, "um") : name.replaceAll("\\bum\\b", um);
+        for (PathObject object : objects) {
+            if (object.getMeasurementList().containsKey(name))
+                return new Column(name, o -> o.getMeasurementList().get(name), null);
+            if (object.getMeasurementList().containsKey(alternative))
+                return new Column(name, o -> o.getMeasurementList().get(alternative), null);
+        }
+        return null;
+    }
+
+    /**
+     * @return the names of the requested columns
+     */
+    public List<String> getColumnNames() {
+        return columnNames;
+    }
+
+    /**
+     * @return the requested columns that are neither measurements nor known object properties
+     */
+    public List<String> getUnresolvedColumns() {
+        return Collections.unmodifiableList(unresolved);
+    }
+
+    /**
+     * @param index the index of the column in {@link #getColumnNames()}
+     * @return true if the column could be resolved
+     */
+    public boolean isResolved(int index) {
+        return columns.get(index) != null;
+    }
+
+    /**
+     * @param index the index of the column in {@link #getColumnNames()}
+     * @return true if the column is numeric, false if it contains text or could not be resolved
+     */
+    public boolean isNumeric(int index) {
+        return columns.get(index) != null && columns.get(index).numeric != null;
+    }
+
+    /**
+     * Read all the columns for all the objects, in parallel
+     * @param objects the objects to read
+     * @return one array per column, in the order of {@link #getColumnNames()}: a double[] for numeric columns,
+     * a String[] for text columns and null for unresolved columns
+     */
+    public Object[] extract(List<? extends PathObject> objects) {
+        int n = objects.size();
+        Object[] values = new Object[columns.size()];
+        for (int c = 0; c < columns.size(); c++) {
+            Column column = columns.get(c);
+            if (column != null)
+                values[c] = column.numeric != null ? new double[n] : new String[n];
+        }
+        IntStream.range(0, n).parallel().forEach(i -> {
+            PathObject object = objects.get(i);
+            for (int c = 0; c < values.length; c++) {
+                Column column = columns.get(c);
+                if (column == null)
+                    continue;
+                if (column.numeric != null)
+                    ((double[]) values[c])[i] = column.numeric.applyAsDouble(object);
+                else
+                    ((String[]) values[c])[i] = column.text.apply(object);
+            }
+        });
+        return values;
+    }
+
+    /**
+     * Read a single numeric column for all the objects, in parallel
+     * @param imageData the image the objects belong to
+     * @param column the name of the column
+     * @param objects the objects to read
+     * @return the values, NaN where the object has no value. Null if the column is not numeric
+     */
+    public static double[] extractNumeric(ImageData<?> imageData, String column, List<? extends PathObject> objects) {
+        MeasurementExtractor extractor = new MeasurementExtractor(imageData, List.of(column), objects);
+        if (!extractor.isNumeric(0))
+            return null;
+        return (double[]) extractor.extract(objects)[0];
+    }
+
+    /**
+     * Headless equivalent to the column names of a Measurement table: the object properties followed by all the
+     * measurements found in the objects, in order of appearance. The columns that the table derives from the child
+     * objects, such as counts per class, densities or H-scores, are not included
+     * @param imageData the image the objects belong to
+     * @param objects the objects
+     * @return the names of all the columns that can be extracted
+     */
+    public static List<String> getAllColumnNames(ImageData<?> imageData, Collection<? extends PathObject> objects) {
+        boolean calibrated = imageData != null && imageData.getServer().getPixelCalibration().hasPixelSizeMicrons();
+        String unit = calibrated ? um : "px";
+        Set<String> names = new LinkedHashSet<>(List.of("Image", "Object ID", "Object type", "Name", "Classification", "Parent", "ROI",
+                "Centroid X " + unit, "Centroid Y " + unit));
+
+        boolean hasAreas = false, hasLines = false, hasPoints = false;
+        for (PathObject object : objects) {
+            if (object.hasROI()) {
+                ROI roi = object.getROI();
+                hasAreas |= roi.isArea() && !object.isDetection();
+                hasLines |= roi.isLine();
+                hasPoints |= roi.isPoint();
+            }
+        }
+        if (hasAreas) {
+            names.add("Area " + unit + "^2");
+            names.add("Perimeter " + unit);
+        }
+        if (hasLines)
+            names.add("Length " + unit);
+        if (hasPoints)
+            names.add("Num points");
+
+        for (PathObject object : objects)
+            names.addAll(object.getMeasurementList().getNames());
+        return new ArrayList<>(names);
+    }
+
+    private record Column(String name, ToDoubleFunction<PathObject> numeric, Function<PathObject, String> text) {}
+}
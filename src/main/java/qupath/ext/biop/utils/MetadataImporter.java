@@ -0,0 +1,379 @@
+package qupath.ext.biop.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.projects.Project;
+import qupath.lib.projects.ProjectImageEntry;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Adds the columns of a CSV file as metadata of the matching entries of a project.
+ * <p>
+ * The CSV file needs an 'Image Name' column, which is matched to the names of the entries in one of three ways,
+ * see {@link MatchMode}. The file is read line by line and indexed once, so each entry is matched in time proportional
+ * to the length of its name rather than to the number of rows.
+ * <p>
+ * The import returns a {@link Report} listing the entries without a match, the entries matched by several rows and
+ * the rows that were not used.
+ */
+public class MetadataImporter {
+
+    final private static Logger logger = LoggerFactory.getLogger(MetadataImporter.class);
+
+    /**
+     * Name of the column that identifies the images in the CSV file
+     */
+    public static final String IMAGE_NAME_COLUMN = "Image Name";
+
+    /**
+     * How the 'Image Name' of a row is matched to the name of an entry
+     */
+    public enum MatchMode {
+        /**
+         * The entry name is exactly the image name of the row
+         */
+        EXACT,
+        /**
+         * A key is extracted from the entry name with a regular expression, using the group named 'key' or else the
+         * first group, and must be exactly the image name of the row
+         */
+        PATTERN,
+        /**
+         * The entry name contains the image name of the row. All the rows whose name is found are applied, in the order
+         * of the file. This is the historical behavior of {@link Results#addMetadataToProject(Project, File)}
+         */
+        CONTAINS
+    }
+
+    private final List<String> columns;
+    private final List<String[]> rows = new ArrayList<>();
+    private final int nameColumn;
+
+    /**
+     * Read and index a CSV file. Comma, semicolon and tab separated files are supported, and values can be quoted.
+     * @param csvFile the file to read
+     * @throws IOException if the file cannot be read or has no 'Image Name' column
+     */
+    public MetadataImporter(File csvFile) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(csvFile.toPath(), StandardCharsets.UTF_8)) {
+            String header = reader.readLine();
+            if (header == null)
+                throw new IOException("CSV file " + csvFile.getName() + " is empty");
+            // Remove the byte order mark some spreadsheet programs add
+            if (header.startsWith("\uFEFF"))
+                header = header.substring(1);
+            char delimiter = header.indexOf('\t') >= 0 ? '\t' : header.indexOf(';') >= 0 && header.indexOf(',') < 0 ? ';' : ',';
+
+            this.columns = List.of(parseLine(header, reader, delimiter));
+            this.nameColumn = columns.indexOf(IMAGE_NAME_COLUMN);
+            if (nameColumn < 0)
+                throw new IOException("No Column '" + IMAGE_NAME_COLUMN + "' in csv file " + csvFile.getName()
+                        + ". Make sure that the column exists and that it matches the name of the entries in your QuPath Project");
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isBlank())
+                    continue;
+                rows.add(parseLine(line, reader, delimiter));
+            }
+        }
+        logger.info("Read {} rows from {}. Available Columns: {}", rows.size(), csvFile.getName(), columns);
+    }
+
+    // Split one record, reading more lines if a quoted value contains line breaks
+    private static String[] parseLine(String line, BufferedReader reader, char delimiter) throws IOException {
+        List<String> values = new ArrayList<>();
+        StringBuilder value = new StringBuilder();
+        boolean quoted = false;
+        int i = 0;
+        while (true) {
+            if (i == line.length()) {
+                if (!quoted)
+                    break;
+                String next = reader.readLine();
+                if (next == null)
+                    break;
+                value.append('\n');
+                line = next;
+                i = 0;
+                continue;
+            }
+            char c = line.charAt(i++);
+            if (quoted) {
+                if (c == '"') {
+                    if (i < line.length() && line.charAt(i) == '"') {
+                        value.append('"');
+                        i++;
+                    } else {
+                        quoted = false;
+                    }
+                } else {
+                    value.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == delimiter) {
+                values.add(value.toString().trim());
+                value.setLength(0);
+            } else {
+                value.append(c);
+            }
+        }
+        values.add(value.toString().trim());
+        return values.toArray(new String[0]);
+    }
+
+    /**
+     * @return the columns of the CSV file
+     */
+    public List<String> getColumns() {
+        return columns;
+    }
+
+    /**
+     * @return the number of rows of the CSV file
+     */
+    public int getRowCount() {
+        return rows.size();
+    }
+
+    /**
+     * @param row the index of the row
+     * @param column the index of the column
+     * @return the value, or an empty string if the row is shorter than the header
+     */
+    public String getValue(int row, int column) {
+        String[] values = rows.get(row);
+        return column < values.length ? values[column] : "";
+    }
+
+    /**
+     * Add the metadata of the matching rows to all the entries of the project, and sync the project
+     * @param project the project to update
+     * @param mode how to match rows and entries
+     * @param pattern the regular expression used to extract the key from the entry names, for {@link MatchMode#PATTERN}
+     * @return a report of the matches
+     * @throws IOException if the project cannot be synced
+     */
+    public Report importInto(Project<?> project, MatchMode mode, String pattern) throws IOException {
+        Matcher keyMatcher = null;
+        if (mode == MatchMode.PATTERN) {
+            if (pattern == null)
+                throw new IllegalArgumentException("A pattern is needed to match image names with " + mode);
+            keyMatcher = Pattern.compile(pattern).matcher("");
+        }
+
+        // Index the rows by image name, ignoring the rows without one
+        Map<String, List<Integer>> rowsByName = new LinkedHashMap<>();
+        for (int r = 0; r < rows.size(); r++) {
+            String name = getValue(r, nameColumn);
+            if (name.isEmpty()) {
+                logger.warn("Row {} has no '{}', it will be ignored", r + 1, IMAGE_NAME_COLUMN);
+                continue;
+            }
+            rowsByName.computeIfAbsent(name, k -> new ArrayList<>()).add(r);
+        }
+        AhoCorasick substrings = mode == MatchMode.CONTAINS ? new AhoCorasick(new ArrayList<>(rowsByName.keySet())) : null;
+        List<String> names = substrings == null ? null : new ArrayList<>(rowsByName.keySet());
+
+        Report report = new Report();
+        boolean[] usedRows = new boolean[rows.size()];
+        for (ProjectImageEntry<?> entry : project.getImageList()) {
+            String entryName = entry.getImageName();
+
+            List<Integer> matchedRows = new ArrayList<>();
+            switch (mode) {
+                case EXACT -> matchedRows.addAll(rowsByName.getOrDefault(entryName, Collections.emptyList()));
+                case PATTERN -> {
+                    keyMatcher.reset(entryName);
+                    if (keyMatcher.find()) {
+                        String key = groupKey(keyMatcher);
+                        matchedRows.addAll(rowsByName.getOrDefault(key, Collections.emptyList()));
+                    }
+                }
+                case CONTAINS -> {
+                    // Apply the rows in file order, like the historical behavior
+                    TreeSet<Integer> found = new TreeSet<>();
+                    for (int nameIndex : substrings.findAll(entryName))
+                        found.addAll(rowsByName.get(names.get(nameIndex)));
+                    matchedRows.addAll(found);
+                }
+            }
+
+            if (matchedRows.isEmpty()) {
+                report.unmatched.add(entryName);
+                continue;
+            }
+            if (matchedRows.size() > 1)
+                report.ambiguous.put(entryName, matchedRows.stream().map(r -> getValue(r, nameColumn)).toList());
+
+            for (int r : matchedRows) {
+                usedRows[r] = true;
+                for (int c = 0; c < columns.size(); c++) {
+                    // Exclude columns without names or the Image Name Column
+                    if (c == nameColumn || columns.get(c).isEmpty())
+                        continue;
+                    String value = getValue(r, c);
+                    // If the value is empty, then do not add it
+                    if (!value.isEmpty())
+                        entry.getMetadata().put(columns.get(c), value);
+                }
+            }
+            report.nMatched++;
+        }
+        for (int r = 0; r < usedRows.length; r++) {
+            if (!usedRows[r] && !getValue(r, nameColumn).isEmpty())
+                report.unusedRows.add(getValue(r, nameColumn));
+        }
+
+        logger.info("Syncing project changes");
+        project.syncChanges();
+
+        logger.info("{}", report);
+        return report;
+    }
+
+    private static String groupKey(Matcher matcher) {
+        try {
+            return matcher.group("key");
+        } catch (IllegalArgumentException e) {
+            return matcher.groupCount() > 0 ? matcher.group(1) : matcher.group();
+        }
+    }
+
+    /**
+     * Summary of a metadata import
+     */
+    public static class Report {
+        private int nMatched = 0;
+        private final List<String> unmatched = new ArrayList<>();
+        private final Map<String, List<String>> ambiguous = new LinkedHashMap<>();
+        private final List<String> unusedRows = new ArrayList<>();
+
+        /**
+         * @return the number of entries that received metadata
+         */
+        public int getMatchedCount() {
+            return nMatched;
+        }
+
+        /**
+         * @return the names of the entries that no row matched
+         */
+        public List<String> getUnmatchedEntries() {
+            return Collections.unmodifiableList(unmatched);
+        }
+
+        /**
+         * @return the entries matched by more than one row, with the image names of these rows
+         */
+        public Map<String, List<String>> getAmbiguousEntries() {
+            return Collections.unmodifiableMap(ambiguous);
+        }
+
+        /**
+         * @return the image names of the rows that matched no entry
+         */
+        public List<String> getUnusedRows() {
+            return Collections.unmodifiableList(unusedRows);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Metadata added to %d entries. %d entries without match %s, %d entries with several matches %s, %d unused rows %s",
+                    nMatched, unmatched.size(), unmatched, ambiguous.size(), ambiguous, unusedRows.size(), unusedRows);
+        }
+    }
+
+    /**
+     * Aho-Corasick automaton to find all the patterns contained in a text in a single pass over the text
+     */
+    private static class AhoCorasick {
+        private final List<Map<Character, Integer>> transitions = new ArrayList<>();
+        private final List<Integer> fail = new ArrayList<>();
+        // Index of the pattern ending at each node, or -1
+        private final List<Integer> output = new ArrayList<>();
+        // Closest node on the failure chain that ends a pattern, or -1
+        private final List<Integer> outputLink = new ArrayList<>();
+
+        AhoCorasick(List<String> patterns) {
+            addNode();
+            for (int p = 0; p < patterns.size(); p++) {
+                int node = 0;
+                for (char c : patterns.get(p).toCharArray()) {
+                    Integer next = transitions.get(node).get(c);
+                    if (next == null) {
+                        next = addNode();
+                        transitions.get(node).put(c, next);
+                    }
+                    node = next;
+                }
+                output.set(node, p);
+            }
+
+            // Breadth first, so that the failure links of shorter prefixes are known first
+            Queue<Integer> queue = new ArrayDeque<>();
+            for (int child : transitions.get(0).values()) {
+                fail.set(child, 0);
+                queue.add(child);
+            }
+            while (!queue.isEmpty()) {
+                int node = queue.poll();
+                for (Map.Entry<Character, Integer> edge : transitions.get(node).entrySet()) {
+                    int child = edge.getValue();
+                    int f = fail.get(node);
+                    while (f > 0 && !transitions.get(f).containsKey(edge.getKey()))
+                        f = fail.get(f);
+                    Integer target = transitions.get(f).get(edge.getKey());
+                    int childFail = target != null && target != child ? target : 0;
+                    fail.set(child, childFail);
+                    outputLink.set(child, output.get(childFail) >= 0 ? childFail : outputLink.get(childFail));
+                    queue.add(child);
+                }
+            }
+        }
+
+        private int addNode() {
+            transitions.add(new HashMap<>());
+            fail.add(0);
+            output.add(-1);
+            outputLink.add(-1);
+            return transitions.size() - 1;
+        }
+
+        /**
+         * @return the indices of all the patterns found in the text
+         */
+        List<Integer> findAll(String text) {
+            List<Integer> found = new ArrayList<>();
+            int node = 0;
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                while (node > 0 && !transitions.get(node).containsKey(c))
+                    node = fail.get(node);
+                node = transitions.get(node).getOrDefault(c, 0);
+                for (int n = node; n > 0; n = outputLink.get(n)) {
+                    if (output.get(n) >= 0)
+                        found.add(output.get(n));
+                }
+            }
+            return found;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package qupath.ext.biop.utils;
+
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.regions.ImageRegion;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.lang.reflect.InvocationTargetException;
+
+/**
+ * Writes tiled, pyramidal OME-TIFF files with QuPath's OME pyramid writer, like the 'convert-ome' command does.
+ * <p>
+ * The writer comes with the Bio-Formats extension, which this extension does not depend on, so it is found at runtime.
+ * Images written this way keep their pixel size, channel names and colors.
+ */
+class OMEPyramidWriters {
+
+    private static final String BUILDER_CLASS = "qupath.lib.images.writers.ome.OMEPyramidWriter$Builder";
+
+    private OMEPyramidWriters() {
+    }
+
+    /**
+     * @return true if the Bio-Formats extension is available to write OME-TIFF files
+     */
+    static boolean isAvailable() {
+        try {
+            findClass(BUILDER_CLASS);
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Write an image, or a region of it, as a pyramidal OME-TIFF
+     * @param server the image
+     * @param region the region to write, with its plane, or null to write all of the image and all its planes
+     * @param downsamples the downsamples of the resolutions to write, starting with the full resolution one
+     * @param tileSize the width and height of the tiles
+     * @param nThreads the number of threads writing tiles
+     * @param file the OME-TIFF file
+     * @throws Exception if the Bio-Formats extension is missing, or the image cannot be read or written
+     */
+    static void write(ImageServer<BufferedImage> server, ImageRegion region, double[] downsamples, int tileSize, int nThreads, File file) throws Exception {
+        Class<?> builderClass = findClass(BUILDER_CLASS);
+        Object builder = builderClass.getConstructor(ImageServer.class).newInstance(server);
+        builderClass.getMethod("tileSize", int.class).invoke(builder, tileSize);
+        builderClass.getMethod("downsamples", double[].class).invoke(builder, (Object) downsamples);
+        builderClass.getMethod("parallelize", int.class).invoke(builder, nThreads);
+        if (region == null) {
+            builderClass.getMethod("allZSlices").invoke(builder);
+            builderClass.getMethod("allTimePoints").invoke(builder);
+        } else {
+            builderClass.getMethod("region", ImageRegion.class).invoke(builder, region);
+            builderClass.getMethod("zSlices", int.class, int.class).invoke(builder, region.getZ(), region.getZ() + 1);
+            builderClass.getMethod("timePoints", int.class, int.class).invoke(builder, region.getT(), region.getT() + 1);
+        }
+        if (server.isRGB())
+            builderClass.getMethod("channelsInterleaved").invoke(builder);
+        Object writer = builderClass.getMethod("build").invoke(builder);
+        try {
+            writer.getClass().getMethod("writePyramid", String.class).invoke(writer, file.getAbsolutePath());
+        } catch (InvocationTargetException e) {
+            // Report what went wrong in the writer
+            if (e.getCause() instanceof Exception cause)
+                throw cause;
+            throw e;
+        }
+    }
+
+    private static Class<?> findClass(String name) throws ClassNotFoundException {
+        try {
+            return Class.forName(name, true, OMEPyramidWriters.class.getClassLoader());
+        } catch (ClassNotFoundException e) {
+            ClassLoader loader = Thread.currentThread().getContextClassLoader();
+            if (loader == null)
+                throw new ClassNotFoundException("The Bio-Formats extension is needed to write OME-TIFF files", e);
+            return Class.forName(name, true, loader);
+        }
+    }
+}
@@ -0,0 +1,471 @@
+package qupath.ext.biop.utils;
+
+import ij.measure.ResultsTable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.common.GeneralTools;
+import qupath.lib.common.ThreadTools;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.images.servers.ImageServerProvider;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32C;
+
+/**
+ * Converts images to pyramidal OME-TIFF files within QuPath, without starting a QuPath console for each file.
+ * <p>
+ * Files are converted several at a time, sharing a total number of threads and an approximate memory budget: each
+ * conversion gets an equal share of the threads for its writer, and only starts once the memory for its tiles is
+ * available. Larger files are started first, so that they do not end up converting alone.
+ * <p>
+ * The checksum of each converted file is kept in the output folder, so that converting the folder again only converts
+ * new or modified files. Files whose size and date have not changed are skipped without reading them.
+ * <p>
+ * Files are written with QuPath's OME pyramid writer from the Bio-Formats extension, which is found at runtime, so
+ * this works headless as well, e.g. from a script run with the QuPath console.
+ * <pre>
+ * def converter = new OMETiffConverter(new File(folder.getParent(), "converted"))
+ * converter.setParallelism(3)
+ * converter.convertFolder(folder, "ndpi")
+ * converter.showSummary()
+ * </pre>
+ */
+public class OMETiffConverter {
+
+    final private static Logger logger = LoggerFactory.getLogger(OMETiffConverter.class);
+
+    private static final String CHECKSUM_FILE = "conversion-checksums.properties";
+    private static final String OUTPUT_EXTENSION = ".ome.tiff";
+
+    // Tiles held by the writer for each of its threads, being read, compressed and written
+    private static final int TILES_PER_THREAD = 4;
+
+    private final File outputFolder;
+    private int parallelism = 2;
+    private int threadBudget = Runtime.getRuntime().availableProcessors();
+    private int memoryBudgetMB = (int) Math.max(1, Runtime.getRuntime().maxMemory() / (2 * 1024 * 1024));
+    private int tileSize = 512;
+    private double pyramidScale = 2.0;
+    private ProgressListener progressListener;
+    private final AtomicBoolean cancelled = new AtomicBoolean(false);
+
+    private final Properties checksums = new Properties();
+    private final List<Result> results = new ArrayList<>();
+
+    /**
+     * The status of a file after a conversion
+     */
+    public enum Status {
+        /** The file was converted */
+        CONVERTED,
+        /** The file had already been converted and has not changed since */
+        SKIPPED,
+        /** The file could not be converted */
+        FAILED,
+        /** The conversion was cancelled before the file was converted */
+        CANCELLED
+    }
+
+    /**
+     * The result of the conversion of one file
+     * @param input the converted file
+     * @param output the OME-TIFF file
+     * @param status whether the file was converted
+     * @param millis the time taken by the conversion, in milliseconds
+     * @param tiles the number of tiles written, over all the resolutions and planes
+     * @param inputBytes the size of the converted file
+     * @param outputBytes the size of the OME-TIFF file
+     */
+    public record Result(File input, File output, Status status, long millis, long tiles, long inputBytes, long outputBytes) {
+
+        /**
+         * @return the size of the converted file read per second, in megabytes
+         */
+        public double megabytesPerSecond() {
+            return millis > 0 ? inputBytes / (1024.0 * 1024.0) / (millis / 1000.0) : Double.NaN;
+        }
+
+        /**
+         * @return the number of tiles written per second
+         */
+        public double tilesPerSecond() {
+            return millis > 0 ? tiles / (millis / 1000.0) : Double.NaN;
+        }
+    }
+
+    /**
+     * @param outputFolder the folder where the OME-TIFF files are written, named after the converted files
+     */
+    public OMETiffConverter(File outputFolder) {
+        this.outputFolder = outputFolder;
+    }
+
+    /**
+     * Set how many files can be converted at the same time. Default is 2.
+     * @param parallelism the number of files converted concurrently
+     */
+    public void setParallelism(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * Set the number of threads shared by all the files being converted. Default is the number of processors.
+     * @param threadBudget the total number of writer threads
+     */
+    public void setThreadBudget(int threadBudget) {
+        this.threadBudget = Math.max(1, threadBudget);
+    }
+
+    /**
+     * Limit the memory used by the files being converted at the same time. The memory needed by each file is estimated
+     * from the size of its tiles and the number of threads writing them. A file larger than the budget is converted alone.
+     * @param memoryBudgetMB the approximate memory budget, in megabytes
+     */
+    public void setMemoryBudgetMB(int memoryBudgetMB) {
+        this.memoryBudgetMB = Math.max(1, memoryBudgetMB);
+    }
+
+    /**
+     * @param tileSize the width and height of the tiles of the OME-TIFF files. Default is 512
+     */
+    public void setTileSize(int tileSize) {
+        this.tileSize = Math.max(16, tileSize);
+    }
+
+    /**
+     * @param pyramidScale the downsample between two resolutions of the pyramid. Default is 2
+     */
+    public void setPyramidScale(double pyramidScale) {
+        if (pyramidScale <= 1)
+            throw new IllegalArgumentException("The pyramid scale must be larger than 1");
+        this.pyramidScale = pyramidScale;
+    }
+
+    /**
+     * Be notified each time a file is done, e.g. to update a progress bar. The listener is called from worker threads.
+     * @param progressListener the listener, or null to remove it
+     */
+    public void setProgressListener(ProgressListener progressListener) {
+        this.progressListener = progressListener;
+    }
+
+    /**
+     * Stop the conversion currently running. Files that are already being converted are finished.
+     */
+    public void cancel() {
+        this.cancelled.set(true);
+    }
+
+    /**
+     * Convert all the files of a folder that have an extension
+     * @param folder the folder of the images
+     * @param extension the extension of the images to convert, e.g. "ndpi"
+     * @return the results, one per file
+     */
+    public List<Result> convertFolder(File folder, String extension) {
+        File[] files = folder.listFiles((dir, name) -> name.endsWith(extension));
+        if (files == null) {
+            logger.warn("{} is not a folder", folder);
+            return List.of();
+        }
+        return convert(Arrays.asList(files));
+    }
+
+    /**
+     * Convert files to pyramidal OME-TIFF files
+     * @param files the images to convert
+     * @return the results, one per file
+     */
+    public List<Result> convert(Collection<File> files) {
+        cancelled.set(false);
+        synchronized (results) {
+            results.clear();
+        }
+        outputFolder.mkdirs();
+        loadChecksums();
+
+        int total = files.size();
+        int writerThreads = Math.max(1, threadBudget / Math.min(parallelism, Math.max(1, total)));
+        AtomicInteger nDone = new AtomicInteger(0);
+        Semaphore memory = new Semaphore(memoryBudgetMB);
+        long start = System.currentTimeMillis();
+
+        // Largest files first
+        List<File> queue = files.stream().sorted(Comparator.comparingLong(File::length).reversed()).toList();
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(parallelism, total)),
+                ThreadTools.createThreadFactory("biop-ome-tiff-", true));
+        try {
+            List<Future<?>> tasks = queue.stream().map(file -> pool.submit(() -> {
+                Result result;
+                try {
+                    result = convert(file, writerThreads, memory);
+                } catch (Exception e) {
+                    logger.error("Could not convert {}: {}", file.getName(), e.getLocalizedMessage(), e);
+                    result = new Result(file, getOutputFile(file), Status.FAILED, 0, 0, file.length(), 0);
+                }
+                synchronized (results) {
+                    results.add(result);
+                }
+                if (progressListener != null)
+                    progressListener.updateProgress(nDone.incrementAndGet(), total, result);
+            })).toList();
+
+            for (Future<?> task : tasks) {
+                try {
+                    task.get();
+                } catch (ExecutionException e) {
+                    logger.error("Error while converting: {}", e.getCause().getLocalizedMessage(), e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            cancelled.set(true);
+            Thread.currentThread().interrupt();
+        } finally {
+            pool.shutdownNow();
+        }
+
+        List<Result> converted = getResults().stream().filter(r -> r.status() == Status.CONVERTED).toList();
+        double seconds = Math.max(1, System.currentTimeMillis() - start) / 1000.0;
+        double megabytes = converted.stream().mapToLong(Result::inputBytes).sum() / (1024.0 * 1024.0);
+        long tiles = converted.stream().mapToLong(Result::tiles).sum();
+        logger.info("Converted {} of {} files in {} s: {} MB/s, {} tiles/s", converted.size(), total,
+                GeneralTools.formatNumber(seconds, 1), GeneralTools.formatNumber(megabytes / seconds, 1),
+                GeneralTools.formatNumber(tiles / seconds, 1));
+        if (cancelled.get())
+            logger.warn("Conversion was cancelled after {} of {} files", nDone.get(), total);
+        return getResults();
+    }
+
+    private Result convert(File file, int writerThreads, Semaphore memory) throws Exception {
+        File output = getOutputFile(file);
+        if (cancelled.get())
+            return new Result(file, output, Status.CANCELLED, 0, 0, file.length(), 0);
+        if (isConverted(file, output)) {
+            logger.info("Skipping {}, it has not changed since it was converted", file.getName());
+            return new Result(file, output, Status.SKIPPED, 0, 0, file.length(), output.length());
+        }
+
+        try (ImageServer<BufferedImage> server = ImageServerProvider.buildServer(file.toURI().toString(), BufferedImage.class)) {
+            int permits = Math.min(memoryBudgetMB, estimateMemoryMB(server, writerThreads));
+            memory.acquire(permits);
+            try {
+                if (cancelled.get())
+                    return new Result(file, output, Status.CANCELLED, 0, 0, file.length(), 0);
+                double[] downsamples = getDownsamples(server);
+                logger.info("Converting {} with {} threads, downsamples {}", file.getName(), writerThreads, Arrays.toString(downsamples));
+
+                // Written under another name first, so that an interrupted conversion is not taken for a complete one
+                String name = output.getName();
+                File partial = new File(outputFolder, name.substring(0, name.length() - OUTPUT_EXTENSION.length()) + ".part" + OUTPUT_EXTENSION);
+                long start = System.currentTimeMillis();
+                OMEPyramidWriters.write(server, null, downsamples, tileSize, writerThreads, partial);
+                Files.move(partial.toPath(), output.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                long millis = System.currentTimeMillis() - start;
+
+                Result result = new Result(file, output, Status.CONVERTED, millis, countTiles(server, downsamples), file.length(), output.length());
+                logger.info("Converted {} in {} s: {} MB/s, {} tiles/s", file.getName(), GeneralTools.formatNumber(millis / 1000.0, 1),
+                        GeneralTools.formatNumber(result.megabytesPerSecond(), 1), GeneralTools.formatNumber(result.tilesPerSecond(), 1));
+                recordChecksum(file);
+                return result;
+            } finally {
+                memory.release(permits);
+            }
+        }
+    }
+
+    /**
+     * Downsamples of the pyramid, until the lowest resolution fits in a tile
+     */
+    private double[] getDownsamples(ImageServer<BufferedImage> server) {
+        List<Double> downsamples = new ArrayList<>();
+        double downsample = 1;
+        while (true) {
+            downsamples.add(downsample);
+            if (Math.max(server.getWidth(), server.getHeight()) / downsample <= tileSize)
+                break;
+            downsample *= pyramidScale;
+        }
+        return downsamples.stream().mapToDouble(Double::doubleValue).toArray();
+    }
+
+    private long countTiles(ImageServer<BufferedImage> server, double[] downsamples) {
+        long planes = (long) server.nZSlices() * server.nTimepoints() * (server.isRGB() ? 1 : server.nChannels());
+        long tiles = 0;
+        for (double downsample : downsamples) {
+            long width = (long) Math.ceil(server.getWidth() / downsample);
+            long height = (long) Math.ceil(server.getHeight() / downsample);
+            tiles += ((width + tileSize - 1) / tileSize) * ((height + tileSize - 1) / tileSize);
+        }
+        return tiles * planes;
+    }
+
+    /**
+     * Memory of the tiles held by the writer threads, and of the tiles cached by the server while they are read
+     */
+    private int estimateMemoryMB(ImageServer<BufferedImage> server, int writerThreads) {
+        long bytesPerTile = (long) tileSize * tileSize * server.nChannels() * server.getPixelType().getBytesPerPixel();
+        long bytes = bytesPerTile * writerThreads * TILES_PER_THREAD * 2;
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, bytes / (1024 * 1024)));
+    }
+
+    private File getOutputFile(File file) {
+        return new File(outputFolder, file.getName() + OUTPUT_EXTENSION);
+    }
+
+    /**
+     * A file was converted if its output exists and it has the same size and date, or the same checksum, as when it was converted
+     */
+    private boolean isConverted(File file, File output) throws IOException {
+        if (!output.exists())
+            return false;
+        String recorded;
+        synchronized (checksums) {
+            recorded = checksums.getProperty(file.getName());
+        }
+        if (recorded == null)
+            return false;
+        long[] parts;
+        try {
+            parts = Arrays.stream(recorded.split(";")).mapToLong(Long::parseLong).toArray();
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        if (parts.length != 3 || parts[0] != file.length())
+            return false;
+        if (parts[1] == file.lastModified())
+            return true;
+        // The file was touched, only its content tells if it has changed
+        long checksum = checksum(file);
+        if (parts[2] != checksum)
+            return false;
+        saveChecksum(file, checksum);
+        return true;
+    }
+
+    private void recordChecksum(File file) {
+        try {
+            saveChecksum(file, checksum(file));
+        } catch (IOException e) {
+            logger.warn("Could not record the checksum of {}: {}", file.getName(), e.getLocalizedMessage());
+        }
+    }
+
+    private static long checksum(File file) throws IOException {
+        CRC32C crc = new CRC32C();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(8 * 1024 * 1024);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                crc.update(buffer);
+                buffer.clear();
+            }
+        }
+        return crc.getValue();
+    }
+
+    private void loadChecksums() {
+        Path path = new File(outputFolder, CHECKSUM_FILE).toPath();
+        synchronized (checksums) {
+            checksums.clear();
+            if (!Files.exists(path))
+                return;
+            try (InputStream stream = Files.newInputStream(path)) {
+                checksums.load(stream);
+            } catch (IOException e) {
+                logger.warn("Could not read {}, all files will be converted: {}", path, e.getLocalizedMessage());
+            }
+        }
+    }
+
+    private void saveChecksum(File file, long checksum) throws IOException {
+        Path path = new File(outputFolder, CHECKSUM_FILE).toPath();
+        Path temp = new File(outputFolder, CHECKSUM_FILE + ".tmp").toPath();
+        synchronized (checksums) {
+            checksums.setProperty(file.getName(), file.length() + ";" + file.lastModified() + ";" + checksum);
+            try (OutputStream stream = Files.newOutputStream(temp)) {
+                checksums.store(stream, "Size;date;CRC32C of the converted files");
+            }
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * @return the results of the last conversion, in the order the files were done
+     */
+    public List<Result> getResults() {
+        synchronized (results) {
+            return List.copyOf(results);
+        }
+    }
+
+    /**
+     * Show the results of the last conversion in a 'OME-TIFF Conversion Summary' table
+     */
+    public void showSummary() {
+        getSummary().show("OME-TIFF Conversion Summary");
+    }
+
+    /**
+     * Save the results of the last conversion, without showing them, e.g. when running headless
+     * @param path the folder where 'OME-TIFF Conversion Summary.csv' is saved
+     */
+    public void saveSummary(String path) {
+        try {
+            getSummary().save(path + File.separator + "OME-TIFF Conversion Summary.csv");
+        } catch (Exception e) {
+            logger.error("Cannot save the ResultsTable 'OME-TIFF Conversion Summary' in {}", path);
+        }
+    }
+
+    private ResultsTable getSummary() {
+        ResultsTable summary = new ResultsTable();
+        for (Result result : getResults()) {
+            summary.incrementCounter();
+            summary.addValue("File", result.input().getName());
+            summary.addValue("Status", result.status().toString());
+            summary.addValue("Input MB", result.inputBytes() / (1024.0 * 1024.0));
+            summary.addValue("Output MB", result.outputBytes() / (1024.0 * 1024.0));
+            summary.addValue("Time s", result.millis() / 1000.0);
+            summary.addValue("Tiles", result.tiles());
+            summary.addValue("MB/s", result.megabytesPerSecond());
+            summary.addValue("Tiles/s", result.tilesPerSecond());
+        }
+        return summary;
+    }
+
+    /**
+     * Listener notified each time a file has been converted or skipped
+     */
+    public interface ProgressListener {
+        /**
+         * @param done the number of files processed so far
+         * @param total the total number of files to process
+         * @param result the result of the file that was just processed
+         */
+        void updateProgress(int done, int total, Result result);
+    }
+}
@@ -0,0 +1,452 @@
+package qupath.ext.biop.utils;
+
+import ij.ImagePlus;
+import ij.io.FileSaver;
+import ij.process.ShortProcessor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.imagej.tools.IJTools;
+import qupath.lib.common.GeneralTools;
+import qupath.lib.common.ThreadTools;
+import qupath.lib.images.ImageData;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.images.servers.TransformedServerBuilder;
+import qupath.lib.images.writers.ImageWriterTools;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.classes.PathClass;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.projects.ProjectImageEntry;
+import qupath.lib.regions.ImageRegion;
+import qupath.lib.regions.RegionRequest;
+import qupath.lib.roi.RectangleROI;
+import qupath.lib.roi.interfaces.ROI;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Exports regions of images, several at a time, within a memory budget.
+ * <p>
+ * Regions that fit in a tile are read at once and written as before, with QuPath's writers or ImageJ. Larger regions are
+ * read one tile at a time and streamed into a tiled, pyramidal file, so they never have to be held in memory. Images are
+ * written as OME-TIFF with QuPath's OME pyramid writer, so they keep their metadata like {@code writeImageRegion} does.
+ * Without the Bio-Formats extension, and for training images, they are written with a {@link TiledTiffWriter}, which
+ * only keeps the pixel size.
+ * <p>
+ * Training pairs for StarDist are made of an image and a 16-bit label mask. The mask is drawn directly from the ROIs of
+ * the objects inside the region, each with its own label. Point, line and rectangle ROIs are ignored, as the
+ * rectangles are the training regions. For a project, the hierarchies are read in parallel first, and each image is
+ * then opened once and shared by all its regions.
+ * <pre>
+ * def exporter = new RegionExporter(1)
+ * exporter.setParallelism(8)
+ * exporter.setChannel(2)
+ * exporter.exportTrainingPairs(getProject().getImageList(), new File(PROJECT_BASE_DIR, "ground_truth"))
+ * </pre>
+ */
+public class RegionExporter {
+
+    final private static Logger logger = LoggerFactory.getLogger(RegionExporter.class);
+
+    private final double downsample;
+    private int tileSize = 1024;
+    private int parallelism = 1;
+    private int memoryBudgetMB = (int) Math.max(1, Runtime.getRuntime().maxMemory() / (2 * 1024 * 1024));
+    private Integer channel = null;
+    private List<String> trainingClasses = List.of("train", "test");
+
+    /**
+     * @param downsample the downsample of all exported regions
+     */
+    public RegionExporter(double downsample) {
+        this.downsample = downsample;
+    }
+
+    /**
+     * Regions larger than a tile are written tile by tile into a pyramidal TIFF
+     * @param tileSize the width and height of the tiles in the exported images, in pixels. Default is 1024
+     */
+    public void setTileSize(int tileSize) {
+        this.tileSize = Math.max(16, tileSize);
+    }
+
+    /**
+     * Set how many regions can be exported at the same time. Default is 1.
+     * @param parallelism the number of regions exported concurrently
+     */
+    public void setParallelism(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * Limit the memory used by the regions being exported at the same time. The memory needed by each region is
+     * estimated from its size. A region larger than the budget is exported alone.
+     * @param memoryBudgetMB the approximate memory budget, in megabytes
+     */
+    public void setMemoryBudgetMB(int memoryBudgetMB) {
+        this.memoryBudgetMB = Math.max(1, memoryBudgetMB);
+    }
+
+    /**
+     * @param channel the channel to export, starting at 1, or null to export all channels. Default is null
+     */
+    public void setChannel(Integer channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * @param classes the classes of the training regions, which are also the names of the folders they are exported
+     *                to. Default is "train" and "test"
+     */
+    public void setTrainingClasses(String... classes) {
+        this.trainingClasses = List.of(classes);
+    }
+
+    /**
+     * Export regions as TIFF images named [baseName]_[index].tif
+     * @param server the image
+     * @param regions the objects whose ROI define the regions
+     * @param folder the folder to export to
+     * @param baseName the start of the file names
+     * @return the number of regions that were exported
+     */
+    public int exportImages(ImageServer<BufferedImage> server, List<? extends PathObject> regions, File folder, String baseName) {
+        folder.mkdirs();
+        ImageServer<BufferedImage> exported = selectChannel(server);
+        List<BooleanSupplier> tasks = new ArrayList<>();
+        List<Integer> memory = new ArrayList<>();
+        for (int i = 0; i < regions.size(); i++) {
+            RegionRequest request = RegionRequest.createInstance(server.getPath(), downsample, regions.get(i).getROI());
+            File file = new File(folder, baseName + "_" + i + ".tif");
+            memory.add(estimateMemoryMB(exported, request, 0));
+            tasks.add(() -> {
+                try {
+                    writeImage(exported, request, file, false);
+                    logger.info("Region saved to {}", file);
+                    return true;
+                } catch (IOException e) {
+                    logger.error("Could not export {}: {}", file, e.getLocalizedMessage());
+                    return false;
+                }
+            });
+        }
+        return runTasks(tasks, memory);
+    }
+
+    /**
+     * Export the training regions of an image and the objects they contain as image and label pairs, in
+     * [folder]/[class]/images and [folder]/[class]/masks
+     * @param imageData the image
+     * @param imageName the name of the image, used to name the files
+     * @param folder the folder to export to
+     * @return the number of pairs that were exported
+     */
+    public int exportTrainingPairs(ImageData<BufferedImage> imageData, String imageName, File folder) {
+        List<Pair> pairs = findPairs(imageData.getHierarchy(), imageName, folder);
+        ImageServer<BufferedImage> server = selectChannel(imageData.getServer());
+        return exportPairs(pairs, List.of(new SharedServer(null, pairs.size(), server)));
+    }
+
+    /**
+     * Export the training regions of project entries and the objects they contain as image and label pairs, in
+     * [folder]/[class]/images and [folder]/[class]/masks
+     * @param entries the entries
+     * @param folder the folder to export to
+     * @return the number of pairs that were exported
+     */
+    public int exportTrainingPairs(Collection<ProjectImageEntry<BufferedImage>> entries, File folder) {
+        // The regions and their objects of all entries, with only the hierarchies read
+        List<Pair> pairs = new ArrayList<>();
+        List<SharedServer> servers = new ArrayList<>();
+        List<BooleanSupplier> tasks = new ArrayList<>();
+        for (ProjectImageEntry<BufferedImage> entry : entries) {
+            tasks.add(() -> {
+                try {
+                    List<Pair> entryPairs = findPairs(entry.readHierarchy(), entry.getImageName(), folder);
+                    if (entryPairs.isEmpty())
+                        return true;
+                    SharedServer server = new SharedServer(entry, entryPairs.size(), null);
+                    entryPairs.forEach(pair -> pair.server = server);
+                    synchronized (pairs) {
+                        pairs.addAll(entryPairs);
+                        servers.add(server);
+                    }
+                    return true;
+                } catch (IOException e) {
+                    logger.warn("Could not read hierarchy for {}: {}", entry.getImageName(), e.getLocalizedMessage());
+                    return false;
+                }
+            });
+        }
+        runTasks(tasks, tasks.stream().map(t -> 1).toList());
+        return exportPairs(pairs, servers);
+    }
+
+    private List<Pair> findPairs(PathObjectHierarchy hierarchy, String imageName, File folder) {
+        String name = GeneralTools.stripInvalidFilenameChars(imageName);
+        List<Pair> pairs = new ArrayList<>();
+        for (String type : trainingClasses) {
+            PathClass pathClass = PathClass.fromString(type);
+            List<PathObject> regions = hierarchy.getAnnotationObjects().stream()
+                    .filter(a -> a.getPathClass() == pathClass && a.hasROI())
+                    .toList();
+            File images = new File(folder, type + File.separator + "images");
+            File masks = new File(folder, type + File.separator + "masks");
+            for (int i = 0; i < regions.size(); i++) {
+                PathObject region = regions.get(i);
+                // Objects drawn in the region, in a stable order so that labels are reproducible
+                List<ROI> rois = hierarchy.getObjectsForRegion(PathObject.class, ImageRegion.createInstance(region.getROI()), null).stream()
+                        .filter(o -> o != region && o.hasROI())
+                        .map(PathObject::getROI)
+                        .filter(roi -> roi.isArea() && !(roi instanceof RectangleROI))
+                        .sorted(Comparator.comparingDouble(ROI::getBoundsY).thenComparingDouble(ROI::getBoundsX))
+                        .toList();
+                String fileName = name + "_r" + (i + 1) + ".tif";
+                pairs.add(new Pair(region.getROI(), rois, new File(images, fileName), new File(masks, fileName)));
+            }
+        }
+        return pairs;
+    }
+
+    private int exportPairs(List<Pair> pairs, List<SharedServer> servers) {
+        pairs.forEach(pair -> {
+            pair.image.getParentFile().mkdirs();
+            pair.mask.getParentFile().mkdirs();
+        });
+        List<BooleanSupplier> tasks = new ArrayList<>();
+        List<Integer> memory = new ArrayList<>();
+        for (Pair pair : pairs) {
+            SharedServer shared = pair.server == null ? servers.getFirst() : pair.server;
+            // The memory is estimated from the size of the region only, as the image is not opened yet
+            long pixels = (long) Math.ceil(pair.region.getBoundsWidth() / downsample) * (long) Math.ceil(pair.region.getBoundsHeight() / downsample);
+            memory.add((int) Math.max(1, Math.min(Integer.MAX_VALUE, pixels * 16 / (1024 * 1024))));
+            tasks.add(() -> {
+                try {
+                    ImageServer<BufferedImage> server = shared.acquire();
+                    RegionRequest request = RegionRequest.createInstance(server.getPath(), downsample, pair.region);
+                    int[] size = writeImage(server, request, pair.image, true);
+                    ImagePlus labels = new ImagePlus("Labels", renderLabels(pair.rois, request, size[0], size[1]));
+                    if (!new FileSaver(labels).saveAsTiff(pair.mask.getAbsolutePath()))
+                        throw new IOException("Cannot write " + pair.mask);
+                    logger.info("{} Image and Mask Saved.", pair.image.getName());
+                    return true;
+                } catch (Exception e) {
+                    logger.error("Could not export {}: {}", pair.image, e.getLocalizedMessage());
+                    return false;
+                } finally {
+                    shared.release();
+                }
+            });
+        }
+        return runTasks(tasks, memory);
+    }
+
+    /**
+     * Write a region, at once if it fits in a tile and tile by tile otherwise. Training images are written with ImageJ,
+     * as they were by the export script, other images with QuPath's writers
+     * @return the width and height of the written image
+     */
+    private int[] writeImage(ImageServer<BufferedImage> server, RegionRequest request, File file, boolean imageJ) throws IOException {
+        int width = (int) Math.max(1, Math.round(request.getWidth() / request.getDownsample()));
+        int height = (int) Math.max(1, Math.round(request.getHeight() / request.getDownsample()));
+        if (width <= tileSize && height <= tileSize) {
+            if (!imageJ) {
+                ImageWriterTools.writeImageRegion(server, request, file.getAbsolutePath());
+            } else {
+                ImagePlus image = IJTools.convertToImagePlus(server, request).getImage();
+                width = image.getWidth();
+                height = image.getHeight();
+                if (!new FileSaver(image).saveAsTiff(file.getAbsolutePath()))
+                    throw new IOException("Cannot write " + file);
+                image.close();
+            }
+        } else if (!imageJ && OMEPyramidWriters.isAvailable()) {
+            // Regions are already written in parallel, so each one uses a single thread
+            try {
+                OMEPyramidWriters.write(server, request, getPyramidDownsamples(width, height), tileSize, 1, file);
+            } catch (IOException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IOException(e);
+            }
+        } else {
+            if (!imageJ)
+                logger.warn("The Bio-Formats extension is missing, {} is written without its OME metadata", file.getName());
+            new TiledTiffWriter(tileSize).write(server, request, file);
+        }
+        return new int[]{width, height};
+    }
+
+    /**
+     * Downsamples of the exported region and its lower resolutions, halved until they fit in a tile
+     */
+    private double[] getPyramidDownsamples(int width, int height) {
+        List<Double> downsamples = new ArrayList<>();
+        double scale = 1;
+        while (true) {
+            downsamples.add(downsample * scale);
+            if (Math.max(width, height) / scale <= tileSize)
+                break;
+            scale *= 2;
+        }
+        return downsamples.stream().mapToDouble(Double::doubleValue).toArray();
+    }
+
+    /**
+     * Draw each ROI with its own label, starting at 1, in the pixels of a region request
+     * @param rois the ROIs, in order of their labels
+     * @param request the region and downsample of the mask
+     * @param width the width of the mask
+     * @param height the height of the mask
+     * @return the 16-bit mask
+     */
+    public static ShortProcessor renderLabels(List<ROI> rois, RegionRequest request, int width, int height) {
+        // Colors of an RGB image keep their exact 24-bit value, unlike gray levels
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g2d = image.createGraphics();
+        g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_OFF);
+        g2d.scale(1.0 / request.getDownsample(), 1.0 / request.getDownsample());
+        g2d.translate(-request.getX(), -request.getY());
+        int label = 0;
+        for (ROI roi : rois) {
+            g2d.setColor(new Color(++label));
+            g2d.fill(roi.getShape());
+        }
+        g2d.dispose();
+
+        int[] rgb = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        short[] labels = new short[rgb.length];
+        for (int i = 0; i < rgb.length; i++)
+            labels[i] = (short) Math.min(0xFFFF, rgb[i] & 0xFFFFFF);
+        if (label > 0xFFFF)
+            logger.warn("{} objects in a region, labels above 65535 are merged", label);
+        return new ShortProcessor(width, height, labels, null);
+    }
+
+    private ImageServer<BufferedImage> selectChannel(ImageServer<BufferedImage> server) {
+        if (channel == null)
+            return server;
+        return new TransformedServerBuilder(server).extractChannels(channel - 1).build();
+    }
+
+    private int estimateMemoryMB(ImageServer<BufferedImage> server, RegionRequest request, int bytesPerExtraPixel) {
+        long width = Math.min(tileSize * 2L, Math.round(request.getWidth() / request.getDownsample()));
+        long height = Math.min(tileSize * 2L, Math.round(request.getHeight() / request.getDownsample()));
+        long bytes = width * height * ((long) server.nChannels() * server.getPixelType().getBytesPerPixel() + bytesPerExtraPixel);
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, bytes / (1024 * 1024)));
+    }
+
+    /**
+     * Run tasks on a bounded pool, each holding an amount of the memory budget while it runs
+     * @return the number of tasks that succeeded
+     */
+    private int runTasks(List<BooleanSupplier> tasks, List<Integer> memoryMB) {
+        if (tasks.isEmpty())
+            return 0;
+        AtomicInteger nSucceeded = new AtomicInteger(0);
+        Semaphore memory = new Semaphore(memoryBudgetMB);
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(parallelism, tasks.size()),
+                ThreadTools.createThreadFactory("biop-region-export-", true));
+        try {
+            List<Future<?>> futures = new ArrayList<>(tasks.size());
+            for (int i = 0; i < tasks.size(); i++) {
+                BooleanSupplier task = tasks.get(i);
+                int permits = Math.min(memoryBudgetMB, Math.max(1, memoryMB.get(i)));
+                futures.add(pool.submit(() -> {
+                    try {
+                        memory.acquire(permits);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                    try {
+                        if (task.getAsBoolean())
+                            nSucceeded.incrementAndGet();
+                    } finally {
+                        memory.release(permits);
+                    }
+                }));
+            }
+            for (Future<?> future : futures)
+                future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            logger.error(e.getMessage(), e);
+        } finally {
+            pool.shutdownNow();
+        }
+        return nSucceeded.get();
+    }
+
+    /**
+     * A training region and the ROIs drawn in its mask
+     */
+    private static class Pair {
+        private final ROI region;
+        private final List<ROI> rois;
+        private final File image;
+        private final File mask;
+        private SharedServer server;
+
+        Pair(ROI region, List<ROI> rois, File image, File mask) {
+            this.region = region;
+            this.rois = rois;
+            this.image = image;
+            this.mask = mask;
+        }
+    }
+
+    /**
+     * The image of an entry, opened by the first of its regions and closed after the last one
+     */
+    private class SharedServer {
+        private final ProjectImageEntry<BufferedImage> entry;
+        private int remaining;
+        private ImageServer<BufferedImage> server;
+        private ImageServer<BufferedImage> original;
+
+        SharedServer(ProjectImageEntry<BufferedImage> entry, int nRegions, ImageServer<BufferedImage> server) {
+            this.entry = entry;
+            this.remaining = nRegions;
+            this.server = server;
+        }
+
+        synchronized ImageServer<BufferedImage> acquire() throws Exception {
+            if (server == null) {
+                original = entry.getServerBuilder().build();
+                server = selectChannel(original);
+            }
+            return server;
+        }
+
+        synchronized void release() {
+            // Only images opened here are closed
+            if (--remaining == 0 && original != null) {
+                try {
+                    original.close();
+                } catch (Exception e) {
+                    logger.debug("Could not close {}: {}", entry.getImageName(), e.getLocalizedMessage());
+                }
+                original = null;
+                server = null;
+            }
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package qupath.ext.biop.utils;
 
 import ij.measure.ResultsTable;
+import javafx.application.Platform;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import qupath.lib.common.GeneralTools;
@@ -16,7 +17,6 @@ import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.List;
 
 /**
@@ -32,64 +32,62 @@ public class Results {
     /**
      * By making use of ObservableMeasurementTableData, we can query each result and get a string back Works, for area,
      * PathClasses, parents, and of course any other measurement in the final table
+     * <p>
+     * The rows are appended to the end of the file with a {@link ResultsWriter}, so the existing results are never reopened.
      *
      * @param resultColumns a list of all the results we want to have, exactly the same names as in teh Measurement
      *                      Results tables
      * @param objects       the pathObjects we want to get the measurements from
      * @param resultsFile   the file where this tool should write to. Note that if the file exists, it will be appended
      * @see ObservableMeasurementTableData
+     * @see ResultsWriter
      */
     static public void sendResultsToFile(ArrayList<String> resultColumns, ArrayList<PathObject> objects, File resultsFile) {
 
-        // We use a ResultsTable to store the data, and we need to see if it exists so that we can append to it
-        ResultsTable results;
+        List<String> columns = new ArrayList<>();
+        List<Object[]> rows = buildRows(resultColumns, objects, columns);
 
-        if (resultsFile.exists()) {
-            // Try to open the previous results table
-            try {
-                results = ResultsTable.open(resultsFile.getAbsolutePath());
-            } catch (IOException e) {
-                logger.error("Could not reopen results file {}, either the file is locked or it is not a results table.", resultsFile.getName());
-                results = new ResultsTable();
-
-            }
-        } else {
-            // New Results Table
-            results = new ResultsTable();
+        try {
+            int nRows = new ResultsWriter(resultsFile).appendRows(columns, rows);
+            logger.info("Results {} Saved under {}, appended {} rows", resultsFile.getName(), resultsFile.getParentFile().getAbsolutePath(), nRows);
+        } catch (IOException e) {
+            logger.error("Could not append to results file {}, either the file is locked or it cannot be written: {}", resultsFile.getName(), e.getLocalizedMessage());
         }
+    }
 
-        ObservableMeasurementTableData ob = new ObservableMeasurementTableData();
-        // This line creates all the measurements
-        ob.setImageData(QP.getCurrentImageData(), objects);
+    /**
+     * Export the same results as {@link #sendResultsToFile(ArrayList, ArrayList, File)}, but as one row group of a
+     * compressed columnar file, which is much faster to write and to read back for large tables.
+     * Use {@link ColumnarResults.Reader} to load individual columns back.
+     *
+     * @param resultColumns a list of all the results we want to have, exactly the same names as in the Measurement
+     *                      Results tables
+     * @param objects       the pathObjects we want to get the measurements from
+     * @param columnarFile  the file where this tool should write to. Note that if the file exists, it will be appended
+     * @see ColumnarResults
+     */
+    static public void sendResultsToColumnarFile(ArrayList<String> resultColumns, ArrayList<PathObject> objects, File columnarFile) {
+        List<String> columns = new ArrayList<>();
+        List<Object[]> rows = buildRows(resultColumns, objects, columns);
+        String imageName = QP.getProjectEntry().getImageName();
+        try {
+            ColumnarResults.appendRowGroup(columnarFile, imageName, columns, rows);
+            logger.info("Results {} Saved under {}, appended {} rows", columnarFile.getName(), columnarFile.getParentFile().getAbsolutePath(), rows.size());
+        } catch (IOException e) {
+            logger.error("Could not append to results file {}: {}", columnarFile.getName(), e.getLocalizedMessage());
+        }
+    }
 
+    /**
+     * Build one row per object for the current image: image name, metadata and then the requested columns.
+     * The names of the columns are added to the columns list.
+     */
+    private static List<Object[]> buildRows(List<String> resultColumns, List<PathObject> objects, List<String> columns) {
         ProjectImageEntry<BufferedImage> entry = QP.getProjectEntry();
-
-        String rawImageName = entry.getImageName();
-
-        // Add value for each selected object
-        for (PathObject pathObject : objects) {
-            results.incrementCounter();
-            results.addValue("Image Name", rawImageName);
-
-            // Check if image has associated metadata and add it as columns
-            if (!entry.getMetadata().isEmpty()) {
-                Collection<String> keys = entry.getMetadata().keySet();
-                for (String key : keys) {
-                    results.addValue("Metadata_" + key, entry.getMetadata().get(key));
-                }
-            }
-
-            // Then we can add the results the user requested
-            // Because the Mu is sometimes poorly formatted, we remove them in favor of a 'u'
-            for (String col : resultColumns) {
-                if (ob.isNumericMeasurement(col))
-                    results.addValue(col.replace(um, "um"), ob.getNumericValue(pathObject, col));
-                if (ob.isStringMeasurement(col))
-                    results.addValue(col.replace(um, "um"), ob.getStringValue(pathObject, col));
-            }
-        }
-        results.save(resultsFile.getAbsolutePath());
-        logger.info("Results {} Saved under {}, contains {} rows", resultsFile.getName(), resultsFile.getParentFile().getAbsolutePath(), results.size());
+        // Scripts call this once per image with the same columns, so the plan is reused
+        ExportPlan plan = ExportPlan.getCached(resultColumns);
+        columns.addAll(plan.getColumns(entry));
+        return plan.buildRows(entry, QP.getCurrentImageData(), objects);
     }
 
     static public void sendResultsToFile(ArrayList<String> resultColumns, ArrayList<PathObject> objects) {
@@ -101,10 +99,42 @@ public class Results {
         sendResultsToFile(resultColumns, objects, resultsFile);
     }
 
+    static public void sendResultsToColumnarFile(ArrayList<String> resultColumns, ArrayList<PathObject> objects) {
+        File resultsFolder = new File(Projects.getBaseDirectory(QP.getProject()), "results");
+        File resultsFile = new File(resultsFolder, "results.bcol");
+        if (!resultsFolder.exists()) {
+            resultsFolder.mkdirs();
+        }
+        sendResultsToColumnarFile(resultColumns, objects, resultsFile);
+    }
+
+    /**
+     * Export all the columns of the Measurement table of these objects, including the derived ones such as the number
+     * of detections of each class or the densities. Without a JavaFX toolkit, e.g. in headless batch mode, only the
+     * object properties and the measurements are exported, see {@link MeasurementExtractor#getAllColumnNames}
+     *
+     * @param objects the pathObjects we want to get the measurements from
+     */
     static public void sendResultsToFile(ArrayList<PathObject> objects) {
-        ObservableMeasurementTableData resultColumns = getAllMeasurements(objects);
+        List<String> resultColumns;
+        if (hasFxToolkit())
+            resultColumns = getAllMeasurements(objects).getAllNames();
+        else
+            resultColumns = MeasurementExtractor.getAllColumnNames(QP.getCurrentImageData(), objects);
+
+        sendResultsToFile(new ArrayList<>(resultColumns), objects);
+    }
 
-        sendResultsToFile(new ArrayList<>(resultColumns.getAllNames()), objects);
+    /**
+     * The observable measurement table needs a running JavaFX toolkit, which headless QuPath does not start
+     */
+    private static boolean hasFxToolkit() {
+        try {
+            Platform.runLater(() -> {});
+            return true;
+        } catch (IllegalStateException | NoClassDefFoundError e) {
+            return false;
+        }
     }
 
     /**
@@ -134,55 +164,51 @@ public class Results {
     }
 
     /**
-     * Conveniently add a bunch of metadata to each entry in the project
+     * Conveniently add a bunch of metadata to each entry in the project. Every row whose 'Image Name' is contained in the
+     * name of an entry is added to it
      *
      * @param project The project to update
-     * @param csvFile the CSV file that will be opened by ImageJ's ResultsTable
+     * @param csvFile the CSV file with an 'Image Name' column
+     * @return the imported data, as a ResultsTable
      * @throws IOException in case the project cannot be refreshed
+     * @see #addMetadataToProject(Project, File, MetadataImporter.MatchMode, String)
      */
     public static ResultsTable addMetadataToProject(Project<BufferedImage> project, File csvFile) throws IOException {
-        // Open the file
-        ResultsTable metadata = ResultsTable.open(csvFile.getAbsolutePath());
-        metadata.show("Imported Data");
-        if (!metadata.columnExists("Image Name")) {
-            logger.error("No Column 'Image Name' in csv file {}. Make sure that the column exists and that it matches the name of the entries in your QuPath Project", csvFile.getName());
+        MetadataImporter importer;
+        try {
+            importer = new MetadataImporter(csvFile);
+        } catch (IOException e) {
+            logger.error(e.getLocalizedMessage());
             return null;
         }
-
-        logger.info("Available Columns: {}", metadata.getColumnHeadings());
-
-        List<ProjectImageEntry<BufferedImage>> images = project.getImageList();
-
-        images.forEach(image -> {
-            String name = image.getImageName();
-            logger.info("Processing {}", name);
-
-            // Check all metadata keys to add to this image
-            for (int i = 0; i < metadata.getCounter(); i++) {
-                String metadataImageName = metadata.getStringValue("Image Name", i);
-                if (name.contains(metadataImageName)) {
-                    // Append all columns
-                    for (int c = 0; c <= metadata.getLastColumn(); c++) {
-                        // Exclude columns without names or the Image Name Column
-                        if (!metadata.getColumnHeading(c).isEmpty() && !metadata.getColumnHeading(c).equals("Image Name")) {
-                            String key = metadata.getColumnHeading(c);
-                            String value = metadata.getStringValue(c, i);
-                            // If the value is empty, then do not add it
-                            if (!value.isEmpty())
-                                image.getMetadata().put(key, value);
-                        }
-                    }
-                }
+        importer.importInto(project, MetadataImporter.MatchMode.CONTAINS, null);
+
+        // Give back the imported data, like before
+        ResultsTable metadata = new ResultsTable();
+        List<String> columns = importer.getColumns();
+        for (int r = 0; r < importer.getRowCount(); r++) {
+            metadata.incrementCounter();
+            for (int c = 0; c < columns.size(); c++) {
+                if (!columns.get(c).isEmpty())
+                    metadata.addValue(columns.get(c), importer.getValue(r, c));
             }
-        });
-
-        try {
-            logger.info("Syncing project changes");
-            project.syncChanges();
-        } catch (IOException e) {
-            e.printStackTrace();
         }
-
+        metadata.show("Imported Data");
         return metadata;
     }
+
+    /**
+     * Add the columns of a CSV file as metadata of the project entries, using an index of the 'Image Name' column
+     *
+     * @param project The project to update
+     * @param csvFile the CSV file with an 'Image Name' column
+     * @param mode    how the 'Image Name' of each row is matched to the entry names
+     * @param pattern for {@link MetadataImporter.MatchMode#PATTERN}, a regular expression extracting the image name from
+     *                the entry name, using the group named 'key' or the first group. Ignored otherwise
+     * @return a report listing the unmatched entries, the ambiguous entries and the unused rows
+     * @throws IOException in case the CSV file cannot be read or the project cannot be refreshed
+     */
+    public static MetadataImporter.Report addMetadataToProject(Project<BufferedImage> project, File csvFile, MetadataImporter.MatchMode mode, String pattern) throws IOException {
+        return new MetadataImporter(csvFile).importInto(project, mode, pattern);
+    }
 }
@@ -0,0 +1,248 @@
+package qupath.ext.biop.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Append-only writer for results tables, compatible with the files written by ImageJ's ResultsTable.
+ * <p>
+ * Rows are appended directly at the end of the file instead of reopening and rewriting the whole table.
+ * When later rows bring new columns, they are added after the existing ones: the header is rewritten and the rows
+ * already in the file get empty cells for them, so the file is always a complete table. This replaces a separate
+ * schema file: the columns are only ever read from the header of the results file itself. The cost is that adding
+ * columns rewrites the whole file while other writers wait for the lock, which takes as long as the file is large.
+ * This is rare when exporting the same measurements for all the images of a project, but exporting different
+ * measurements for each image rewrites the file each time.
+ * <p>
+ * Appends are safe from several threads and several QuPath instances, as each one holds a lock on the results file.
+ */
+public class ResultsWriter {
+
+    final private static Logger logger = LoggerFactory.getLogger(ResultsWriter.class);
+
+    // FileLocks are per process, so threads of this JVM also need to wait for each other
+    private static final Map<Path, ReentrantLock> localLocks = new ConcurrentHashMap<>();
+
+    // The lock is taken far beyond the end of the file, so that it does not prevent writing on systems with mandatory locks
+    private static final long LOCK_POSITION = Long.MAX_VALUE - 1;
+
+    private final Path file;
+    private final char delimiter;
+
+    /**
+     * Create a writer for the given results file. The file is only created when the first rows are appended.
+     * Files ending in .csv are comma separated, all others are tab separated, like ImageJ does.
+     * @param resultsFile the results file
+     */
+    public ResultsWriter(File resultsFile) {
+        this.file = resultsFile.toPath().toAbsolutePath();
+        this.delimiter = resultsFile.getName().toLowerCase().endsWith(".csv") ? ',' : '\t';
+    }
+
+    /**
+     * @return the results file
+     */
+    public File getFile() {
+        return file.toFile();
+    }
+
+    /**
+     * Append rows at the end of the results file. Columns that are not in the file yet are added to it.
+     * @param columns the names of the columns, in the same order as the values of each row
+     * @param rows the rows to append. Values can be Numbers or Strings, null values are written as empty cells
+     * @return the number of rows that were appended
+     * @throws IOException if the file cannot be written
+     */
+    public int appendRows(List<String> columns, Iterable<Object[]> rows) throws IOException {
+        return withLock(file, channel -> {
+
+            // Another process may have changed the columns since we last looked, so read them again under the lock
+            List<String> schema = new ArrayList<>(readColumns(file.toFile()));
+            boolean isNewFile = schema.isEmpty();
+            int nSchema = schema.size();
+
+            // Where each of our columns goes in the file
+            int[] positions = new int[columns.size()];
+            for (int c = 0; c < columns.size(); c++) {
+                int idx = schema.indexOf(columns.get(c));
+                if (idx < 0) {
+                    idx = schema.size();
+                    schema.add(columns.get(c));
+                }
+                positions[c] = idx;
+            }
+
+            if (!isNewFile && schema.size() > nSchema) {
+                logger.info("New columns in {}: {}", file.getFileName(), schema.subList(nSchema, schema.size()));
+                addColumns(channel, schema, schema.size() - nSchema);
+            }
+
+            int nRows = 0;
+            channel.position(channel.size());
+            // The channel belongs to the lock, so the writer is flushed but not closed
+            Writer writer = new BufferedWriter(new OutputStreamWriter(Channels.newOutputStream(channel), StandardCharsets.UTF_8), 1 << 16);
+            if (isNewFile)
+                writeLine(writer, schema.toArray());
+
+            Object[] line = new Object[schema.size()];
+            for (Object[] row : rows) {
+                Arrays.fill(line, null);
+                for (int c = 0; c < positions.length && c < row.length; c++)
+                    line[positions[c]] = row[c];
+                writeLine(writer, line);
+                nRows++;
+            }
+            writer.flush();
+            return nRows;
+        });
+    }
+
+    /**
+     * @return all the columns of the results file
+     * @throws IOException if the file cannot be read
+     */
+    public List<String> getColumns() throws IOException {
+        return readColumns(file.toFile());
+    }
+
+    /**
+     * Rewrite the header with all the columns, and add empty cells for the new columns to the rows already written.
+     * The wider table is written to a temporary file first, and only copied over the results file once it is complete.
+     * If that copy fails, the temporary file is kept, as it then holds the only complete copy of the results.
+     */
+    private void addColumns(FileChannel channel, List<String> schema, int nNew) throws IOException {
+        Path temp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+        try {
+            channel.position(0);
+            // The channel belongs to the lock, so its reader is not closed
+            BufferedReader reader = new BufferedReader(Channels.newReader(channel, StandardCharsets.UTF_8), 1 << 16);
+            String padding = String.valueOf(delimiter).repeat(nNew);
+            try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                // Skip the old header
+                reader.readLine();
+                writeLine(writer, schema.toArray());
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    writer.write(line);
+                    writer.write(padding);
+                    writer.write('\n');
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // The results file was not modified yet
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+
+        try (FileChannel copy = FileChannel.open(temp, StandardOpenOption.READ)) {
+            long size = copy.size();
+            long position = 0;
+            while (position < size)
+                position += channel.transferFrom(copy, position, size - position);
+            channel.truncate(size);
+            channel.force(false);
+        } catch (IOException | RuntimeException e) {
+            logger.error("Could not add columns to {}, the complete results are kept in {}", file, temp);
+            throw e;
+        }
+        Files.delete(temp);
+    }
+
+    /**
+     * Run the action while holding both the lock of this JVM and the file lock for the given file
+     */
+    static <T> T withLock(Path file, LockedAction<T> action) throws IOException {
+        ReentrantLock localLock = localLocks.computeIfAbsent(file, f -> new ReentrantLock());
+        localLock.lock();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+             FileLock ignored = channel.lock(LOCK_POSITION, 1, false)) {
+            return action.run(channel);
+        } finally {
+            localLock.unlock();
+        }
+    }
+
+    interface LockedAction<T> {
+        /**
+         * @param channel the locked file, open for reading and writing
+         */
+        T run(FileChannel channel) throws IOException;
+    }
+
+    /**
+     * Read the columns of a results file
+     * @param resultsFile the results file
+     * @return the names of all the columns, or an empty list if the file does not exist yet
+     * @throws IOException if the file cannot be read
+     */
+    public static List<String> readColumns(File resultsFile) throws IOException {
+        Path path = resultsFile.toPath();
+        if (!Files.exists(path) || Files.size(path) == 0)
+            return Collections.emptyList();
+
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            String header = reader.readLine();
+            if (header == null)
+                return Collections.emptyList();
+            String delimiter = resultsFile.getName().toLowerCase().endsWith(".csv") ? "," : "\t";
+            List<String> columns = new ArrayList<>();
+            for (String column : header.split(delimiter, -1))
+                columns.add(unquote(column));
+            return columns;
+        }
+    }
+
+    private void writeLine(Writer writer, Object[] values) throws IOException {
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0)
+                writer.write(delimiter);
+            writer.write(format(values[i]));
+        }
+        writer.write('\n');
+    }
+
+    private String format(Object value) {
+        if (value == null)
+            return "";
+        if (value instanceof Number number) {
+            double d = number.doubleValue();
+            // Keep integers without decimals, like ImageJ does
+            if (d == Math.rint(d) && !Double.isInfinite(d) && Math.abs(d) < 1e15)
+                return Long.toString((long) d);
+            return Double.toString(d);
+        }
+        String s = value.toString().replace('\n', ' ').replace('\r', ' ');
+        if (delimiter == '\t')
+            return s.replace('\t', ' ');
+        if (s.indexOf(',') >= 0 || s.indexOf('"') >= 0)
+            return '"' + s.replace("\"", "\"\"") + '"';
+        return s;
+    }
+
+    private static String unquote(String s) {
+        if (s.length() >= 2 && s.startsWith("\"") && s.endsWith("\""))
+            return s.substring(1, s.length() - 1).replace("\"\"", "\"");
+        return s;
+    }
+}
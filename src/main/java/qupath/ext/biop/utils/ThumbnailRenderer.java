@@ -0,0 +1,174 @@
+package qupath.ext.biop.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.common.ThreadTools;
+import qupath.lib.display.ImageDisplay;
+import qupath.lib.images.ImageData;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.projects.ProjectImageEntry;
+import qupath.lib.regions.RegionRequest;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Renders project thumbnails off-screen, without creating a viewer.
+ * <p>
+ * The image is read once at about the size of the thumbnail, the channel colors and display ranges of the image are applied
+ * to it and the result is scaled down to the size of a project thumbnail. Nothing here touches JavaFX, so it can be
+ * used from any thread, and many entries can be rendered in parallel.
+ * <pre>
+ * def renderer = new ThumbnailRenderer()
+ * renderer.updateThumbnail(getProjectEntry(), getCurrentImageData())
+ * </pre>
+ */
+public class ThumbnailRenderer {
+
+    final private static Logger logger = LoggerFactory.getLogger(ThumbnailRenderer.class);
+
+    // Same size as the thumbnails QuPath creates when adding images to a project
+    private int maxWidth = 1000;
+    private int maxHeight = 600;
+
+    // The full resolution RGB buffer of each thread is kept for the next image of the same size
+    private final ThreadLocal<BufferedImage> buffers = new ThreadLocal<>();
+
+    /**
+     * Renderer for thumbnails that fit in 1000x600 pixels
+     */
+    public ThumbnailRenderer() {
+    }
+
+    /**
+     * Renderer for thumbnails of a given size
+     * @param maxWidth the maximum width of the thumbnails
+     * @param maxHeight the maximum height of the thumbnails
+     */
+    public ThumbnailRenderer(int maxWidth, int maxHeight) {
+        this.maxWidth = Math.max(1, maxWidth);
+        this.maxHeight = Math.max(1, maxHeight);
+    }
+
+    /**
+     * Render a thumbnail with the display settings saved in the image data
+     * @param imageData the image to render
+     * @return a new RGB thumbnail
+     * @throws Exception if the image cannot be read
+     */
+    public BufferedImage render(ImageData<BufferedImage> imageData) throws Exception {
+        return render(imageData, ImageDisplay.create(imageData));
+    }
+
+    /**
+     * Render a thumbnail with the given display settings, for example those of an open viewer
+     * @param imageData the image to render
+     * @param display the channel colors, ranges and selection to use
+     * @return a new RGB thumbnail
+     * @throws Exception if the image cannot be read
+     */
+    public BufferedImage render(ImageData<BufferedImage> imageData, ImageDisplay display) throws Exception {
+        ImageServer<BufferedImage> server = imageData.getServer();
+
+        // Read at the size of the thumbnail, the server picks the closest pyramid level. Images without a pyramid are
+        // then downsampled while they are read, instead of being read at full resolution
+        double downsample = Math.max(1.0, Math.max(
+                server.getWidth() / (double) maxWidth,
+                server.getHeight() / (double) maxHeight));
+
+        RegionRequest request = RegionRequest.createInstance(server.getPath(), downsample,
+                0, 0, server.getWidth(), server.getHeight(), server.nZSlices() / 2, 0);
+        BufferedImage raw = server.readRegion(request);
+
+        // Composite the channels in the buffer of this thread
+        BufferedImage rgb = getBuffer(raw.getWidth(), raw.getHeight());
+        rgb = display.applyTransforms(raw, rgb);
+        buffers.set(rgb);
+
+        // Scale down to the final size
+        double scale = Math.min(1.0, Math.min(maxWidth / (double) rgb.getWidth(), maxHeight / (double) rgb.getHeight()));
+        int width = Math.max(1, (int) Math.round(rgb.getWidth() * scale));
+        int height = Math.max(1, (int) Math.round(rgb.getHeight() * scale));
+
+        BufferedImage thumbnail = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g2d = thumbnail.createGraphics();
+        g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g2d.drawImage(rgb, 0, 0, width, height, null);
+        g2d.dispose();
+        return thumbnail;
+    }
+
+    private BufferedImage getBuffer(int width, int height) {
+        BufferedImage buffer = buffers.get();
+        if (buffer == null || buffer.getWidth() != width || buffer.getHeight() != height)
+            buffer = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        return buffer;
+    }
+
+    /**
+     * Render the thumbnail of an entry with the display settings saved in its image data and set it to the entry
+     * @param entry the entry to update
+     * @param imageData the image data of the entry
+     * @throws Exception if the image cannot be read or the thumbnail cannot be written
+     */
+    public void updateThumbnail(ProjectImageEntry<BufferedImage> entry, ImageData<BufferedImage> imageData) throws Exception {
+        entry.setThumbnail(render(imageData));
+    }
+
+    /**
+     * Render the thumbnail of an entry with the given display settings and set it to the entry
+     * @param entry the entry to update
+     * @param imageData the image data of the entry
+     * @param display the channel colors, ranges and selection to use
+     * @throws Exception if the image cannot be read or the thumbnail cannot be written
+     */
+    public void updateThumbnail(ProjectImageEntry<BufferedImage> entry, ImageData<BufferedImage> imageData, ImageDisplay display) throws Exception {
+        entry.setThumbnail(render(imageData, display));
+    }
+
+    /**
+     * Update the thumbnails of many entries in parallel, from the display settings saved in each entry
+     * @param entries the entries to update
+     * @param nThreads the number of entries rendered at the same time
+     * @return the number of thumbnails that were updated
+     */
+    public int updateThumbnails(List<ProjectImageEntry<BufferedImage>> entries, int nThreads) {
+        AtomicInteger nUpdated = new AtomicInteger(0);
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(nThreads, entries.size())),
+                ThreadTools.createThreadFactory("biop-thumbnails-", true));
+        try {
+            List<Future<?>> tasks = new ArrayList<>(entries.size());
+            for (ProjectImageEntry<BufferedImage> entry : entries) {
+                tasks.add(pool.submit(() -> {
+                    try {
+                        ImageData<BufferedImage> imageData = entry.readImageData();
+                        try {
+                            updateThumbnail(entry, imageData);
+                            nUpdated.incrementAndGet();
+                        } finally {
+                            imageData.getServer().close();
+                        }
+                    } catch (Exception e) {
+                        logger.error("Could not update thumbnail of {}: {}", entry.getImageName(), e.getMessage(), e);
+                    }
+                }));
+            }
+            for (Future<?> task : tasks)
+                task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            logger.error(e.getMessage(), e);
+        } finally {
+            pool.shutdownNow();
+        }
+        return nUpdated.get();
+    }
+}
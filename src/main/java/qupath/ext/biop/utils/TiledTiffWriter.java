@@ -0,0 +1,343 @@
+package qupath.ext.biop.utils;
+
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.images.servers.PixelCalibration;
+import qupath.lib.regions.RegionRequest;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.plugins.tiff.BaselineTIFFTagSet;
+import javax.imageio.plugins.tiff.TIFFDirectory;
+import javax.imageio.plugins.tiff.TIFFField;
+import javax.imageio.plugins.tiff.TIFFTag;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.Vector;
+
+/**
+ * Writes a region of an image as a tiled TIFF, reading it from the server one tile at a time.
+ * <p>
+ * The region is wrapped in a {@link RenderedImage} whose tiles are only read when the TIFF writer asks for them, so
+ * only a few tiles are in memory whatever the size of the region. Optionally, lower resolutions are appended as
+ * reduced resolution pages, each half the size of the previous one, until the image fits in a single tile.
+ * Tiles are compressed with Deflate. The pixel size of calibrated images is written as the TIFF resolution, which
+ * ImageJ reads back, but there are no channel names nor OME metadata.
+ */
+public class TiledTiffWriter {
+
+    private final int tileSize;
+    private boolean pyramidal = true;
+
+    /**
+     * @param tileSize the width and height of the tiles, rounded up to a multiple of 16 as required by TIFF
+     */
+    public TiledTiffWriter(int tileSize) {
+        this.tileSize = Math.max(16, (tileSize + 15) / 16 * 16);
+    }
+
+    /**
+     * @param pyramidal true to also write lower resolutions. Default is true
+     */
+    public void setPyramidal(boolean pyramidal) {
+        this.pyramidal = pyramidal;
+    }
+
+    /**
+     * Write a region of an image
+     * @param server the image
+     * @param request the region and its downsample
+     * @param file the TIFF file
+     * @throws IOException if the region cannot be read or written
+     */
+    public void write(ImageServer<BufferedImage> server, RegionRequest request, File file) throws IOException {
+        PixelCalibration calibration = server.getPixelCalibration();
+        double pixelSizeMicrons = calibration.hasPixelSizeMicrons() ? calibration.getAveragedPixelSizeMicrons() : Double.NaN;
+        write((x, y, width, height, downsample) -> server.readRegion(RegionRequest.createInstance(server.getPath(), downsample,
+                x, y, width, height, request.getZ(), request.getT())), request.getX(), request.getY(), request.getWidth(), request.getHeight(),
+                request.getDownsample(), pixelSizeMicrons, file);
+    }
+
+    /**
+     * Write a region read by any reader, in full resolution coordinates, with the full resolution pixel size or NaN
+     */
+    void write(RegionReader reader, int x, int y, int width, int height, double downsample, double pixelSizeMicrons, File file) throws IOException {
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("tiff");
+        if (!writers.hasNext())
+            throw new IOException("No TIFF writer available");
+        ImageWriter writer = writers.next();
+        if (file.exists() && !file.delete())
+            throw new IOException("Cannot overwrite " + file);
+        try (ImageOutputStream stream = ImageIO.createImageOutputStream(file)) {
+            writer.setOutput(stream);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setTilingMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setTiling(tileSize, tileSize, 0, 0);
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionType("Deflate");
+
+            writer.prepareWriteSequence(null);
+            double levelDownsample = downsample;
+            boolean first = true;
+            while (true) {
+                RegionImage image = new RegionImage(reader, x, y, width, height, levelDownsample, tileSize);
+                TIFFDirectory directory = TIFFDirectory.createFromMetadata(
+                        writer.getDefaultImageMetadata(new ImageTypeSpecifier(image.getColorModel(), image.getSampleModel()), param));
+                BaselineTIFFTagSet tags = BaselineTIFFTagSet.getInstance();
+                // Mark the lower resolutions, so that readers do not take them for other images
+                if (!first)
+                    directory.addTIFFField(new TIFFField(tags.getTag(BaselineTIFFTagSet.TAG_NEW_SUBFILE_TYPE),
+                            TIFFTag.TIFF_LONG, 1, new long[]{BaselineTIFFTagSet.NEW_SUBFILE_TYPE_REDUCED_RESOLUTION}));
+                if (pixelSizeMicrons > 0) {
+                    // Pixels per centimeter, as a rational with 3 decimals
+                    long pixelsPerCm = Math.round(10_000 * 1000 / (pixelSizeMicrons * levelDownsample));
+                    long[][] resolution = {{pixelsPerCm, 1000}};
+                    directory.addTIFFField(new TIFFField(tags.getTag(BaselineTIFFTagSet.TAG_X_RESOLUTION), TIFFTag.TIFF_RATIONAL, 1, resolution));
+                    directory.addTIFFField(new TIFFField(tags.getTag(BaselineTIFFTagSet.TAG_Y_RESOLUTION), TIFFTag.TIFF_RATIONAL, 1, resolution));
+                    directory.addTIFFField(new TIFFField(tags.getTag(BaselineTIFFTagSet.TAG_RESOLUTION_UNIT), TIFFTag.TIFF_SHORT, 1,
+                            new char[]{(char) BaselineTIFFTagSet.RESOLUTION_UNIT_CENTIMETER}));
+                }
+                writer.writeToSequence(new IIOImage(image, null, directory.getAsMetadata()), param);
+                first = false;
+                if (!pyramidal || Math.max(image.getWidth(), image.getHeight()) <= tileSize)
+                    break;
+                levelDownsample *= 2;
+            }
+            writer.endWriteSequence();
+        } catch (UncheckedIOException e) {
+            // A tile could not be read
+            throw e.getCause();
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    /**
+     * Reads a region at a downsample, in full resolution coordinates
+     */
+    @FunctionalInterface
+    interface RegionReader {
+        BufferedImage read(int x, int y, int width, int height, double downsample) throws IOException;
+    }
+
+    /**
+     * A region whose tiles are read on demand. Requests that do not match a single tile are assembled from the tiles.
+     */
+    private static class RegionImage implements RenderedImage {
+
+        private final RegionReader reader;
+        private final int x, y;
+        private final int fullWidth, fullHeight;
+        private final double downsample;
+        private final int width, height;
+        private final int tileSize;
+        private final ColorModel colorModel;
+        private final SampleModel sampleModel;
+        // Layout of the tiles as given by the reader
+        private final SampleModel sourceSampleModel;
+        // The writer asks for each tile in several parts, so the last tile read is kept
+        private int lastTileX = -1, lastTileY = -1;
+        private Raster lastTile;
+
+        RegionImage(RegionReader reader, int x, int y, int fullWidth, int fullHeight, double downsample, int tileSize) throws IOException {
+            this.reader = reader;
+            this.x = x;
+            this.y = y;
+            this.fullWidth = fullWidth;
+            this.fullHeight = fullHeight;
+            this.downsample = downsample;
+            // Same size as the server gives for the whole region
+            this.width = (int) Math.max(1, Math.round(fullWidth / downsample));
+            this.height = (int) Math.max(1, Math.round(fullHeight / downsample));
+            this.tileSize = tileSize;
+            // The type of the image comes from a small read
+            BufferedImage first = readTile(0, 0);
+            this.colorModel = first.getColorModel();
+            this.sourceSampleModel = first.getSampleModel();
+            this.lastTile = toTileRaster(first, 0, 0);
+            this.lastTileX = 0;
+            this.lastTileY = 0;
+            this.sampleModel = sourceSampleModel.createCompatibleSampleModel(tileSize, tileSize);
+        }
+
+        private WritableRaster createRaster(int x, int y, int w, int h) {
+            return Raster.createWritableRaster(sourceSampleModel.createCompatibleSampleModel(w, h), new Point(x, y));
+        }
+
+        private BufferedImage readTile(int tileX, int tileY) throws IOException {
+            int px = tileX * tileSize;
+            int py = tileY * tileSize;
+            int w = Math.min(tileSize, width - px);
+            int h = Math.min(tileSize, height - py);
+            // Full resolution bounds of the tile, clipped to the region
+            int x0 = x + (int) Math.round(px * downsample);
+            int y0 = y + (int) Math.round(py * downsample);
+            int x1 = Math.min(x + fullWidth, x + (int) Math.round((px + w) * downsample));
+            int y1 = Math.min(y + fullHeight, y + (int) Math.round((py + h) * downsample));
+            return reader.read(x0, y0, Math.max(1, x1 - x0), Math.max(1, y1 - y0), downsample);
+        }
+
+        @Override
+        public synchronized Raster getTile(int tileX, int tileY) {
+            if (tileX != lastTileX || tileY != lastTileY) {
+                try {
+                    lastTile = toTileRaster(readTile(tileX, tileY), tileX, tileY);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                lastTileX = tileX;
+                lastTileY = tileY;
+            }
+            return lastTile;
+        }
+
+        // Rounding can make a tile one pixel off, so it is then copied into a raster of the exact size
+        private Raster toTileRaster(BufferedImage tile, int tileX, int tileY) {
+            int px = tileX * tileSize;
+            int py = tileY * tileSize;
+            int w = Math.min(tileSize, width - px);
+            int h = Math.min(tileSize, height - py);
+            Raster source = tile.getRaster();
+            if (source.getWidth() == w && source.getHeight() == h)
+                return source.createTranslatedChild(px, py);
+            WritableRaster raster = createRaster(0, 0, w, h);
+            int cw = Math.min(w, source.getWidth());
+            int ch = Math.min(h, source.getHeight());
+            raster.setRect(source.createChild(source.getMinX(), source.getMinY(), cw, ch, 0, 0, null));
+            return raster.createTranslatedChild(px, py);
+        }
+
+        @Override
+        public Raster getData(Rectangle rect) {
+            Rectangle bounds = rect.intersection(new Rectangle(0, 0, width, height));
+            int tx0 = bounds.x / tileSize, ty0 = bounds.y / tileSize;
+            int tx1 = (bounds.x + bounds.width - 1) / tileSize, ty1 = (bounds.y + bounds.height - 1) / tileSize;
+            if (tx0 == tx1 && ty0 == ty1) {
+                Raster tile = getTile(tx0, ty0);
+                if (tile.getBounds().equals(bounds))
+                    return tile;
+                return tile.createChild(bounds.x, bounds.y, bounds.width, bounds.height, bounds.x, bounds.y, null);
+            }
+            WritableRaster raster = createRaster(bounds.x, bounds.y, bounds.width, bounds.height);
+            for (int ty = ty0; ty <= ty1; ty++) {
+                for (int tx = tx0; tx <= tx1; tx++) {
+                    Raster tile = getTile(tx, ty);
+                    Rectangle overlap = tile.getBounds().intersection(bounds);
+                    raster.setRect(tile.createChild(overlap.x, overlap.y, overlap.width, overlap.height, overlap.x, overlap.y, null));
+                }
+            }
+            return raster;
+        }
+
+        @Override
+        public Raster getData() {
+            return getData(new Rectangle(0, 0, width, height));
+        }
+
+        @Override
+        public WritableRaster copyData(WritableRaster raster) {
+            if (raster == null)
+                raster = createRaster(0, 0, width, height);
+            raster.setRect(getData(raster.getBounds()));
+            return raster;
+        }
+
+        @Override
+        public Vector<RenderedImage> getSources() {
+            return null;
+        }
+
+        @Override
+        public Object getProperty(String name) {
+            return java.awt.Image.UndefinedProperty;
+        }
+
+        @Override
+        public String[] getPropertyNames() {
+            return null;
+        }
+
+        @Override
+        public ColorModel getColorModel() {
+            return colorModel;
+        }
+
+        @Override
+        public SampleModel getSampleModel() {
+            return sampleModel;
+        }
+
+        @Override
+        public int getWidth() {
+            return width;
+        }
+
+        @Override
+        public int getHeight() {
+            return height;
+        }
+
+        @Override
+        public int getMinX() {
+            return 0;
+        }
+
+        @Override
+        public int getMinY() {
+            return 0;
+        }
+
+        @Override
+        public int getNumXTiles() {
+            return (width + tileSize - 1) / tileSize;
+        }
+
+        @Override
+        public int getNumYTiles() {
+            return (height + tileSize - 1) / tileSize;
+        }
+
+        @Override
+        public int getMinTileX() {
+            return 0;
+        }
+
+        @Override
+        public int getMinTileY() {
+            return 0;
+        }
+
+        @Override
+        public int getTileWidth() {
+            return tileSize;
+        }
+
+        @Override
+        public int getTileHeight() {
+            return tileSize;
+        }
+
+        @Override
+        public int getTileGridXOffset() {
+            return 0;
+        }
+
+        @Override
+        public int getTileGridYOffset() {
+            return 0;
+        }
+    }
+}
@@ -7,18 +7,28 @@
  * Date: 2022.11.03
  */
 
-import qupath.lib.classifiers.object.ObjectClassifiers
 
 def pathObjects = getDetectionObjects() // or getCellObjects()
+def useWholeProject = false // true = the thresholds are computed from the detections of all the images of the project
+def applyToWholeProject = false // true = the other images of the project are also classified and saved
 
-def madBuilders = [ new MADClassifierBuilder( measurement: "CY3: Mean", pathClass: "CY3", k: 3 ),
-                    new MADClassifierBuilder( measurement: "CY5: Mean", pathClass: "CY5", k: 3 ) ]
+def madBuilders = [ new MADClassifierBuilder( "CY3: Mean", "CY3", 3 ),
+                    new MADClassifierBuilder( "CY5: Mean", "CY5", 3 ) ]
                         
 
 // Start of script 
 
+// Gather the measurements, either from this image or from all images
+def sample = new MeasurementSample( madBuilders.collect{ it.measurement } )
+if ( useWholeProject ) {
+    sample.setParallelism( Runtime.getRuntime().availableProcessors() )
+    sample.addEntries( getProject().getImageList() )
+} else {
+    sample.add( pathObjects )
+}
+
 // Get the single classifiers 
-def singleClassifiers = madBuilders.collect{ it.getClassifier( pathObjects ) }
+def singleClassifiers = madBuilders.collect{ it.build( sample ) }
 
 // Build a composite classifier out of this
 def compositeClassifier = ObjectClassifiers.createCompositeClassifier( singleClassifiers )
@@ -28,6 +38,14 @@ def imageData = getCurrentImageData()
 // Here the magic happens, run the classification
 compositeClassifier.classifyObjects( imageData, pathObjects, true )
 
+// Classify and save the other images, the current one is saved by QuPath. A table counts the classes of each image
+if ( applyToWholeProject ) {
+    def batch = new ThresholdClassifierBatch( madBuilders.collect{ it.getRule() } )
+    batch.setParallelism( Runtime.getRuntime().availableProcessors() )
+    batch.run( getProject().getImageList().findAll{ it != getProjectEntry() } )
+    batch.showSummary()
+}
+
 
 // Save all the classifiers 
 try {
@@ -35,8 +53,7 @@ try {
     
     // Single Classifiers
     [ madBuilders, singleClassifiers ].transpose().each{ builder, classifier ->
-        def name = GeneralTools.stripInvalidFilenameChars( builder.pathClass + " - MAD k=${builder.k}" )
-        classifierManager.put( name, classifier )
+        classifierManager.put( builder.getName(), classifier )
     }
     
     // Save the composite classifier
@@ -53,53 +70,9 @@ fireHierarchyUpdate()
 println "MAD Classification done"
 
 
-// MAD Classifier class 
-class MADClassifierBuilder {
-
-    def measurement = ""
-    def pathClass = ""
-    def k = 3 // Default is 3x
-    def threshold // Store the threshold if someone wants to read it
-    
-    def getClassifier( def pathObjects ) {
-    
-        def posClass = getPathClass( this.pathClass + "+" )
-        def negClass = getPathClass( this.pathClass + "-" )
-        
-        // Determine the thresholds based on the MAD and k
-        def allMeasurements = pathObjects.collect{ p -> p.getMeasurementList().get( measurement ) }.findAll{ m -> !Double.isNaN( m ) } as double[]
-        def median = getMedian( allMeasurements )
-
-        // Subtract median & get absolute value
-        def absMedianSubtracted = allMeasurements.collect{ d -> Math.abs( d - median ) } as double[]
-
-        // Compute median absolute deviation & convert to standard deviation approximation
-        double medianAbsoluteDeviation = getMedian( absMedianSubtracted )
-        double sigma = medianAbsoluteDeviation / 0.6745
-
-        // We can now determine the threshold
-        threshold = median + k * sigma
-        
-        logger.info("New MAD classifier '$pathClass' based on '$measurement' and k = $k : threshold = $threshold")
-    
-        return new ObjectClassifiers.ClassifyByMeasurementBuilder( measurement )
-                                        .threshold( threshold )
-					.aboveEquals( posClass )
-					.below( negClass )
-					.build()
-    }
-    
-    /**
-     * Get median value from array (this will sort the array!)
-     */
-    double getMedian(double[] vals) {
-        if (vals.length == 0)
-            return Double.NaN
-        Arrays.sort(vals)
-        if (vals.length % 2 == 1)
-            return vals[(int)(vals.length / 2)]
-        else
-            return (vals[(int)(vals.length / 2)-1] + vals[(int)(vals.length / 2)]) / 2.0
-    }
-}
 
+// imports
+import qupath.ext.biop.ml.MADClassifierBuilder
+import qupath.ext.biop.ml.MeasurementSample
+import qupath.ext.biop.ml.ThresholdClassifierBatch
+import qupath.lib.classifiers.object.ObjectClassifiers
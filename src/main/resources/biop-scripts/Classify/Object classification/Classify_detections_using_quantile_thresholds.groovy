@@ -12,15 +12,26 @@
 
 
 def pathObjects = getDetectionObjects() // or getCellObjects()
+def useWholeProject = false // true = the thresholds are computed from the detections of all the images of the project
+def applyToWholeProject = false // true = the other images of the project are also classified and saved
 
-def quantileBuilders = [ new QuantileClassifierBuilder( measurement: "CY3: Mean", pathClass: "CY3", quantile: 0.2, k: 3 ),
-                         new QuantileClassifierBuilder( measurement: "CY5: Mean", pathClass: "CY5", quantile: 0.3, k: 3 ) ]
+def quantileBuilders = [ new QuantileClassifierBuilder( "CY3: Mean", "CY3", 0.2, 3 ),
+                         new QuantileClassifierBuilder( "CY5: Mean", "CY5", 0.3, 3 ) ]
                         
 
 // Start of script 
 
+// Gather the measurements, either from this image or from all images
+def sample = new MeasurementSample( quantileBuilders.collect{ it.measurement } )
+if ( useWholeProject ) {
+    sample.setParallelism( Runtime.getRuntime().availableProcessors() )
+    sample.addEntries( getProject().getImageList() )
+} else {
+    sample.add( pathObjects )
+}
+
 // Get the single classifiers 
-def singleClassifiers = quantileBuilders.collect{ it.getClassifier( pathObjects ) }
+def singleClassifiers = quantileBuilders.collect{ it.build( sample ) }
 
 // Build a composite classifier out of this
 def compositeClassifier = ObjectClassifiers.createCompositeClassifier( singleClassifiers )
@@ -30,6 +41,14 @@ def imageData = getCurrentImageData()
 // Here the magic happens, run the classification
 compositeClassifier.classifyObjects( imageData, pathObjects, true )
 
+// Classify and save the other images, the current one is saved by QuPath. A table counts the classes of each image
+if ( applyToWholeProject ) {
+    def batch = new ThresholdClassifierBatch( quantileBuilders.collect{ it.getRule() } )
+    batch.setParallelism( Runtime.getRuntime().availableProcessors() )
+    batch.run( getProject().getImageList().findAll{ it != getProjectEntry() } )
+    batch.showSummary()
+}
+
 
 // Save all the classifiers 
 try {
@@ -37,8 +56,7 @@ try {
     
     // Single Classifiers
     [ quantileBuilders, singleClassifiers ].transpose().each{ builder, classifier ->
-        def name = GeneralTools.stripInvalidFilenameChars( builder.pathClass + " - Quantile q=${builder.quantile} k=${builder.k}" )
-        classifierManager.put( name, classifier )
+        classifierManager.put( builder.getName(), classifier )
     }
     
     // Save the composite classifier
@@ -55,57 +73,8 @@ fireHierarchyUpdate()
 
 println "Quantile Classification done"
 
-// Quantile Classifier class 
-class QuantileClassifierBuilder {
-
-    def measurement = ""
-    def pathClass = ""
-    def quantile = 0.3
-    def k = 3 // Default is 3x
-    def threshold // Store the threshold if someone wants to read it
-    
-    def getClassifier( def pathObjects ) {
-    
-        def posClass = getPathClass( this.pathClass + "+" )
-        def negClass = getPathClass( this.pathClass + "-" )
-        
-        // Determine the thresholds based on the MAD and k
-        def allMeasurements = pathObjects.collect{ p -> p.getMeasurementList().get( measurement ) }.findAll{ m -> !Double.isNaN( m ) }
-        
-        def threshold = quantileBasedThr( allMeasurements, quantile, k )
-        
-        logger.info( "New Quantile Classifier $pathClass' based on '$measurement', quantile = $quantile, k = $k : threshold = $threshold" )
-    
-        return new ObjectClassifiers.ClassifyByMeasurementBuilder( measurement )
-                                        .threshold( threshold )
-					.aboveEquals( posClass )
-					.below( negClass )
-					.build()
-    }
-    
-    double quantileBasedThr( def measurements, def quantile, def multiplier ) {
-
-        // Sort by mean intensity in the channel of interst
-        def sorted = measurements.sort()
-        
-        def n = sorted.size()
-        
-        // Remove 5% smallest intensities
-        sorted =sorted.drop( ( n * 0.05 ) as int )
-        
-        // Keep x percent of what is left
-        def quant = sorted.take( ( n * quantile ) as int )
-        
-        // Get baseline average
-        def baseline = quant.sum{ it } / quant.size()
-        
-        // new threshold
-        threshold = multiplier * baseline
-        
-        return threshold
-    }      
-}
-
-
 // imports
+import qupath.ext.biop.ml.MeasurementSample
+import qupath.ext.biop.ml.QuantileClassifierBuilder
+import qupath.ext.biop.ml.ThresholdClassifierBatch
 import qupath.lib.classifiers.object.ObjectClassifiers
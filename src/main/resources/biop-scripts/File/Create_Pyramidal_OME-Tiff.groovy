@@ -0,0 +1,48 @@
+/*
+ * Convert image files to pyramidal OME-Tiffs within QuPath, using the writer of its Bio-Formats extension
+ * This script does not use nor modify an open project
+ * The goal of this script is to create a new folder 'converted' in the same folder as the original images
+ * These images can then be imported into a new QuPath project if desired. 
+ *
+ * Several files are converted at the same time, sharing the threads and memory given below.
+ * Files that were already converted and have not changed since are skipped, so the script can be run again
+ * on a folder that received new images.
+ * 
+ * Unlike the scripts calling the QuPath console, this works on any platform, and headless with
+ * QuPath script -s Create_Pyramidal_OME-Tiff.groovy if folderPath is set
+ *
+ * @date 2026.10.16
+ * Last tested on QuPath-0.7.0
+ */
+
+// What is the extension of images being converted? For filtering the input folder
+def imageExtension = "ndpi"
+
+// Folder of the images to convert, or null to select it
+def folderPath = null
+
+// How many files are converted at the same time, and how many threads they share
+def nFiles = 2
+def nThreads = Runtime.getRuntime().availableProcessors()
+
+// Start of Script 
+
+def folder = folderPath != null ? new File( folderPath ) : FileChoosers.promptForDirectory( "Select folder", null )
+if ( folder == null ) return
+
+// Create a 'converted' folder to store the new ome-tiff images
+def convertedFolder = new File( folder.getParent(), "converted" )
+
+def converter = new OMETiffConverter( convertedFolder )
+converter.setParallelism( nFiles )
+converter.setThreadBudget( nThreads )
+converter.setProgressListener{ done, total, result -> println "$done/$total: ${result.input().getName()} ${result.status()}" }
+
+converter.convertFolder( folder, imageExtension )
+converter.saveSummary( convertedFolder.getAbsolutePath() )
+
+println "Script Done"
+
+// imports
+import qupath.ext.biop.utils.OMETiffConverter
+import qupath.fx.dialogs.FileChoosers
@@ -3,16 +3,20 @@
  * https://qupath.readthedocs.io/en/stable/docs/advanced/exporting_images.html
  * for more examples
  *
+ * Annotations are exported several at a time. Annotations larger than a tile are written tile by tile
+ * as pyramidal OME-TIFF files, so that they do not need to fit in memory. They keep their pixel size,
+ * channel names and colors, like the smaller ones. If the Bio-Formats extension is missing, they are
+ * written as plain pyramidal TIFF files with only the pixel size.
+ *
  * @author Olivier Burri
  * Date: 2020.10.29
  * Last tested on QuPath-0.7.0
  */
- 
-import ch.epfl.biop.qupath.utils.*
-import ij.IJ
 
 ////// Parameters for export //////
 def downsample = 1
+def tileSize = 1024
+def nThreads = 4
 
 ////// Start of Script //////
 
@@ -25,12 +29,11 @@ def server = getCurrentServer()
 def imageName = getProjectEntry().getImageName()
 imageName = GeneralTools.stripInvalidFilenameChars( imageName )
 
-annotations.eachWithIndex { selected, idx ->
-    // Write the region of the image corresponding to the currently-selected object
-    def requestROI = RegionRequest.createInstance( server.getPath(), downsample, selected.getROI() )
-    
-    def fileName = new File( filePath, imageName+"_"+idx + ".tif" )
-    
-    writeImageRegion( server, requestROI, fileName.getAbsolutePath() )
-    logger.info( "Region saved to {}", fileName )
-}
\ No newline at end of file
+def exporter = new RegionExporter( downsample )
+exporter.setTileSize( tileSize )
+exporter.setParallelism( nThreads )
+
+def nExported = exporter.exportImages( server, annotations, new File( filePath ), imageName )
+logger.info( "{} of {} regions saved to {}", nExported, annotations.size(), filePath )
+
+import qupath.ext.biop.utils.RegionExporter
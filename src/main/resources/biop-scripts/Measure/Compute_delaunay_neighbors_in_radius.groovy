@@ -31,17 +31,13 @@ if(detections.isEmpty()) {
    return
 }
 
-def px = getCurrentServer().getPixelCalibration().getAveragedPixelSize()
-def subDiv = DelaunayTools.createFromCentroids(detections, true)
-
-detections.each{
-    def neighbors = subDiv.getFilteredNeighbors(it, DelaunayTools.centroidDistancePredicate(radius / px, true))
-    it.measurements.put("Delaunay NN in radius "+radius+" "+GeneralTools.micrometerSymbol(), neighbors.size())    
-}
+// The triangulation is kept with the image and reused until detections change
+def graph = DelaunayGraph.getForDetections(getCurrentImageData())
+graph.addNeighborCounts(radius)
 
 
 /**********************
  * IMPORTS
  *********************/
 
-import qupath.lib.analysis.DelaunayTools
+import qupath.ext.biop.spatial.DelaunayGraph
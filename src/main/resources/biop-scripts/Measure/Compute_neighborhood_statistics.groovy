@@ -0,0 +1,55 @@
+/**
+ * This script counts the neighbors of each detection within several radii,
+ * optionally for each class of neighbors, and the mean distance to these neighbors.
+ * All radii and classes are computed at once.
+ *
+ * Last tested on QuPath-0.7.0
+ */
+
+
+/**********************
+ * VARIABLES TO MODIFY
+ *********************/
+
+
+def radii = [10, 20, 50, 100] as double[] // in um
+def perClass = true // count the neighbors of each class
+def meanDistances = true // compute the mean distance to the neighbors
+def useTiles = false // process very large images tile by tile, with the same results
+def tileSize = 1000 // in um, when using tiles
+
+
+/***********************
+ * BEGINNING OF THE SCRIPT
+ ***********************/
+
+
+def detections = getDetectionObjects()
+
+if(detections.isEmpty()) {
+   Logger.warn("No detections on the current image ; nothing to do")
+   return
+}
+
+def stats = new NeighborhoodStatistics(radii)
+stats.setClassAware(perClass)
+stats.setMeanDistances(meanDistances)
+
+long startTime = System.currentTimeMillis()
+if (useTiles) {
+    def tiled = new TiledNeighborhoods(stats)
+    tiled.setTileSize(tileSize)
+    tiled.run(getCurrentImageData())
+} else {
+    stats.run(getCurrentImageData(), detections)
+}
+println("Neighborhood statistics of " + detections.size() + " detections computed in " + (System.currentTimeMillis() - startTime) + " ms")
+
+
+/**********************
+ * IMPORTS
+ *********************/
+
+
+import qupath.ext.biop.spatial.NeighborhoodStatistics
+import qupath.ext.biop.spatial.TiledNeighborhoods
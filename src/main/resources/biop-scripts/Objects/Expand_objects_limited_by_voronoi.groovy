@@ -10,7 +10,7 @@
  * Last tested on QuPath-0.7.0
  */
  
-import qupath.lib.analysis.DelaunayTools
+import qupath.ext.biop.spatial.DelaunayGraph
 
 def enlargeByPx = 200
 
@@ -21,27 +21,16 @@ def server = getCurrentServer()
  // Get the bounds of the image to limit the voronoi cells (Or something else)
 def imageBounds = GeometryTools.createRectangle( 0, 0, server.getWidth(), server.getHeight() )
 
-// Make a voronoi diagram of the selected objects
-def regions = getAnnotationObjects()
+// Make a voronoi diagram of the annotations, kept with the image and reused until annotations change
+def graph = DelaunayGraph.getForAnnotations(getCurrentImageData())
 
-// This will build our voronoi cells that will serve to limit the growth of the regions
-def voronois = DelaunayTools.newBuilder( regions ).build().getVoronoiROIs( imageBounds )
+// Each ring around an annotation is clipped by its voronoi cell in case it has neighbors, all annotations in parallel
+// The resulting detections have the same class as their annotation
+def expanded = graph.expandWithinVoronoi(enlargeByPx, imageBounds)
 
-// voronois is a map that contains the annotation as a key and its corresponding voronoi cell as a value
-voronois.each{ object, bounds ->
-    def enlargedGeometry = object.getROI().getGeometry().buffer( enlargeByPx )
-
-    // Make the difference between the larger and smaller ones to get the ring
-    def ringGeometry = enlargedGeometry.difference( object.getROI().getGeometry() )
-           
-    // Finally use the voronoi cell to clip the ring in case it has neighbord
-    def intersectedGeometry = ringGeometry.intersection( bounds.getGeometry() )
-        
-    // Create the final detection that will be added to the image, and let it have the same class as the parent
-    def enlarged = PathObjects.createDetectionObject( GeometryTools.geometryToROI( intersectedGeometry, null ), object.getPathClass() )
-
-    // Add as a child of the original, even tough it is larger.
+// Add as a child of the original, even tough it is larger.
+expanded.each{ object, enlarged ->
     object.addChildObject( enlarged )
 }
 
-fireHierarchyUpdate()   
\ No newline at end of file
+fireHierarchyUpdate()
@@ -53,73 +53,17 @@ if (annotations.isEmpty()) {
     return
 }
 
-// ------------------------------------------------------------
-// PREPARE GEOMETRIES
-// ------------------------------------------------------------
-println "Preparing geometries..."
-def geomMap = [:]
-def expandedAnnotations = []
-annotations.eachWithIndex { ann, idx ->
-    geomMap[ann] = GeometryTools.roiToGeometry(ann.getROI())
-    expandedAnnotations[idx] = ann 
-    ann.setName("Annotation "+ idx)
-}
-
-// Union of ALL original geometries (used as collision mask)
-Geometry allOriginal = geomMap.values().inject(null) { acc, g ->
-    acc == null ? g : acc.union(g)
-}
-
 // ------------------------------------------------------------
 // EXPAND EACH ANNOTATION
 // ------------------------------------------------------------
+// Annotations grow step by step, the first ones in the list taking contested areas first.
+// Only annotations close enough to meet are compared, and the others grow in parallel
 println "Expanding annotations..."
-for(int step = expensionStep; step <= expansion_um ; step+=expensionStep){
-    for(int i = 0; i < annotations.size(); i++){
-        def ann = annotations.get(i)
-        try{
-            Geometry baseGeom = geomMap[ann]
-            Geometry expandedGeom = GeometryTools.roiToGeometry(expandedAnnotations[i].getROI())
-
-            // Smooth outward buffer
-            Geometry expanded = baseGeom.buffer(
-                    step / pixelSize,
-                    8,
-                    BufferParameters.CAP_ROUND
-            )
-        
-            // Keep only the outward ring
-            Geometry outwardRing = expanded.difference(expandedGeom)
-        
-            // Block expansion into other annotations
-            Geometry blocked = outwardRing.difference(
-                    allOriginal.difference(expandedGeom)
-            )
-        
-            // Final geometry
-            Geometry finalGeom = expandedGeom.union(blocked)
-            
-            // update the original union shape
-            allOriginal = allOriginal.union(finalGeom)
-        
-            if (finalGeom.isEmpty()) {
-                println "Skipping empty geometry for annotation"
-                return
-            }
-        
-            // Convert geometry back to ROI 
-            def newROI = GeometryTools.geometryToROI(
-                    finalGeom,
-                    ann.getROI().getImagePlane()
-            )
-            expandedAnnotations[i] = PathObjects.createAnnotationObject(newROI)
-        
-        }catch (Exception e) {
-            Logger.error("The annotation "+ann.getName()+": ID "+ann.getID()+" cannot be expanded")
-            Logger.error(e.toString())
-        }
-    }
+annotations.eachWithIndex { ann, idx ->
+    ann.setName("Annotation "+ idx)
 }
+def expansion = new TerritoryExpansion(expansion_um / pixelSize, expensionStep / pixelSize)
+def expandedAnnotations = expansion.expand(annotations).collect{ PathObjects.createAnnotationObject(it) }
 
 // set name and add objects
 expandedAnnotations.eachWithIndex { ann, idx ->
@@ -134,8 +78,5 @@ println "End of the script"
  * IMPORTS
  *********************/
  
-import qupath.lib.roi.GeometryTools
-import qupath.lib.roi.interfaces.ROI
-import qupath.lib.objects.PathAnnotationObject
-import org.locationtech.jts.geom.Geometry
-import org.locationtech.jts.operation.buffer.BufferParameters
\ No newline at end of file
+import qupath.ext.biop.spatial.TerritoryExpansion
+import qupath.lib.objects.PathAnnotationObject
\ No newline at end of file
@@ -1,5 +1,6 @@
 /* 
  * Update the thumbnail of the current open image 
+ * The thumbnail is rendered off-screen from the current display settings, without using the viewer
  *
  * @author Olivier Burri
  * Last tested on QuPath-0.7.0
@@ -8,18 +9,17 @@
 // Saved changes
 getProject().syncChanges();
 
-// get the current image data
-def newImageData = getCurrentViewer().getImageDisplay().getImageData();
+// get the current image data and its display settings
+def viewer = getCurrentViewer()
+def newImageData = viewer.getImageData();
+def display = viewer.getImageDisplay();
 
-// generate thumbnail
-def thumbnail = getCurrentViewer().getRGBThumbnail();
-
-Platform.runLater {
-    // get and save the new thumbnail
-    def entry = getProject().getEntry(newImageData);
-    entry.setThumbnail(thumbnail);
-    entry.saveImageData(newImageData);
-}
+// generate and save the new thumbnail
+def entry = getProject().getEntry(newImageData);
+new ThumbnailRenderer().updateThumbnail(entry, newImageData, display);
+entry.saveImageData(newImageData);
 
 // save changes
-getProject().syncChanges();
\ No newline at end of file
+getProject().syncChanges();
+
+import qupath.ext.biop.utils.ThumbnailRenderer
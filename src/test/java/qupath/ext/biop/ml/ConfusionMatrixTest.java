@@ -0,0 +1,110 @@
+package qupath.ext.biop.ml;
+
+import org.junit.jupiter.api.Test;
+import qupath.lib.objects.classes.PathClass;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Check the metrics of a small confusion matrix computed by hand
+ */
+public class ConfusionMatrixTest {
+
+    private static final double EPS = 1e-12;
+
+    private static final List<PathClass> CLASSES = List.of(
+            PathClass.fromString("A"), PathClass.fromString("B"), PathClass.fromString("C"));
+
+    /**
+     * Ground truth in rows, predictions in columns. Class C never appears
+     * <pre>
+     *     5 1 0
+     *     2 3 0
+     *     0 0 0
+     * </pre>
+     */
+    private static ConfusionMatrix createMatrix() {
+        ConfusionMatrix matrix = new ConfusionMatrix(CLASSES);
+        matrix.add(0, 0, 4);
+        matrix.increment(0, 0);
+        matrix.increment(0, 1);
+        matrix.add(1, 0, 2);
+        matrix.add(1, 1, 3);
+        return matrix;
+    }
+
+    @Test
+    public void counts() {
+        ConfusionMatrix matrix = createMatrix();
+        assertEquals(11, matrix.getTotal());
+        assertEquals(5, matrix.getCount(0, 0));
+        assertEquals(2, matrix.getCount(1, 0));
+        assertEquals(5, matrix.getTP(0));
+        assertEquals(2, matrix.getFP(0));
+        assertEquals(1, matrix.getFN(0));
+        assertEquals(3, matrix.getTP(1));
+        assertEquals(1, matrix.getFP(1));
+        assertEquals(2, matrix.getFN(1));
+        assertEquals(0, matrix.getTP(2));
+    }
+
+    @Test
+    public void metrics() {
+        ConfusionMatrix.Metrics metrics = createMatrix().computeMetrics();
+
+        assertEquals(5.0 / 7, metrics.getPrecision(0), EPS);
+        assertEquals(5.0 / 6, metrics.getRecall(0), EPS);
+        assertEquals(f1(5.0 / 7, 5.0 / 6), metrics.getF1(0), EPS);
+        assertEquals(3.0 / 4, metrics.getPrecision(1), EPS);
+        assertEquals(3.0 / 5, metrics.getRecall(1), EPS);
+        // Undefined ratios are 0
+        assertEquals(0, metrics.getPrecision(2));
+        assertEquals(0, metrics.getRecall(2));
+        assertEquals(0, metrics.getF1(2));
+
+        assertEquals(8, metrics.getTP());
+        assertEquals(3, metrics.getFP());
+        assertEquals(3, metrics.getFN());
+
+        // The absent class does not count towards the macro averages
+        assertEquals((5.0 / 7 + 3.0 / 4) / 2, metrics.getMacroPrecision(), EPS);
+        assertEquals((5.0 / 6 + 3.0 / 5) / 2, metrics.getMacroRecall(), EPS);
+        assertEquals((f1(5.0 / 7, 5.0 / 6) + f1(3.0 / 4, 3.0 / 5)) / 2, metrics.getMacroF1(), EPS);
+
+        assertEquals(8.0 / 11, metrics.getMicroPrecision(), EPS);
+        assertEquals(8.0 / 11, metrics.getMicroRecall(), EPS);
+        assertEquals(8.0 / 11, metrics.getMicroF1(), EPS);
+        assertEquals(8.0 / 11, metrics.getAccuracy(), EPS);
+        assertEquals((5.0 / 6 + 3.0 / 5) / 2, metrics.getBalancedAccuracy(), EPS);
+
+        // Expected agreement by chance is (6 * 7 + 5 * 4) / 11^2
+        assertEquals(26.0 / 59, metrics.getKappa(), EPS);
+    }
+
+    @Test
+    public void emptyMatrix() {
+        ConfusionMatrix.Metrics metrics = new ConfusionMatrix(CLASSES).computeMetrics();
+        assertEquals(0, metrics.getAccuracy());
+        assertEquals(0, metrics.getMacroF1());
+        assertEquals(0, metrics.getKappa());
+    }
+
+    @Test
+    public void addMatrices() {
+        ConfusionMatrix sum = createMatrix();
+        sum.add(createMatrix());
+        assertEquals(22, sum.getTotal());
+        assertEquals(10, sum.getTP(0));
+        assertEquals(4, sum.getFN(1));
+
+        ConfusionMatrix other = new ConfusionMatrix(CLASSES.subList(0, 2));
+        assertThrows(IllegalArgumentException.class, () -> sum.add(other));
+    }
+
+    private static double f1(double precision, double recall) {
+        return 2 * precision * recall / (precision + recall);
+    }
+}
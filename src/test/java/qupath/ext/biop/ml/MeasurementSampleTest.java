@@ -0,0 +1,61 @@
+package qupath.ext.biop.ml;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Check the selection and median used for the sample statistics against sorting
+ */
+public class MeasurementSampleTest {
+
+    @Test
+    public void selectPutsTheKthValueInPlace() {
+        Random random = new Random(3);
+        for (int trial = 0; trial < 200; trial++) {
+            int n = 1 + random.nextInt(100);
+            float[] values = new float[n];
+            for (int i = 0; i < n; i++)
+                values[i] = random.nextInt(10); // Many equal values
+            float[] sorted = values.clone();
+            Arrays.sort(sorted);
+
+            int k = random.nextInt(n);
+            MeasurementSample.select(values, 0, n - 1, k);
+            assertEquals(sorted[k], values[k]);
+            for (int i = 0; i < k; i++)
+                assertTrue(values[i] <= values[k]);
+            for (int i = k + 1; i < n; i++)
+                assertTrue(values[i] >= values[k]);
+        }
+    }
+
+    @Test
+    public void medianMatchesSorting() {
+        Random random = new Random(5);
+        for (int trial = 0; trial < 200; trial++) {
+            int n = 1 + random.nextInt(100);
+            // Only the first n values are used
+            float[] values = new float[n + 10];
+            for (int i = 0; i < values.length; i++)
+                values[i] = (float) random.nextGaussian();
+            float[] sorted = Arrays.copyOf(values, n);
+            Arrays.sort(sorted);
+            double expected = n % 2 == 1 ? sorted[n / 2] : (sorted[n / 2 - 1] + (double) sorted[n / 2]) / 2.0;
+
+            assertEquals(expected, MeasurementSample.median(values, n), 1e-12);
+        }
+    }
+
+    @Test
+    public void medianOfSmallArrays() {
+        assertTrue(Double.isNaN(MeasurementSample.median(new float[0], 0)));
+        assertEquals(4, MeasurementSample.median(new float[]{4}, 1));
+        assertEquals(2.5, MeasurementSample.median(new float[]{3, 2}, 2));
+        assertEquals(2, MeasurementSample.median(new float[]{2, 2, 2, 2}, 4));
+    }
+}
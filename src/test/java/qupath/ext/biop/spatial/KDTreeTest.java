@@ -0,0 +1,126 @@
+package qupath.ext.biop.spatial;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+/**
+ * Compare the KD-tree to a brute force search, on random points with many duplicates
+ */
+public class KDTreeTest {
+
+    private static final int N_POINTS = 2000;
+
+    private static double[][] createPoints(long seed) {
+        Random random = new Random(seed);
+        double[] x = new double[N_POINTS];
+        double[] y = new double[N_POINTS];
+        for (int i = 0; i < N_POINTS; i++) {
+            if (i > 0 && random.nextInt(4) == 0) {
+                // Duplicate a previous point
+                int j = random.nextInt(i);
+                x[i] = x[j];
+                y[i] = y[j];
+            } else {
+                // Integer coordinates on a small grid also give equal x or y values
+                x[i] = random.nextInt(200);
+                y[i] = random.nextInt(200);
+            }
+        }
+        return new double[][]{x, y};
+    }
+
+    @Test
+    public void radiusSearchMatchesBruteForce() {
+        double[][] points = createPoints(42);
+        double[] x = points[0], y = points[1];
+        KDTree tree = new KDTree(x, y);
+        assertEquals(N_POINTS, tree.size());
+
+        Random random = new Random(7);
+        for (int q = 0; q < 500; q++) {
+            int exclude = random.nextInt(N_POINTS);
+            double cx = x[exclude], cy = y[exclude];
+            double radius = random.nextInt(30);
+
+            List<Integer> expected = new ArrayList<>();
+            for (int i = 0; i < N_POINTS; i++) {
+                double dx = x[i] - cx, dy = y[i] - cy;
+                if (i != exclude && dx * dx + dy * dy <= radius * radius)
+                    expected.add(i);
+            }
+
+            List<Integer> found = new ArrayList<>();
+            tree.forEachInRadius(cx, cy, radius, exclude, (index, distanceSq) -> {
+                double dx = x[index] - cx, dy = y[index] - cy;
+                assertEquals(dx * dx + dy * dy, distanceSq, 1e-9);
+                found.add(index);
+            });
+            found.sort(Comparator.naturalOrder());
+
+            assertEquals(expected, found, "Radius " + radius + " around point " + exclude);
+            assertEquals(expected.size(), tree.countInRadius(cx, cy, radius, exclude));
+        }
+    }
+
+    @Test
+    public void nearestMatchesBruteForce() {
+        double[][] points = createPoints(1234);
+        double[] x = points[0], y = points[1];
+        KDTree tree = new KDTree(x, y);
+
+        Random random = new Random(11);
+        int[] indices = new int[20];
+        double[] distancesSq = new double[20];
+        for (int q = 0; q < 500; q++) {
+            int exclude = random.nextInt(N_POINTS);
+            // Query from points of the tree and from arbitrary locations
+            double cx = q % 2 == 0 ? x[exclude] : random.nextDouble() * 200;
+            double cy = q % 2 == 0 ? y[exclude] : random.nextDouble() * 200;
+            int k = 1 + random.nextInt(indices.length);
+
+            double[] all = new double[N_POINTS - 1];
+            int n = 0;
+            for (int i = 0; i < N_POINTS; i++) {
+                if (i == exclude)
+                    continue;
+                double dx = x[i] - cx, dy = y[i] - cy;
+                all[n++] = dx * dx + dy * dy;
+            }
+            Arrays.sort(all);
+            double[] expected = Arrays.copyOf(all, k);
+
+            int found = tree.nearest(cx, cy, k, exclude, indices, distancesSq);
+            assertEquals(k, found);
+            // With duplicates, ties can be broken differently, so compare the distances
+            assertArrayEquals(expected, Arrays.copyOf(distancesSq, k), 1e-9);
+            for (int i = 0; i < k; i++) {
+                double dx = x[indices[i]] - cx, dy = y[indices[i]] - cy;
+                assertEquals(dx * dx + dy * dy, distancesSq[i], 1e-9);
+                assertNotEquals(exclude, indices[i]);
+            }
+            assertEquals(k, Arrays.stream(indices, 0, k).distinct().count());
+        }
+    }
+
+    @Test
+    public void fewerPointsThanRequested() {
+        KDTree tree = new KDTree(new double[]{0, 1, 1}, new double[]{0, 1, 1});
+        int[] indices = new int[5];
+        double[] distancesSq = new double[5];
+        assertEquals(2, tree.nearest(0, 0, 5, 0, indices, distancesSq));
+        assertArrayEquals(new double[]{2, 2}, Arrays.copyOf(distancesSq, 2));
+
+        KDTree empty = new KDTree(new double[0], new double[0]);
+        assertEquals(0, empty.nearest(0, 0, 3, -1, indices, distancesSq));
+        assertEquals(0, empty.countInRadius(0, 0, 10, -1));
+    }
+}
@@ -0,0 +1,61 @@
+package qupath.ext.biop.spatial;
+
+import org.junit.jupiter.api.Test;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Check that expanded territories grow like a buffer and never overlap
+ */
+public class TerritoryExpansionTest {
+
+    private static final GeometryFactory factory = new GeometryFactory();
+
+    private static Geometry square(double x, double y, double size) {
+        return factory.toGeometry(new Envelope(x, x + size, y, y + size));
+    }
+
+    @Test
+    public void singleObjectGrowsLikeABuffer() {
+        Geometry original = square(0, 0, 10);
+        Geometry expanded = new TerritoryExpansion(3, 1).expandGeometries(List.of(original)).get(0);
+        Geometry buffer = original.buffer(3);
+        assertEquals(buffer.getArea(), expanded.getArea(), buffer.getArea() * 1e-3);
+        assertTrue(expanded.covers(original));
+    }
+
+    @Test
+    public void territoriesDoNotOverlap() {
+        // Close enough for their territories to meet in the middle
+        List<Geometry> originals = List.of(square(0, 0, 10), square(14, 0, 10), square(7, 14, 10));
+        List<Geometry> expanded = new TerritoryExpansion(6, 1).expandGeometries(originals);
+        assertEquals(originals.size(), expanded.size());
+
+        for (int i = 0; i < originals.size(); i++) {
+            assertTrue(expanded.get(i).covers(originals.get(i)));
+            assertTrue(expanded.get(i).getArea() > originals.get(i).getArea());
+            for (int j = i + 1; j < originals.size(); j++)
+                assertEquals(0, expanded.get(i).intersection(expanded.get(j)).getArea(), 1e-6);
+        }
+        // The first square is the first served, so it gets at least half of the gap between the first two
+        Envelope first = expanded.get(0).getEnvelopeInternal();
+        assertTrue(first.getMaxX() >= 12 - 1e-6);
+    }
+
+    @Test
+    public void noExpansion() {
+        Geometry original = square(0, 0, 10);
+        // The step is larger than the distance, so there is nothing to add
+        assertSame(original, new TerritoryExpansion(0.5, 1).expandGeometries(List.of(original)).get(0));
+        assertTrue(new TerritoryExpansion(5, 1).expandGeometries(List.of()).isEmpty());
+        assertThrows(IllegalArgumentException.class, () -> new TerritoryExpansion(5, 0));
+    }
+}